@@ -1,4 +1,8 @@
+#version 120
+
 // This is the vertex shader for dragon, using Lambertian diffuse light model.
+// instanceMatrix places the model in the world. It comes from a per-instance
+// vertex array for instanced draws, and is the identity for single draws.
 
 uniform vec3 Kd;
 uniform vec3 Ks;
@@ -7,13 +11,15 @@ uniform float Ns;
 uniform float illum;
 uniform float dissolve;
 
+attribute mat4 instanceMatrix;
+
 varying vec3 diffuse;
 varying float intensity;
 
 void main()
 {
 	vec3 normal, lightDir;
-	normal = normalize(gl_NormalMatrix * gl_Normal);
+	normal = normalize(gl_NormalMatrix * (mat3(instanceMatrix) * gl_Normal));
 	lightDir = normalize(vec3(0, 1, 0));
 	intensity = max(dot(normal, lightDir), 0);
 	diffuse = Kd * vec3(1, 0, 0);
@@ -21,6 +27,6 @@ void main()
 	
 	gl_TexCoord[0] = gl_MultiTexCoord0;  
 	
-	gl_Position = ftransform();
+	gl_Position = gl_ModelViewProjectionMatrix * (instanceMatrix * gl_Vertex);
 	
 }
\ No newline at end of file
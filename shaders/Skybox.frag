@@ -1,9 +1,43 @@
-// This is the fragment shader for skybox.
+#version 120
+
+// This is the fragment shader for skybox. It blends the day, dusk and night
+// skies by the time of day, in ticks. schedule holds when dusk and night
+// begin, the length of a day and how long each change takes; each change
+// ends when the next sky begins, and night turns back into day as the day
+// wraps. Only the skies that show are sampled.
+
+uniform samplerCube day;
+uniform samplerCube dusk;
+uniform samplerCube night;
+uniform vec4 schedule;
+uniform float daytime;
+
+varying vec3 direction;
 
 void main()
 {
+	float toDusk = smoothstep(schedule.x - schedule.w, schedule.x, daytime);
+	float toNight = smoothstep(schedule.y - schedule.w, schedule.y, daytime);
+	float toDay = smoothstep(schedule.z - schedule.w, schedule.z, daytime);
 	
-	gl_FragColor = gl_Color;
+	vec3 color = vec3(0.0);
+	if(toDusk < 1.0)
+	{
+		color = textureCube(day, direction).rgb;
+	}
+	if(toDusk > 0.0 && toNight < 1.0)
+	{
+		color = mix(color, textureCube(dusk, direction).rgb, toDusk);
+	}
+	if(toNight > 0.0)
+	{
+		color = mix(color, textureCube(night, direction).rgb, toNight);
+	}
+	if(toDay > 0.0)
+	{
+		color = mix(color, textureCube(day, direction).rgb, toDay);
+	}
 	
+	gl_FragColor = vec4(color, 1.0);
 	
 }
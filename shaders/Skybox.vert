@@ -1,8 +1,16 @@
-// This is the vertex shader for skybox.
+#version 120
+
+// This is the vertex shader for skybox. The box is centred on the origin,
+// so a vertex's position is also the direction it is seen in, which is what
+// the cube maps are sampled with. The cube maps hold the standard cross
+// layout, a quarter turn about y from how the box was laid out before.
+
+varying vec3 direction;
 
 void main()
 {
+	direction = vec3(gl_Vertex.z, gl_Vertex.y, -gl_Vertex.x);
 	
 	gl_Position = ftransform();
 	
-}
\ No newline at end of file
+}
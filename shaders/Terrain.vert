@@ -1,20 +1,59 @@
 // This is the vertex shader for terrain, using Lambertian diffuse light model.
+// Displaced terrain reads its heights from a texture and its colors from a ramp.
 
 
 attribute vec4 Kd;
 
+uniform bool displaced;
+uniform sampler2D heights;
+uniform sampler1D ramp;
+uniform vec2 patchOrigin;	// first row and column of the chunk
+uniform vec2 samples;		// rows and columns of the tile
+uniform vec4 placement;		// half sizes along z and x, then the tile origin x and z
+uniform float maxAltitude;
+
 varying vec4 diffuse;
 varying vec4 ambient;
 varying float intensity;
+
+float height(float row, float column)
+{
+	return texture2DLod(heights, vec2((column + 0.5) / samples.y, (row + 0.5) / samples.x), 0.0).r;
+}
+
 void main()
 {
 	vec3 normal, lightDir;
-	normal = normalize(gl_NormalMatrix * gl_Normal);
+	vec4 color, vertex;
+	if(displaced)
+	{
+		// Patch vertices past the tile's last sample fold onto its edge.
+		float row = min(patchOrigin.x + gl_Vertex.x, samples.x - 1.0);
+		float column = min(patchOrigin.y + gl_Vertex.y, samples.y - 1.0);
+		float h = height(row, column);
+		vertex = vec4(column * 2.0 / (samples.y - 1.0) * placement.y - placement.y + placement.z, h,
+				row * 2.0 / (samples.x - 1.0) * placement.x - placement.x + placement.w, 1.0);
+		
+		// The same differences as TerrainTile.getNormal().
+		normal = vec3(0, 1, 0);
+		if(row > 0.0 && column < samples.y - 1.0)
+		{
+			normal = vec3(height(row - 1.0, column) - h, 1.0, height(row, column + 1.0) - h);
+		}
+		color = texture1DLod(ramp, h / maxAltitude, 0.0);
+	}
+	else
+	{
+		vertex = gl_Vertex;
+		normal = gl_Normal;
+		color = Kd;
+	}
+	normal = normalize(gl_NormalMatrix * normal);
 	lightDir = normalize(vec3(0, 1, 0));
 	intensity = max(dot(normal, lightDir), 0);
-	diffuse = Kd * vec4(1, 1, 1, 5);
+	diffuse = color * vec4(1, 1, 1, 5);
 	ambient = gl_LightSource[0].ambient;
 	
-	gl_Position = ftransform();
+	gl_Position = gl_ModelViewProjectionMatrix * vertex;
 	
-}
\ No newline at end of file
+}
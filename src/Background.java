@@ -1,265 +1,182 @@
-/** 
+/**
  * 3D Video Game: Journey of a Dragon.
- * 
+ *
  * Author: Jihan Li
- * 
- * This is the background class. It creates the sky box and put textures onto each face.
- * The cloud flows by rotating the sky box.
- * 
- * Reference: 
- *  
+ *
+ * This is the background class. It creates the sky box and puts the day, dusk and night
+ * skies onto it, each as one cube map. The box is a single list drawn with one shader,
+ * which blends the skies by the time of day (see shaders/Skybox.frag).
+ * The cloud flows by rotating the sky box a little every game tick (see GameSimulation).
+ *
+ * Reference:
+ *
  * LWJGL Tutorials, by Oskar Veerhoek
  * https://www.youtube.com/playlist?list=PL19F2453814E0E315
- * 
+ *
  */
 
 package src;
 
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL20.*;
 
-import java.awt.Color;
-import java.awt.Graphics;
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
-import javax.imageio.ImageIO;
-import javax.swing.ImageIcon;
-import javax.swing.JOptionPane;
+public class Background {
 
-import org.lwjgl.BufferUtils;
-import org.lwjgl.opengl.GL12;
-import org.lwjgl.util.vector.Vector3f;
+	/**
+     * The cube map faces' cells in a background image, a 4 by 3 grid laid out
+     * as an unfolded cube, in GL's order: +X, -X, +Y, -Y, +Z, -Z.
+     */
+	private static final int[] FACES = {6, 4, 1, 9, 5, 7};
 
-public class Background {
-	
-	private int[] texImg = new int[6];
+	/**
+     * Ticks each change of sky takes.
+     */
+	private static final float FADE = 120.0f;
+
+	private int day = -1, dusk = -1, night = -1;
 	private float boxWidth = 3200.0f;
 	private float upHeight = 3200.0f;
 	private float downHeight = -3200.0f;
-	private int sky, surrounding, ground;
-	private float rotation = 0;
-	
+	private int box;
+	private int daytimeLocation;
+
 	Shader skyShader = new Shader();
-	    
-	
+
+
 	public float getWidth()
 	{
 		return boxWidth;
 	}
-	
+
 	public float getSkyHeight()
 	{
 		return upHeight;
 	}
-	
-	
-	/** 
-     * Load the background image and partition it into 6 pieces.
+
+
+	/**
+     * Load the day, dusk and night background images as cube maps.
      */
-    public void loadBackground(String name) throws FileNotFoundException, IOException
+    public void loadBackground(String dayName, String duskName, String nightName) throws FileNotFoundException, IOException
     {
-    	BufferedImage src = ImageIO.read(new File("res/"+ name +".jpg"));
-        int width = src.getWidth()/4;
-        int height = src.getHeight()/3;
-        
-        BufferedImage part;
-    	part = src.getSubimage(width, 0, width, height);
-    	load(part, 0);
-    	part = src.getSubimage(0, height, width, height);
-    	load(part, 1);
-    	part = src.getSubimage(width, height, width, height);
-    	load(part, 2);
-    	part = src.getSubimage(2*width, height, width, height);
-    	load(part, 3);
-    	part = src.getSubimage(3*width, height, width, height);
-    	load(part, 4);
-    	part = src.getSubimage(width, 2*height, width, height);
-    	load(part, 5);
-    	
+    	day = TextureCache.acquireCubeMap(path(dayName), 4, 3, FACES);
+    	dusk = TextureCache.acquireCubeMap(path(duskName), 4, 3, FACES);
+    	night = TextureCache.acquireCubeMap(path(nightName), 4, 3, FACES);
+
     	skyShader.generateShader("Skybox");
-    	
+    	int program = skyShader.getShaderProgram();
+    	daytimeLocation = glGetUniformLocation(program, "daytime");
+    	skyShader.enableShader();
+    	glUniform1i(glGetUniformLocation(program, "day"), 0);
+    	glUniform1i(glGetUniformLocation(program, "dusk"), 1);
+    	glUniform1i(glGetUniformLocation(program, "night"), 2);
+    	glUniform4f(glGetUniformLocation(program, "schedule"), GameSimulation.DUSK, GameSimulation.NIGHT,
+    			GameSimulation.DAY_LENGTH, FADE);
+    	skyShader.disableShader();
+
     	init();
     }
-    
-    
-    /** 
-     * Load each image into the texture buffer.
+
+
+    /**
+     * Start decoding a background image ahead of loadBackground.
      */
-    public void load(BufferedImage img, int idx)
+    public static void prefetch(String name)
     {
-    	int width = img.getWidth();
-    	int height = img.getHeight();
-    	int[] pixels = new int[width*height];
-    	img.getRGB(0, 0, width,height, pixels, 0, width);
-		
-		ByteBuffer buffer = BufferUtils.createByteBuffer(width * height * 4); 
-		  
-		for(int y = 0; y < height; y++)
-		{
-		    for(int x = 0; x < width; x++)
-		    {
-		        int pixel = pixels[y * width + x];
-		        buffer.put((byte) ((pixel >> 16) & 0xFF));
-		        buffer.put((byte) ((pixel >> 8) & 0xFF));
-		        buffer.put((byte) (pixel & 0xFF)); 
-		        buffer.put((byte) ((pixel >> 24) & 0xFF)); 
-		    }
-		}
-		
-		buffer.flip();
-		texImg[idx] = glGenTextures();
-		
-		glTexEnvi(GL_TEXTURE_ENV, GL_TEXTURE_ENV_MODE, GL_REPLACE);
-		glBindTexture(GL_TEXTURE_2D, texImg[idx]);
-		
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
-	    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+    	TextureCache.prefetchCubeMap(path(name), 4, 3, FACES);
+    }
 
-	    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-	    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-	
-	    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
+    private static String path(String name)
+    {
+    	return "res/" + name + ".jpg";
     }
-    
-    
-    /** 
-     * Initialize the sky box lists of different faces.
+
+
+    /**
+     * Initialize the sky box list. It only holds the box's corners: the shader
+     * looks the skies up by direction.
      */
     public void init()
     {
-    	sky = glGenLists(1);
-		glNewList(sky, GL_COMPILE);
+    	box = glGenLists(1);
+		glNewList(box, GL_COMPILE);
 		{
-			glBindTexture(GL_TEXTURE_2D, texImg[0]);
 			glBegin(GL_QUADS);
 			{
-				glTexCoord2f(0, 1);
+				// Sky
 		        glVertex3f(-boxWidth, upHeight, -boxWidth);
-		        glTexCoord2f(0, 0);
 		        glVertex3f(boxWidth, upHeight, -boxWidth);
-		        glTexCoord2f(1, 0);
-		        glVertex3f(boxWidth, upHeight, boxWidth); 
-		        glTexCoord2f(1, 1);
-		        glVertex3f(-boxWidth, upHeight, boxWidth); 
-			}
-		    glEnd();
-		}
-	    glEndList();
-	    
-	    surrounding = glGenLists(1);
-	    glNewList(surrounding, GL_COMPILE);
-	    {
-		    glBindTexture(GL_TEXTURE_2D, texImg[1]);
-			glBegin(GL_QUADS);
-			{
-				glTexCoord2f(1, 1);
+		        glVertex3f(boxWidth, upHeight, boxWidth);
+		        glVertex3f(-boxWidth, upHeight, boxWidth);
+
+		        // Surrounding
 		        glVertex3f(-boxWidth, downHeight, -boxWidth);
-		        glTexCoord2f(0, 1);
 		        glVertex3f(boxWidth, downHeight, -boxWidth);
-		        glTexCoord2f(0, 0);
 		        glVertex3f(boxWidth, upHeight, -boxWidth);
-		        glTexCoord2f(1, 0);
 		        glVertex3f(-boxWidth, upHeight, -boxWidth);
-			}
-		    glEnd();
-	    
-		    glBindTexture(GL_TEXTURE_2D, texImg[2]);
-			glBegin(GL_QUADS);
-			{
-		        glTexCoord2f(0, 1);
+
 		        glVertex3f(-boxWidth, downHeight, -boxWidth);
-		        glTexCoord2f(0, 0);
 		        glVertex3f(-boxWidth, upHeight, -boxWidth);
-		        glTexCoord2f(1, 0);
 		        glVertex3f(-boxWidth, upHeight, boxWidth);
-		        glTexCoord2f(1, 1);
 		        glVertex3f(-boxWidth, downHeight, boxWidth);
-			}
-		    glEnd(); 
-		    
-		    glBindTexture(GL_TEXTURE_2D, texImg[3]);
-			glBegin(GL_QUADS);
-			{
-		        glTexCoord2f(0, 1);
+
 		        glVertex3f(-boxWidth, downHeight, boxWidth);
-		        glTexCoord2f(0, 0);
 		        glVertex3f(-boxWidth, upHeight, boxWidth);
-		        glTexCoord2f(1, 0);
 		        glVertex3f(boxWidth, upHeight, boxWidth);
-		        glTexCoord2f(1, 1);
 		        glVertex3f(boxWidth, downHeight, boxWidth);
-			}
-		    glEnd();
-		    
-		    glBindTexture(GL_TEXTURE_2D, texImg[4]);
-			glBegin(GL_QUADS);
-			{
-		        glTexCoord2f(1, 1);
+
 		        glVertex3f(boxWidth, downHeight, -boxWidth);
-		        glTexCoord2f(0, 1);
 		        glVertex3f(boxWidth, downHeight, boxWidth);
-		        glTexCoord2f(0, 0);
 		        glVertex3f(boxWidth, upHeight, boxWidth);
-		        glTexCoord2f(1, 0);
 		        glVertex3f(boxWidth, upHeight, -boxWidth);
-			}
-		    glEnd();
-	    }
-	    glEndList();
-	    
-	    
-	    ground = glGenLists(1);
-		glNewList(ground, GL_COMPILE);
-		{
-			glBindTexture(GL_TEXTURE_2D, texImg[5]);
-			glBegin(GL_QUADS);
-			{
-				glTexCoord2f(0, 0);
+
+		        // Ground
 		        glVertex3f(-boxWidth, downHeight, -boxWidth);
-		        glTexCoord2f(1, 0);
 		        glVertex3f(-boxWidth, downHeight, boxWidth);
-		        glTexCoord2f(1, 1);
-		        glVertex3f(boxWidth, downHeight, boxWidth); 
-		        glTexCoord2f(0, 1);
-		        glVertex3f(boxWidth, downHeight, -boxWidth); 
+		        glVertex3f(boxWidth, downHeight, boxWidth);
+		        glVertex3f(boxWidth, downHeight, -boxWidth);
 			}
 		    glEnd();
 		}
 	    glEndList();
     }
-	    
-    
-    /** 
-     * Draw the sky box lists. And rotate it to produce the cloud flow.
+
+
+    /**
+     * Delete the sky box list and shader, and give the cube maps back to the texture cache.
      */
-    public void drawBox() throws FileNotFoundException, IOException
-	{	
-    	rotation += 0.05f;
-    	if (rotation / 360 > 1) 
-        {
-            rotation -= 360;
-        } 
-        else if (rotation / 360 < -1) 
-        {
-            rotation += 360;
-        }
-    	glRotatef(rotation, 0, 1, 0);
-    	//skyShader.enableShader();
-	    glCallList(sky);
-	    glCallList(surrounding);
-	    glCallList(ground);
-	   // skyShader.disableShader();
-	}
+    public void cleanup()
+    {
+    	glDeleteLists(box, 1);
+    	TextureCache.release(day);
+    	TextureCache.release(dusk);
+    	TextureCache.release(night);
+    	skyShader.deleteShader();
+    }
 
-	public float getRotation() {
-		return rotation;
-	}
 
-	public void setRotation(float rotation) {
-		this.rotation = rotation;
+    /**
+     * Draw the sky box, rotated by the given angle to produce the cloud flow, with
+     * the skies blended for daytime, in ticks since the day began. The cube maps
+     * stay bound to units 2, 1 and 0 afterwards; nothing else samples cube maps.
+     */
+    public void drawBox(float rotation, float daytime) throws FileNotFoundException, IOException
+	{
+    	glRotatef(rotation, 0, 1, 0);
+    	skyShader.enableShader();
+    	glUniform1f(daytimeLocation, daytime);
+    	glActiveTexture(GL_TEXTURE2);
+    	glBindTexture(GL_TEXTURE_CUBE_MAP, night);
+    	glActiveTexture(GL_TEXTURE1);
+    	glBindTexture(GL_TEXTURE_CUBE_MAP, dusk);
+    	glActiveTexture(GL_TEXTURE0);
+    	glBindTexture(GL_TEXTURE_CUBE_MAP, day);
+	    glCallList(box);
+	    skyShader.disableShader();
 	}
-	
+
 }
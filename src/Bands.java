@@ -0,0 +1,69 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the bands class. It runs work over a range of rows (or agents) on
+ * the fork-join pool. The range is split in halves, always on a band
+ * boundary counted from its start, until each piece is at most one band, so
+ * the pieces are the same on any machine whatever the number of threads.
+ *
+ */
+
+package src;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class Bands {
+
+	/**
+     * The work done on the rows [from, to) of one band.
+     */
+	public interface Work {
+		void run(int from, int to);
+	}
+
+
+	/**
+     * Run work over the rows [from, to) in bands of bandRows rows on the
+     * fork-join pool, and return when all of them are done.
+     */
+	public static void invoke(int from, int to, int bandRows, Work work)
+	{
+		ForkJoinPool.commonPool().invoke(new BandTask(from, to, bandRows, work));
+	}
+
+
+	/**
+     * Splits a range of rows in halves until it is at most one band, then
+     * runs the work on it.
+     */
+	private static class BandTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from, to, bandRows;
+		private final Work work;
+
+		BandTask(int from, int to, int bandRows, Work work)
+		{
+			this.from = from;
+			this.to = to;
+			this.bandRows = bandRows;
+			this.work = work;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from <= bandRows)
+			{
+				work.run(from, to);
+				return;
+			}
+			int middle = from + Math.max(1, (to - from) / bandRows / 2) * bandRows;
+			invokeAll(new BandTask(from, middle, bandRows, work), new BandTask(middle, to, bandRows, work));
+		}
+	}
+}
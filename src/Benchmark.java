@@ -0,0 +1,354 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the benchmark class. It times the game's CPU-side systems without
+ * opening a window, e.g. java -cp ... src.Benchmark
+ *
+ * The NPC benchmark steps flocks of 1k, 10k and 100k dragons over a rolling
+ * terrain the size of the game map, on one thread and on the fork-join pool.
+ * The terrain query benchmark times the height, normal and ray queries the
+ * camera and the dragons make against the same terrain.
+ *
+ * The frame pipeline benchmark runs the game's 60 Hz ticks either before
+ * each frame or on the simulation thread, and times frames whose render
+ * work is the CPU side of drawing a snapshot: blending and writing the
+ * dragons' matrices. Frames run back to back, as with uncapped fps.
+ *
+ * The texture loading benchmark decodes the game's images one after another
+ * and then all at once on the texture loader's pool, and converts them to
+ * RGBA both with the old per-pixel loop and with TextureLoader.toRgba,
+ * builds their mip chains and compresses them to S3TC.
+ *
+ */
+
+package src;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.util.vector.Vector3f;
+
+public class Benchmark {
+
+	private static final int[] NPC_COUNTS = {1000, 10000, 100000};
+	private static final int TERRAIN_SIZE = 1600;
+	private static final long SEED = 42;
+
+	/**
+     * Random positions per query pass, and the length of the short and long rays.
+     */
+	private static final int QUERY_POINTS = 4096;
+	private static final float SHORT_RAY = 50;
+	private static final float LONG_RAY = 3000;
+
+	/**
+     * Dragons in the frame pipeline benchmark, and how long each mode runs.
+     */
+	private static final int PIPELINE_DRAGONS = 4000;
+	private static final long PIPELINE_NANOS = 3000000000L;
+
+	/**
+     * The dragon's textures and the sky boxes, which the game loads at start-up.
+     */
+	private static final String[] TEXTURES = {"res/d-top-view.jpg", "res/wings-trans.jpg", "res/d-side-view.jpg",
+			"res/day.jpg", "res/dust.jpg", "res/night.jpg"};
+
+
+	public static void main(String[] args)
+	{
+		Map terrain = new Map();
+		terrain.addTile(0, 0, rollingTerrain(TERRAIN_SIZE));
+		System.out.println("NPC flocking, steps per second (" + Runtime.getRuntime().availableProcessors() + " cores):");
+		for(int count : NPC_COUNTS)
+		{
+			double serial = npcStepsPerSecond(count, terrain, false);
+			double parallel = npcStepsPerSecond(count, terrain, true);
+			System.out.printf("  %6d dragons: %8.1f serial, %8.1f parallel (%.2f ms per step)%n",
+					count, serial, parallel, 1000.0 / parallel);
+		}
+
+		System.out.println("Terrain queries per second:");
+		for(String query : new String[] {"heightAt", "normalAt", "intersect, short rays", "intersect, long rays"})
+		{
+			System.out.printf("  %-22s %12.0f%n", query, queriesPerSecond(query, terrain));
+		}
+
+		System.out.println("Frame pipeline, " + PIPELINE_DRAGONS + " dragons:");
+		try
+		{
+			framePipeline(terrain, false);
+			framePipeline(terrain, true);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		System.out.println("Texture loading, " + TEXTURES.length + " images:");
+		try
+		{
+			textureLoading();
+		}
+		catch(IOException e)
+		{
+			System.out.println("  skipped: " + e.getMessage());
+		}
+	}
+
+
+	/**
+     * Time decoding the textures one by one and on the loader's pool, and
+     * converting the decoded images with the old loop and in bulk.
+     */
+	private static void textureLoading() throws IOException
+	{
+		List<BufferedImage> images = new ArrayList<BufferedImage>();
+		for(String path : TEXTURES)
+		{
+			images.add(ImageIO.read(new File(path)));
+		}
+
+		long start = System.nanoTime();
+		for(String path : TEXTURES)
+		{
+			TextureLoader.read(new File(path));
+		}
+		double serial = (System.nanoTime() - start) / 1e6;
+
+		start = System.nanoTime();
+		for(String path : TEXTURES)
+		{
+			TextureLoader.decode(path);
+		}
+		for(String path : TEXTURES)
+		{
+			TextureLoader.get(path);
+		}
+		double pooled = (System.nanoTime() - start) / 1e6;
+		System.out.printf("  decode and convert: %8.1f ms one by one, %8.1f ms on the pool%n", serial, pooled);
+
+		double perPixel = 0, bulk = 0;
+		for(int pass = 0; pass < 3; pass++)
+		{
+			start = System.nanoTime();
+			for(BufferedImage img : images)
+			{
+				perPixelRgba(img);
+			}
+			perPixel = (System.nanoTime() - start) / 1e6;
+			start = System.nanoTime();
+			for(BufferedImage img : images)
+			{
+				TextureLoader.toRgba(img);
+			}
+			bulk = (System.nanoTime() - start) / 1e6;
+		}
+		System.out.printf("  convert only:       %8.1f ms per pixel, %8.1f ms in bulk%n", perPixel, bulk);
+
+		long rgbaBytes = 0, compressedBytes = 0;
+		double chains = 0, compress = 0;
+		for(String path : TEXTURES)
+		{
+			TextureLoader.Pixels pixels = TextureLoader.get(path);
+			int width = pixels.getWidth(), height = pixels.getHeight();
+			start = System.nanoTime();
+			ByteBuffer chain = MipChain.build(pixels.getData(), width, height);
+			chains += (System.nanoTime() - start) / 1e6;
+			start = System.nanoTime();
+			ByteBuffer blocks = TextureCompressor.compress(chain, width, height, MipChain.levels(width, height),
+					TextureCompressor.chooseFormat(pixels.getData()));
+			compress += (System.nanoTime() - start) / 1e6;
+			rgbaBytes += chain.remaining();
+			compressedBytes += blocks.remaining();
+		}
+		System.out.printf("  mip chains:         %8.1f ms, compressed in %.1f ms, %.1f MB as RGBA8, %.1f MB as S3TC%n",
+				chains, compress, rgbaBytes / 1048576.0, compressedBytes / 1048576.0);
+	}
+
+
+	/**
+     * The conversion the game used before TextureLoader: getRGB, then four
+     * puts per pixel.
+     */
+	private static ByteBuffer perPixelRgba(BufferedImage img)
+	{
+		int width = img.getWidth();
+		int height = img.getHeight();
+		int[] pixels = new int[width * height];
+		img.getRGB(0, 0, width, height, pixels, 0, width);
+		ByteBuffer buffer = BufferUtils.createByteBuffer(width * height * 4);
+		for(int pixel : pixels)
+		{
+			buffer.put((byte) ((pixel >> 16) & 0xFF));
+			buffer.put((byte) ((pixel >> 8) & 0xFF));
+			buffer.put((byte) (pixel & 0xFF));
+			buffer.put((byte) ((pixel >> 24) & 0xFF));
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+
+	/**
+     * Draw frames from the simulation's snapshots for a few seconds, with the
+     * ticks run on the frame's own thread or on the simulation thread, and
+     * print the frame times and the tick rate.
+     */
+	private static void framePipeline(Map terrain, boolean threaded) throws InterruptedException
+	{
+		NpcSimulation npcs = new NpcSimulation(PIPELINE_DRAGONS, SEED);
+		npcs.setTerrain(terrain);
+		Camera camera = new Camera();
+		camera.create(terrain, 3200);
+		GameSimulation simulation = new GameSimulation(camera, npcs, new Input());
+		FloatBuffer matrices = BufferUtils.createFloatBuffer(PIPELINE_DRAGONS * 16);
+		FrameHistogram times = new FrameHistogram();
+
+		if(threaded)
+		{
+			simulation.setRunning(true);
+			simulation.start();
+		}
+		long start = System.nanoTime(), last = start, now = start;
+		while(now - start < PIPELINE_NANOS)
+		{
+			if(!threaded)
+			{
+				simulation.advance((now - last) / 1e9f);
+			}
+			last = now;
+			FrameSnapshot frame = simulation.read();
+			matrices.clear();
+			frame.exportTransforms(matrices, frame.alpha(now));
+			now = System.nanoTime();
+			times.record((now - last) / 1000000.0f);
+		}
+		simulation.stop();
+
+		System.out.printf("  %-18s %8.0f fps, mean %.3f ms, p99 %.0f ms, longest %.1f ms, %.1f ticks/s%n",
+				threaded ? "simulation thread:" : "one thread:", times.getFrames() * 1e9 / (now - start), times.getAverage(),
+				times.percentile(0.99f), times.getLongest(), simulation.read().getTicks() * 1e9 / (now - start));
+	}
+
+
+	/**
+     * Run one kind of terrain query over random points for about a second
+     * after a warm-up and return the query rate. Rays start above the terrain
+     * and head down at a shallow angle, like a dragon looking ahead.
+     */
+	private static double queriesPerSecond(String query, Map terrain)
+	{
+		Random random = new Random(SEED);
+		float[] points = new float[QUERY_POINTS * 6];
+		float length = query.endsWith("long rays") ? LONG_RAY : SHORT_RAY;
+		for(int p = 0; p < points.length; p += 6)
+		{
+			float angle = random.nextFloat() * 2 * (float) Math.PI;
+			points[p] = (random.nextFloat() * 2 - 1) * terrain.getExtentX();
+			points[p + 1] = -100 + random.nextFloat() * 100;
+			points[p + 2] = (random.nextFloat() * 2 - 1) * terrain.getExtentZ();
+			points[p + 3] = points[p] + (float) Math.sin(angle) * length;
+			points[p + 4] = points[p + 1] - length * 0.1f;
+			points[p + 5] = points[p + 2] + (float) Math.cos(angle) * length;
+		}
+
+		Vector3f normal = new Vector3f();
+		double sink = 0;
+		long queries = 0;
+		long start = 0, elapsed = 0;
+		long warmUp = System.nanoTime() + 500000000L;
+		while(start == 0 || elapsed < 1000000000L)
+		{
+			for(int p = 0; p < points.length; p += 6)
+			{
+				if(query.equals("heightAt"))
+				{
+					sink += terrain.heightAt(points[p], points[p + 2]);
+				}
+				else if(query.equals("normalAt"))
+				{
+					terrain.normalAt(points[p], points[p + 2], normal);
+					sink += normal.y;
+				}
+				else
+				{
+					float t = terrain.intersect(points[p], points[p + 1], points[p + 2], points[p + 3], points[p + 4], points[p + 5]);
+					sink += Float.isNaN(t) ? 0 : t;
+				}
+			}
+			if(start == 0)
+			{
+				if(System.nanoTime() > warmUp)
+				{
+					start = System.nanoTime();
+				}
+				continue;
+			}
+			queries += QUERY_POINTS;
+			elapsed = System.nanoTime() - start;
+		}
+		if(sink == 42)
+		{
+			System.out.println();
+		}
+		return queries * 1e9 / elapsed;
+	}
+
+
+	/**
+     * Step a flock for about a second after a warm-up and return the step rate.
+     */
+	private static double npcStepsPerSecond(int count, Map terrain, boolean parallel)
+	{
+		NpcSimulation npcs = new NpcSimulation(count, SEED);
+		npcs.setTerrain(terrain);
+		npcs.setParallel(parallel);
+
+		long warmUp = System.nanoTime() + 500000000L;
+		while(System.nanoTime() < warmUp)
+		{
+			npcs.step(NpcSimulation.FIXED_STEP);
+		}
+
+		int steps = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do
+		{
+			npcs.step(NpcSimulation.FIXED_STEP);
+			steps++;
+			elapsed = System.nanoTime() - start;
+		}
+		while(elapsed < 1000000000L || steps < 10);
+		return steps * 1e9 / elapsed;
+	}
+
+
+	/**
+     * Hills between the game's lowest and highest terrain heights (-400 and -100).
+     */
+	static HeightField rollingTerrain(int size)
+	{
+		HeightField altitude = new HeightField(size, size);
+		for(int i = 0; i < size; i++)
+		{
+			for(int j = 0; j < size; j++)
+			{
+				double hills = Math.sin(i * 0.013) * Math.cos(j * 0.011) + 0.5 * Math.sin((i + j) * 0.031);
+				altitude.set(i, j, (float) (-250 + hills * 100));
+			}
+		}
+		return altitude;
+	}
+}
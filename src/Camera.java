@@ -6,6 +6,7 @@
  * This is the class of camera. It controls the motion of the camera.
  * You can move the camera by either moving mouse or pressing keys.
  * The camera avoids collision with the terrain and skybox.
+ * It is moved by the simulation, and drawn from a FrameSnapshot.
  * 
  * Reference: 
  * Class start codes
@@ -16,11 +17,6 @@
 package src;
 
 import org.lwjgl.input.Keyboard;
-import org.lwjgl.input.Mouse;
-import org.lwjgl.opengl.Display;
-
-import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.util.glu.GLU.*;
 
 import org.lwjgl.util.vector.Vector3f;
 
@@ -33,35 +29,59 @@ public class Camera {
 
     private float mouseSensitivity = 0.03f;
     
-    private boolean flag = true;
+    private volatile boolean flag = true;
     
-    private float[][] altitude;
+    private Map terrain;
     private float skyHeight;
+    private float groundX = Float.NaN, groundZ, ground;
 
     private Vector3f pos;
     private Vector3f rotation;
-    private float width, height;
+    private Vector3f lastPos, lastRotation;
     
     
     /** 
      * Initialize some values.
      */
-    public void create(float w, float h, float[][] alt, float sky) 
+    public void create(Map map, float sky) 
     {
         pos = new Vector3f(0, 0, 0);
         rotation = new Vector3f(0, 0, 0);
+        lastPos = new Vector3f(0, 0, 0);
+        lastRotation = new Vector3f(0, 0, 0);
         
-        width = w;
-        height = h;
-        altitude = alt;
+        terrain = map;
         skyHeight = sky;    
     }
     
+    
+    /** 
+     * Height of the terrain under the camera, from whichever tile covers it.
+     * Where no tile is loaded the ground counts as high as the sky, so the 
+     * camera cannot move there. The height is kept until the camera moves.
+     */
+    private float groundAt()
+    {
+    	if(pos.x != groundX || pos.z != groundZ)
+    	{
+	    	float alt = terrain.heightAt(pos.x, pos.z);
+	    	if(Float.isNaN(alt))
+	    	{
+	    		return skyHeight;
+	    	}
+	    	ground = alt;
+	    	groundX = pos.x;
+	    	groundZ = pos.z;
+    	}
+    	return ground;
+    }
+    
 
     /** 
-     * Apply the motion of the camera.
+     * Remember where the camera is before a game tick moves it, so frames
+     * drawn between ticks can blend the two.
      */
-    public void apply() 
+    public void beginStep()
     {
         if (rotation.y / 360 > 1) 
         {
@@ -71,24 +91,28 @@ public class Camera {
         {
             rotation.y += 360;
         }
-
-        glRotatef(rotation.x, 1, 0, 0);
-        glRotatef(rotation.y, 0, 1, 0);
-        glRotatef(rotation.z, 0, 0, 1);
-        glTranslatef(-pos.x, -pos.y, -pos.z);
+    	lastPos.set(pos);
+    	lastRotation.set(rotation);
     }
     
 
     /** 
      * Process the input.
      */
-    public void acceptInput(float delta) {
-    	if(Display.isActive())
+    public void acceptInput(float delta, Input input) {
+    	if(input.isActive())
     	{
     		if(flag)
     		{
-		        acceptInputRotate(delta);
-		        acceptInputMove(delta);
+    			float x = pos.x, y = pos.y, z = pos.z;
+		        acceptInputRotate(delta, input);
+		        acceptInputMove(delta, input);
+		        
+		        // A fast move can carry the camera over a ridge in one frame; stay put instead.
+		        if(!Float.isNaN(terrain.intersect(x, y, z, pos.x, pos.y, pos.z)))
+		        {
+		        	pos.set(x, Math.max(y, pos.y), z);
+		        }
     		}
     		else
     			flag = true;
@@ -99,27 +123,16 @@ public class Camera {
     /** 
      * Process the mouse input.
      */
-    public void acceptInputRotate(float delta) 
+    public void acceptInputRotate(float delta, Input input) 
     {   
-    	boolean keyFast = Keyboard.isKeyDown(Keyboard.KEY_Q);
-        boolean keySlow = Keyboard.isKeyDown(Keyboard.KEY_E);
-        
-    	int mouseDX = Mouse.getDX();
-    	int mouseDY = -Mouse.getDY();
-    	int realX = (int) ((pos.z + altitude.length) * (width-1) / (2*altitude.length));
-        int realZ = (int) ((pos.x + altitude[0].length) * (height-1) / (2*altitude[0].length));
-        float alt;
+    	boolean keyFast = input.isKeyDown(Keyboard.KEY_Q);
+        boolean keySlow = input.isKeyDown(Keyboard.KEY_E);
         
-        if(realX < 0 || realX >= altitude.length || realZ < 0 || realZ >= altitude[0].length)
-        {
-        	alt = skyHeight;
-        }
-        else
-        {
-        	alt = altitude[realX][realZ];
-        }
+    	int mouseDX = input.getDX();
+    	int mouseDY = -input.getDY();
+    	float alt = groundAt();
         
-        if (Mouse.isInsideWindow()) 
+        if (input.isInsideWindow()) 
         {       	
         	if (keyFast) 
             {
@@ -132,13 +145,13 @@ public class Camera {
             }
         	       	
             speed *= delta;
-            if(Mouse.isButtonDown(0))
+            if(input.isButtonDown(0))
             {
                 movePosX(speed, 0, 1, alt);
                 movePosY(speed, 0, -1, alt);
                 movePosZ(speed, 0, -1, alt);
             }
-            else if(Mouse.isButtonDown(1))
+            else if(input.isButtonDown(1))
             {
                 movePosX(speed, 0, -1, alt);
                 movePosY(speed, 0, 1, alt);
@@ -169,15 +182,15 @@ public class Camera {
     /** 
      * Process the keyboard input. 
      */
-    public void acceptInputMove(float delta) {
-        boolean keyUp = Keyboard.isKeyDown(Keyboard.KEY_UP) || Keyboard.isKeyDown(Keyboard.KEY_W);
-        boolean keyDown = Keyboard.isKeyDown(Keyboard.KEY_DOWN) || Keyboard.isKeyDown(Keyboard.KEY_S);
-        boolean keyRight = Keyboard.isKeyDown(Keyboard.KEY_RIGHT) || Keyboard.isKeyDown(Keyboard.KEY_D);
-        boolean keyLeft = Keyboard.isKeyDown(Keyboard.KEY_LEFT) || Keyboard.isKeyDown(Keyboard.KEY_A);
-        boolean keyFast = Keyboard.isKeyDown(Keyboard.KEY_Q);
-        boolean keySlow = Keyboard.isKeyDown(Keyboard.KEY_E);
-        boolean keyFlyUp = Keyboard.isKeyDown(Keyboard.KEY_Z);
-        boolean keyFlyDown = Keyboard.isKeyDown(Keyboard.KEY_X);
+    public void acceptInputMove(float delta, Input input) {
+        boolean keyUp = input.isKeyDown(Keyboard.KEY_UP) || input.isKeyDown(Keyboard.KEY_W);
+        boolean keyDown = input.isKeyDown(Keyboard.KEY_DOWN) || input.isKeyDown(Keyboard.KEY_S);
+        boolean keyRight = input.isKeyDown(Keyboard.KEY_RIGHT) || input.isKeyDown(Keyboard.KEY_D);
+        boolean keyLeft = input.isKeyDown(Keyboard.KEY_LEFT) || input.isKeyDown(Keyboard.KEY_A);
+        boolean keyFast = input.isKeyDown(Keyboard.KEY_Q);
+        boolean keySlow = input.isKeyDown(Keyboard.KEY_E);
+        boolean keyFlyUp = input.isKeyDown(Keyboard.KEY_Z);
+        boolean keyFlyDown = input.isKeyDown(Keyboard.KEY_X);
 
         if (keyFast) 
         {
@@ -189,18 +202,7 @@ public class Camera {
             speed = moveSpeed;
         }
         
-        int realX = (int) ((pos.z + altitude.length) * (width-1) / (2*altitude.length));
-        int realZ = (int) ((pos.x + altitude[0].length) * (height-1) / (2*altitude[0].length));
-        float alt;
-        
-        if(realX < 0 || realX >= altitude.length || realZ < 0 || realZ >= altitude[0].length)
-        {
-        	alt = skyHeight;
-        }
-        else
-        {
-        	alt = altitude[realX][realZ];
-        }
+        float alt = groundAt();
 
         speed *= delta;
 
@@ -280,6 +282,14 @@ public class Camera {
         return pos;
     }
 
+    public Vector3f getLastPos() {
+        return lastPos;
+    }
+
+    public Vector3f getLastRotation() {
+        return lastRotation;
+    }
+
     public void setX(float x) {
         pos.x = x;
     }
@@ -0,0 +1,206 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the DDS cache class. It stores a texture compressed by
+ * TextureCompressor next to its source image (res/<name>.dds), so later
+ * launches upload the blocks straight from the file instead of decoding
+ * the image and compressing it again.
+ *
+ * The file is a standard DDS file, which image tools can open, with one
+ * BC1 (DXT1) or BC3 (DXT5) image and, with mipmaps, its mip chain. The
+ * header's reserved words hold the game's own stamp, little-endian like
+ * the rest of the file:
+ *   32   tag "VGTX" and version
+ *   40   length / last modified / CRC of the source image (as in MeshCache)
+ *   64   CRC of the blocks
+ *
+ * A cache whose tag, version, format, size, CRC or source does not match
+ * is ignored, and the caller compresses the source again. Only a cache
+ * that passes these checks is mapped.
+ *
+ */
+
+package src;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+public class DdsCache {
+
+	private static final int MAGIC = 0x20534444; // "DDS "
+	private static final int TAG = 0x58544756; // "VGTX"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 128;
+
+	private static final int DXT1 = 0x31545844; // "DXT1"
+	private static final int DXT5 = 0x35545844; // "DXT5"
+
+	/**
+     * DDSD_CAPS | DDSD_HEIGHT | DDSD_WIDTH | DDSD_PIXELFORMAT | DDSD_LINEARSIZE,
+     * DDSD_MIPMAPCOUNT, DDPF_FOURCC, DDSCAPS_TEXTURE and DDSCAPS_COMPLEX | DDSCAPS_MIPMAP.
+     */
+	private static final int HEADER_FLAGS = 0x81007;
+	private static final int MIPMAP_FLAG = 0x20000;
+	private static final int FOURCC_FLAG = 0x4;
+	private static final int TEXTURE_CAPS = 0x1000;
+	private static final int MIPMAP_CAPS = 0x400008;
+
+
+	/**
+     * The cache file belonging to a source image.
+     */
+	public static File cacheFile(File source)
+	{
+		String name = source.getName();
+		int dot = name.lastIndexOf('.');
+		return new File(source.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ".dds");
+	}
+
+
+	/**
+     * Map the compressed texture cached for a source image, with a full mip
+     * chain or without one. Returns null if the cache is missing, stale or
+     * corrupt, or has a chain when it shouldn't or none when it should.
+     *
+     * As in MeshCache.load, the header, source stamp and CRC are checked
+     * through plain reads, and the file is only mapped once they pass, so a
+     * rejected cache can still be replaced on Windows.
+     */
+	public static TextureLoader.Pixels load(File source, boolean mipmapped)
+	{
+		File cache = cacheFile(source);
+		if(!cache.isFile() || !source.isFile())
+		{
+			return null;
+		}
+
+		try
+		{
+			RandomAccessFile file = new RandomAccessFile(cache, "r");
+			try
+			{
+				return read(file.getChannel(), source, mipmapped);
+			}
+			finally
+			{
+				// The mapping stays valid after the channel is closed.
+				file.close();
+			}
+		}
+		catch(IOException | RuntimeException e)
+		{
+			System.err.println("Ignoring texture cache " + cache + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static TextureLoader.Pixels read(FileChannel channel, File source, boolean mipmapped) throws IOException
+	{
+		long size = channel.size();
+		if(size < HEADER_BYTES)
+		{
+			throw new IOException("not a texture cache");
+		}
+		ByteBuffer header = MeshCache.readBytes(channel, 0, HEADER_BYTES, ByteOrder.LITTLE_ENDIAN);
+		if(header.getInt(0) != MAGIC || header.getInt(32) != TAG)
+		{
+			throw new IOException("not a texture cache");
+		}
+		if(header.getInt(36) != VERSION)
+		{
+			throw new IOException("written by another version");
+		}
+
+		int height = header.getInt(12);
+		int width = header.getInt(16);
+		int fourCC = header.getInt(84);
+		int format = fourCC == DXT1 ? TextureCompressor.BC1 : fourCC == DXT5 ? TextureCompressor.BC3 : 0;
+		int levels = Math.max(1, header.getInt(28));
+		if(format == 0 || width <= 0 || height <= 0 || levels > MipChain.levels(width, height)
+				|| size != HEADER_BYTES + MipChain.bytes(format, width, height, levels))
+		{
+			throw new IOException("corrupt header");
+		}
+		if(levels != (mipmapped ? MipChain.levels(width, height) : 1))
+		{
+			throw new IOException(mipmapped ? "no mip chain" : "has a mip chain");
+		}
+		if(!MeshCache.sourceMatches(header, 40, source))
+		{
+			throw new IOException("stale, " + source + " has changed");
+		}
+		if(MeshCache.checksum(channel, HEADER_BYTES) != header.getInt(64))
+		{
+			throw new IOException("payload checksum mismatch");
+		}
+
+		MappedByteBuffer blocks = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, size - HEADER_BYTES);
+		blocks.order(ByteOrder.LITTLE_ENDIAN);
+		return new TextureLoader.Pixels(width, height, blocks,
+				TextureLoader.contentKey(header.getLong(40), header.getLong(56)), format, levels);
+	}
+
+
+	/**
+     * Write the cache for a freshly compressed texture. It is written to a
+     * temporary file first so a crash never leaves a half-written cache behind.
+     */
+	public static void write(File source, TextureLoader.Pixels pixels) throws IOException
+	{
+		File cache = cacheFile(source);
+		ByteBuffer blocks = pixels.getData().duplicate();
+		int size = HEADER_BYTES + blocks.remaining();
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, 124);
+		buffer.putInt(8, HEADER_FLAGS | (pixels.getLevels() > 1 ? MIPMAP_FLAG : 0));
+		buffer.putInt(12, pixels.getHeight());
+		buffer.putInt(16, pixels.getWidth());
+		buffer.putInt(20, TextureCompressor.imageBytes(pixels.getFormat(), pixels.getWidth(), pixels.getHeight()));
+		buffer.putInt(28, pixels.getLevels());
+		buffer.putInt(32, TAG);
+		buffer.putInt(36, VERSION);
+		MeshCache.putSource(buffer, 40, source);
+		buffer.putInt(76, 32);
+		buffer.putInt(80, FOURCC_FLAG);
+		buffer.putInt(84, pixels.getFormat() == TextureCompressor.BC1 ? DXT1 : DXT5);
+		buffer.putInt(108, TEXTURE_CAPS | (pixels.getLevels() > 1 ? MIPMAP_CAPS : 0));
+
+		CRC32 crc = new CRC32();
+		crc.update(blocks.duplicate());
+		buffer.putInt(64, (int) crc.getValue());
+		buffer.position(HEADER_BYTES);
+		buffer.put(blocks);
+
+		buffer.position(0);
+		File temp = new File(cache.getPath() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(temp, "rw");
+		try
+		{
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			while(buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+		}
+		finally
+		{
+			file.close();
+		}
+		if(cache.exists() && !cache.delete() || !temp.renameTo(cache))
+		{
+			temp.delete();
+			throw new IOException("could not replace " + cache);
+		}
+	}
+}
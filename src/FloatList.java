@@ -0,0 +1,71 @@
+/** 
+ * 3D Video Game: Journey of a Dragon.
+ * 
+ * Author: Jihan Li
+ * 
+ * This is a growable list of primitive floats. It avoids boxing 
+ * every parsed value into its own object.
+ * 
+ */
+
+package src;
+
+import java.util.Arrays;
+
+public class FloatList {
+	
+	private float[] data;
+	private int size;
+	
+	public FloatList()
+	{
+		this(1024);
+	}
+	
+	public FloatList(int capacity)
+	{
+		data = new float[Math.max(capacity, 16)];
+	}
+	
+	
+	/** 
+     * Append a value, growing the backing array if needed.
+     */
+	public void add(float value)
+	{
+		if(size == data.length)
+		{
+			data = Arrays.copyOf(data, data.length + (data.length >> 1));
+		}
+		data[size++] = value;
+	}
+	
+	public float get(int index)
+	{
+		return data[index];
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public void clear()
+	{
+		size = 0;
+	}
+	
+	
+	/** 
+     * Return the backing array. Only the first size() values are valid.
+     */
+	public float[] array()
+	{
+		return data;
+	}
+	
+	public float[] toArray()
+	{
+		return Arrays.copyOf(data, size);
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the frame time histogram class. It counts frame times in buckets
+ * of one millisecond, so hitches show up as a tail past the frame budget
+ * rather than vanishing into an average.
+ *
+ */
+
+package src;
+
+public class FrameHistogram {
+
+	/**
+     * Buckets [0, 1), [1, 2), ... milliseconds. The last one also holds every longer frame.
+     */
+	private static final int BUCKETS = 100;
+
+	/**
+     * Frames longer than this many milliseconds (two frames at 60 Hz) count as hitches.
+     */
+	public static final float HITCH = 1000.0f / 30.0f;
+
+	private int[] counts = new int[BUCKETS];
+	private int frames;
+	private int hitches;
+	private double total;
+	private float longest;
+
+
+	/**
+     * Count one frame that took the given number of milliseconds.
+     */
+	public void record(float milliseconds)
+	{
+		counts[Math.min(BUCKETS - 1, (int) milliseconds)]++;
+		frames++;
+		total += milliseconds;
+		longest = Math.max(longest, milliseconds);
+		if(milliseconds > HITCH)
+		{
+			hitches++;
+		}
+	}
+
+
+	/**
+     * Upper edge, in milliseconds, of the bucket that holds the given fraction
+     * (0 to 1) of the frames.
+     */
+	public float percentile(float fraction)
+	{
+		int target = (int) Math.ceil(fraction * frames);
+		int seen = 0;
+		for(int b = 0; b < BUCKETS; b++)
+		{
+			seen += counts[b];
+			if(seen >= target && seen > 0)
+			{
+				return b + 1;
+			}
+		}
+		return BUCKETS;
+	}
+
+
+	/**
+     * Summary line followed by one bar per non-empty bucket.
+     */
+	public String report()
+	{
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%d frames, mean %.2f ms, p50 %.0f ms, p99 %.0f ms, longest %.2f ms, %d over %.1f ms%n",
+				frames, getAverage(), percentile(0.5f), percentile(0.99f), longest, hitches, HITCH));
+		int most = 1;
+		for(int count : counts)
+		{
+			most = Math.max(most, count);
+		}
+		for(int b = 0; b < BUCKETS; b++)
+		{
+			if(counts[b] == 0)
+			{
+				continue;
+			}
+			report.append(String.format("%3d%s ms %7d ", b, b == BUCKETS - 1 ? "+" : " ", counts[b]));
+			for(int i = 0; i < (counts[b] * 50 + most - 1) / most; i++)
+			{
+				report.append('#');
+			}
+			report.append(String.format("%n"));
+		}
+		return report.toString();
+	}
+
+
+	public int getFrames() {
+		return frames;
+	}
+
+	public int getHitches() {
+		return hitches;
+	}
+
+	public float getLongest() {
+		return longest;
+	}
+
+	public float getAverage() {
+		return frames == 0 ? 0 : (float) (total / frames);
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the frame snapshot class. The simulation fills one after its
+ * ticks with everything the renderer draws from: the camera, the sky and
+ * the NPC dragons, each both before and after the last tick, so a frame
+ * can be drawn anywhere in between. The renderer only reads a snapshot,
+ * and never touches the simulation's own state.
+ *
+ */
+
+package src;
+
+import java.nio.FloatBuffer;
+
+import org.lwjgl.util.vector.Vector3f;
+
+public class FrameSnapshot {
+
+	/**
+     * Floats per dragon: position before and after the last tick, heading
+     * cosine and sine, and scale.
+     */
+	public static final int NPC_FLOATS = 9;
+
+	private long time;
+	private long ticks;
+	private float[] camera = new float[12];
+	private float lastDaytime, daytime;
+	private float lastSkyRotation, skyRotation;
+	private int npcCount;
+	private float[] npcs = new float[0];
+
+
+	/**
+     * Record the state after tick number ticks. time is when, in
+     * System.nanoTime(), the tick was due.
+     */
+	public void setTime(long time, long ticks)
+	{
+		this.time = time;
+		this.ticks = ticks;
+	}
+
+	public void setCamera(Camera source)
+	{
+		put(source.getLastPos(), 0);
+		put(source.getPos(), 3);
+		put(source.getLastRotation(), 6);
+		put(source.getRotation(), 9);
+	}
+
+	private void put(Vector3f vector, int at)
+	{
+		camera[at] = vector.x;
+		camera[at + 1] = vector.y;
+		camera[at + 2] = vector.z;
+	}
+
+	public void setSky(float lastDaytime, float daytime, float lastSkyRotation, float skyRotation)
+	{
+		this.lastDaytime = lastDaytime;
+		this.daytime = daytime;
+		this.lastSkyRotation = lastSkyRotation;
+		this.skyRotation = skyRotation;
+	}
+
+	public void setNpcs(NpcSimulation source)
+	{
+		npcCount = source.getCount();
+		if(npcs.length < npcCount * NPC_FLOATS)
+		{
+			npcs = new float[npcCount * NPC_FLOATS];
+		}
+		source.exportState(npcs);
+	}
+
+
+	/**
+     * How far, 0 to 1, a frame drawn at now is from the tick before this
+     * snapshot's to its own. A frame is drawn one tick behind the simulation,
+     * so it always has two ticks to blend.
+     */
+	public float alpha(long now)
+	{
+		float alpha = (now - time) / (NpcSimulation.FIXED_STEP * 1e9f);
+		return Math.max(0, Math.min(1, alpha));
+	}
+
+
+	/**
+     * The camera's position and rotation in degrees, alpha of the way from
+     * before the last tick to after it.
+     */
+	public float getX(float alpha) {
+		return blend(camera[0], camera[3], alpha);
+	}
+
+	public float getY(float alpha) {
+		return blend(camera[1], camera[4], alpha);
+	}
+
+	public float getZ(float alpha) {
+		return blend(camera[2], camera[5], alpha);
+	}
+
+	public float getRotationX(float alpha) {
+		return blend(camera[6], camera[9], alpha);
+	}
+
+	public float getRotationY(float alpha) {
+		// Turn the short way round when the yaw has just wrapped.
+		float turn = camera[10] - camera[7];
+		turn -= 360 * Math.round(turn / 360);
+		return camera[10] - turn * (1 - alpha);
+	}
+
+	public float getRotationZ(float alpha) {
+		return blend(camera[8], camera[11], alpha);
+	}
+
+
+	/**
+     * Write one matrix per dragon, alpha of the way from before the last tick
+     * to after it, in the layout Model.drawInstanced reads.
+     */
+	public void exportTransforms(FloatBuffer matrices, float alpha)
+	{
+		for(int i = 0; i < npcCount * NPC_FLOATS; i += NPC_FLOATS)
+		{
+			ModelInstance.writeMatrix(matrices, blend(npcs[i], npcs[i + 3], alpha), blend(npcs[i + 1], npcs[i + 4], alpha),
+					blend(npcs[i + 2], npcs[i + 5], alpha), npcs[i + 6], npcs[i + 7], npcs[i + 8]);
+		}
+	}
+
+	public float getSkyRotation(float alpha)
+	{
+		return blend(lastSkyRotation, skyRotation, alpha);
+	}
+
+	/**
+     * The time of day in ticks (see GameSimulation.DUSK). Just after the day
+     * wraps it blends up from slightly below 0.
+     */
+	public float getDaytime(float alpha)
+	{
+		return blend(lastDaytime, daytime, alpha);
+	}
+
+	private static float blend(float from, float to, float alpha)
+	{
+		return from + (to - from) * alpha;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public long getTicks() {
+		return ticks;
+	}
+
+	public int getNpcCount() {
+		return npcCount;
+	}
+
+	public float getX() {
+		return camera[3];
+	}
+
+	public float getY() {
+		return camera[4];
+	}
+
+	public float getZ() {
+		return camera[5];
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the view frustum class. It extracts the six clipping planes from
+ * the combined projection and modelview matrix, so boxes given in the
+ * current model space can be tested against what the camera sees. It also
+ * keeps the eye position in that space, for level of detail decisions.
+ *
+ * Reference:
+ *
+ * Fast Extraction of Viewing Frustum Planes from the World-View-Projection
+ * Matrix, by Gil Gribb and Klaus Hartmann
+ *
+ */
+
+package src;
+
+import java.nio.FloatBuffer;
+
+public class Frustum {
+
+	/**
+     * Six planes (left, right, bottom, top, near, far) of four floats a, b, c, d.
+     * A point p is inside a plane when a*p.x + b*p.y + c*p.z + d >= 0.
+     */
+	private float[] planes = new float[24];
+	private float eyeX, eyeY, eyeZ;
+	private float projectionScale;
+
+	private float[] clip = new float[16];
+
+
+	/**
+     * Rebuild the planes from column-major projection and modelview matrices.
+     */
+	public void update(FloatBuffer projection, FloatBuffer modelview)
+	{
+		for(int column = 0; column < 4; column++)
+		{
+			for(int row = 0; row < 4; row++)
+			{
+				float sum = 0;
+				for(int k = 0; k < 4; k++)
+				{
+					sum += projection.get(k * 4 + row) * modelview.get(column * 4 + k);
+				}
+				clip[column * 4 + row] = sum;
+			}
+		}
+
+		// Each plane is the last row of the matrix plus or minus one of the others.
+		for(int i = 0; i < 3; i++)
+		{
+			for(int k = 0; k < 4; k++)
+			{
+				planes[(i * 2) * 4 + k] = clip[k * 4 + 3] + clip[k * 4 + i];
+				planes[(i * 2 + 1) * 4 + k] = clip[k * 4 + 3] - clip[k * 4 + i];
+			}
+		}
+
+		// The modelview holds only rotations and translations, so the eye is -R^T * t.
+		float tx = modelview.get(12), ty = modelview.get(13), tz = modelview.get(14);
+		eyeX = -(modelview.get(0) * tx + modelview.get(1) * ty + modelview.get(2) * tz);
+		eyeY = -(modelview.get(4) * tx + modelview.get(5) * ty + modelview.get(6) * tz);
+		eyeZ = -(modelview.get(8) * tx + modelview.get(9) * ty + modelview.get(10) * tz);
+		projectionScale = projection.get(5);
+
+		for(int p = 0; p < 6; p++)
+		{
+			float length = (float) Math.sqrt(planes[p * 4] * planes[p * 4] + planes[p * 4 + 1] * planes[p * 4 + 1]
+					+ planes[p * 4 + 2] * planes[p * 4 + 2]);
+			if(length > 0)
+			{
+				for(int k = 0; k < 4; k++)
+				{
+					planes[p * 4 + k] /= length;
+				}
+			}
+		}
+	}
+
+
+	/**
+     * Whether an axis-aligned box is at least partly inside the frustum. For
+     * each plane only the box corner furthest along the plane normal is tested,
+     * so a box is kept unless it lies completely outside one plane.
+     */
+	public boolean intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ)
+	{
+		for(int p = 0; p < 6; p++)
+		{
+			float a = planes[p * 4], b = planes[p * 4 + 1], c = planes[p * 4 + 2], d = planes[p * 4 + 3];
+			float x = a >= 0 ? maxX : minX;
+			float y = b >= 0 ? maxY : minY;
+			float z = c >= 0 ? maxZ : minZ;
+			if(a * x + b * y + c * z + d < 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	public float getEyeX() {
+		return eyeX;
+	}
+
+	public float getEyeY() {
+		return eyeY;
+	}
+
+	public float getEyeZ() {
+		return eyeZ;
+	}
+
+
+	/**
+     * The projection's vertical scale, cot(fovy / 2). Half the viewport height
+     * times this is the size in pixels of one unit at distance one.
+     */
+	public float getProjectionScale() {
+		return projectionScale;
+	}
+}
@@ -0,0 +1,111 @@
+/** 
+ * 3D Video Game: Journey of a Dragon.
+ * 
+ * Author: Jihan Li
+ * 
+ * This is the configuration class. It holds the switches for optional 
+ * rendering and loading paths. Each one can be set on the command line, 
+ * e.g. java -Dvideogame.displayLists=true src.VideoGame
+ * 
+ */
+
+package src;
+
+public class GameConfig {
+	
+	/** 
+     * Draw models from display lists even when vertex buffer objects are supported.
+     */
+	public static boolean displayLists = Boolean.getBoolean("videogame.displayLists");
+	
+	/** 
+     * Reorder mesh triangles and vertices for the GPU vertex cache when compiling models.
+     */
+	public static boolean optimizeMeshes = Boolean.parseBoolean(System.getProperty("videogame.optimizeMeshes", "true"));
+	
+	/** 
+     * Number of NPC dragons flying around the player, at most 10000. A flock step takes about
+     * 9 ms on one 2 GHz core at 10000 and grows with the count, and it must fit in a 1/60 s
+     * tick, or GameSimulation drops ticks and the game slows down.
+     */
+	public static int npcCount = Math.min(Integer.getInteger("videogame.npcCount", 5), 10000);
+	
+	/** 
+     * Draw distant terrain chunks at lower detail. When off, the terrain is always drawn at full detail.
+     */
+	public static boolean terrainLod = Boolean.parseBoolean(System.getProperty("videogame.terrainLod", "true"));
+	
+	/** 
+     * Largest terrain error allowed on screen, in pixels, when choosing a chunk's detail level.
+     */
+	public static float terrainError = Float.parseFloat(System.getProperty("videogame.terrainError", "8"));
+	
+	/** 
+     * Preprocess the height map (heights, normals, colors) on all cores. When off, it is done on one thread.
+     */
+	public static boolean parallelTerrain = Boolean.parseBoolean(System.getProperty("videogame.parallelTerrain", "true"));
+	
+	/** 
+     * Keep the terrain heights in a float texture per tile and displace a shared grid patch in the 
+     * Terrain shader, instead of building every vertex on the CPU. Tiles must fit GL_MAX_TEXTURE_SIZE.
+     */
+	public static boolean gpuTerrain = Boolean.getBoolean("videogame.gpuTerrain");
+	
+	/** 
+     * Terrain tiles within this distance of the camera, along x and z, are loaded in the background.
+     */
+	public static float tileRadius = Float.parseFloat(System.getProperty("videogame.tileRadius", "2000"));
+	
+	/** 
+     * Megabytes of heights and chunk vertices the loaded terrain tiles may use before tiles out of range are evicted.
+     */
+	public static int tileBudget = Integer.getInteger("videogame.tileBudget", 1024);
+	
+	/** 
+     * Terrain chunks uploaded to the GPU per frame while tiles stream in.
+     */
+	public static int tileUploads = Integer.getInteger("videogame.tileUploads", 16);
+	
+	/** 
+     * Megabytes of textures kept on the GPU before textures no longer in use are deleted, least recently 
+     * used first. Textures in use are always kept.
+     */
+	public static int textureBudget = Integer.getInteger("videogame.textureBudget", 256);
+	
+	/** 
+     * Compress textures to S3TC (BC1, or BC3 with alpha) on the CPU and keep them in a .dds cache next to 
+     * each image. Textures stay RGBA8 when this is off or the context lacks EXT_texture_compression_s3tc.
+     */
+	public static boolean compressTextures = Boolean.parseBoolean(System.getProperty("videogame.compressTextures", "true"));
+	
+	/** 
+     * Give every texture a mip chain and sample it trilinearly. When off, textures are sampled nearest, 
+     * without mipmaps.
+     */
+	public static boolean mipmaps = Boolean.parseBoolean(System.getProperty("videogame.mipmaps", "true"));
+	
+	/** 
+     * Largest anisotropy for mipmapped textures, where the context has EXT_texture_filter_anisotropic. 
+     * 1 turns anisotropic filtering off.
+     */
+	public static float anisotropy = Float.parseFloat(System.getProperty("videogame.anisotropy", "8"));
+	
+	/** 
+     * Length in seconds of a scripted flight across the terrain that prints a frame time histogram
+     * and exits. 0 plays the game normally.
+     */
+	public static float flightTest = Float.parseFloat(System.getProperty("videogame.flightTest", "0"));
+	
+	/** 
+     * Draw frames as fast as possible, without vertical sync or the 60 fps cap, to measure rendering 
+     * throughput. The game still advances in fixed ticks, so it plays the same.
+     */
+	public static boolean uncappedFps = Boolean.getBoolean("videogame.uncappedFps");
+	
+	/** 
+     * Run the game ticks (camera, NPC dragons, time of day) on their own thread, which hands the render 
+     * thread a snapshot after each tick. When off, the render thread runs the ticks before each frame.
+     */
+	public static boolean simulationThread = Boolean.parseBoolean(System.getProperty("videogame.simulationThread", "true"));
+	
+}
@@ -0,0 +1,243 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the game simulation class. It advances the game in ticks of
+ * fixed length: the camera, the NPC dragons, the clouds and the time of
+ * day. After its ticks it fills a FrameSnapshot and publishes it through
+ * a triple buffer, which the renderer reads without ever waiting.
+ *
+ * With GameConfig.simulationThread the ticks run on their own thread, so
+ * they overlap with the render thread submitting the previous frame to
+ * the GPU. Otherwise the render thread runs them itself before each frame.
+ *
+ */
+
+package src;
+
+import java.util.concurrent.locks.LockSupport;
+
+public class GameSimulation implements Runnable {
+
+	/**
+     * Length of a tick in seconds. At most MAX_TICKS are run at once, so a
+     * long stall is skipped rather than replayed.
+     */
+	public static final float TICK = NpcSimulation.FIXED_STEP;
+	private static final int MAX_TICKS = 15;
+
+	/**
+     * The time of day, in ticks: dusk begins at DUSK, night at NIGHT, and
+     * day again when the day wraps at DAY_LENGTH. The sky box blends into
+     * each sky just before it begins.
+     */
+	public static final float DUSK = 1000.0f;
+	public static final float NIGHT = 1500.0f;
+	public static final float DAY_LENGTH = 2500.0f;
+
+	/**
+     * Speed of the scripted flight (GameConfig.flightTest), which heads along
+     * +x across the terrain tiles.
+     */
+	private static final float FLIGHT_SPEED = 800.0f;
+
+	private Camera camera;
+	private NpcSimulation npcs;
+	private Input input;
+	private Input tickInput = new Input();
+
+	private float accumulator;
+	private long ticks;
+	private float daytime = 900, lastDaytime = 900;
+	private float skyRotation, lastSkyRotation;
+	private float flightTime;
+
+	private TripleBuffer<FrameSnapshot> snapshots = new TripleBuffer<FrameSnapshot>(new FrameSnapshot(), new FrameSnapshot(),
+			new FrameSnapshot());
+	private Thread thread;
+	private volatile boolean running;
+	private volatile boolean stopped;
+	private volatile boolean finished;
+
+
+	/**
+     * Simulate the camera, moved by input, and the NPC dragons. The state
+     * they start in is published at once.
+     */
+	public GameSimulation(Camera camera, NpcSimulation npcs, Input input)
+	{
+		this.camera = camera;
+		this.npcs = npcs;
+		this.input = input;
+		publish(System.nanoTime());
+	}
+
+
+	/**
+     * Run the ticks on a thread of their own from now on.
+     */
+	public void start()
+	{
+		thread = new Thread(this, "Simulation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	/**
+     * Stop the simulation thread, if there is one, and wait for it to finish its tick.
+     */
+	public void stop() throws InterruptedException
+	{
+		stopped = true;
+		if(thread != null)
+		{
+			LockSupport.unpark(thread);
+			thread.join();
+		}
+	}
+
+
+	/**
+     * The simulation thread: tick whenever a tick of real time has passed,
+     * and sleep in between. While the game is paused no time is counted.
+     */
+	public void run()
+	{
+		long last = System.nanoTime();
+		while(!stopped)
+		{
+			long now = System.nanoTime();
+			if(running)
+			{
+				advance((now - last) / 1e9f);
+			}
+			else
+			{
+				accumulator = 0;
+			}
+			last = now;
+			LockSupport.parkNanos((long) ((TICK - accumulator) * 1e9f));
+		}
+	}
+
+
+	/**
+     * Spend seconds of real time on whole ticks, carrying the remainder over,
+     * and publish the state if any tick was run.
+     */
+	public void advance(float seconds)
+	{
+		accumulator += seconds;
+		int taken = 0;
+		while(accumulator >= TICK && taken < MAX_TICKS)
+		{
+			tick();
+			accumulator -= TICK;
+			taken++;
+		}
+		if(taken == MAX_TICKS)
+		{
+			accumulator = 0;
+		}
+		if(taken > 0)
+		{
+			// The last tick was due as long ago as the time left over.
+			publish(System.nanoTime() - (long) (accumulator * 1e9f));
+		}
+	}
+
+
+	/**
+     * Advance the game by one tick.
+     */
+	private void tick()
+	{
+		camera.beginStep();
+		input.take(tickInput);
+		if(GameConfig.flightTest > 0)
+		{
+			fly(TICK);
+		}
+		else
+		{
+			camera.acceptInput(TICK * 1000.0f, tickInput);
+		}
+		npcs.step(TICK);
+
+		lastSkyRotation = skyRotation;
+		skyRotation += 0.05f;
+		if(skyRotation > 360)
+		{
+			skyRotation -= 360;
+			lastSkyRotation -= 360;
+		}
+		lastDaytime = daytime;
+		daytime++;
+		if(daytime >= DAY_LENGTH)
+		{
+			daytime -= DAY_LENGTH;
+			lastDaytime -= DAY_LENGTH;
+		}
+		ticks++;
+	}
+
+
+	/**
+     * Move the camera along the scripted flight, and finish when it is over.
+     */
+	private void fly(float seconds)
+	{
+		flightTime += seconds;
+		camera.setX(FLIGHT_SPEED * flightTime);
+		camera.setY(0.0f);
+		camera.setZ(0.0f);
+		if(flightTime >= GameConfig.flightTest)
+		{
+			finished = true;
+		}
+	}
+
+
+	private void publish(long time)
+	{
+		FrameSnapshot snapshot = snapshots.getBack();
+		snapshot.setTime(time, ticks);
+		snapshot.setCamera(camera);
+		snapshot.setSky(lastDaytime, daytime, lastSkyRotation, skyRotation);
+		snapshot.setNpcs(npcs);
+		snapshots.publish();
+	}
+
+
+	/**
+     * The latest published state. Only the render thread may call this, and
+     * the snapshot is its own until the next call.
+     */
+	public FrameSnapshot read()
+	{
+		return snapshots.read();
+	}
+
+
+	/**
+     * Count time and run ticks only while running, i.e. while the game is
+     * played rather than in the menu.
+     */
+	public void setRunning(boolean running) {
+		this.running = running;
+	}
+
+
+	/**
+     * Whether the scripted flight is over.
+     */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public static float getFlightSpeed() {
+		return FLIGHT_SPEED;
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the height field class. It holds one height per heightmap sample,
+ * row after row, either in a single flat array or in a memory-mapped raw
+ * heightmap file. Mapped heights are read from the file only when they are
+ * sampled, so a terrain larger than the heap can still be used.
+ *
+ * Raw files have no header: little-endian unsigned 16-bit samples (.r16) or
+ * 32-bit floats (.raw), as many rows as columns. Both are normalized, 0 to
+ * 65535 or 0.0 to 1.0, and scaled to the terrain's highest altitude.
+ *
+ */
+
+package src;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public class HeightField {
+
+	/**
+     * Largest part of a raw file mapped at once. FileChannel.map takes at
+     * most 2 GB, so bigger files are mapped in several regions of whole rows.
+     */
+	private static final long REGION_BYTES = 1L << 30;
+
+	private int rows, columns;
+	private float offset;
+
+	private float[] heights;
+
+	private ByteBuffer[] regions;
+	private int regionRows;
+	private int sampleBytes;
+	private float scale;
+
+
+	/**
+     * A field of rows by columns heights, all zero.
+     */
+	public HeightField(int rows, int columns)
+	{
+		this.rows = rows;
+		this.columns = columns;
+		heights = new float[rows * columns];
+	}
+
+	private HeightField(int rows, int columns, ByteBuffer[] regions, int regionRows, int sampleBytes, float scale)
+	{
+		this.rows = rows;
+		this.columns = columns;
+		this.regions = regions;
+		this.regionRows = regionRows;
+		this.sampleBytes = sampleBytes;
+		this.scale = scale;
+	}
+
+
+	/**
+     * Map a square raw heightmap of sampleBytes (2 or 4) bytes per sample.
+     * Heights are scaled to 0 .. scale.
+     */
+	public static HeightField map(File file, int sampleBytes, float scale) throws IOException
+	{
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = input.getChannel();
+			long samples = channel.size() / sampleBytes;
+			int size = (int) Math.round(Math.sqrt(samples));
+			if(size < 2 || (long) size * size * sampleBytes != channel.size())
+			{
+				throw new IOException(file + " is not a square heightmap of " + sampleBytes + " byte samples");
+			}
+
+			long rowBytes = (long) size * sampleBytes;
+			int regionRows = (int) Math.max(1, Math.min(size, REGION_BYTES / rowBytes));
+			ByteBuffer[] regions = new ByteBuffer[(size + regionRows - 1) / regionRows];
+			for(int r = 0; r < regions.length; r++)
+			{
+				long first = (long) r * regionRows;
+				long count = Math.min(regionRows, size - first);
+				regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, first * rowBytes, count * rowBytes)
+						.order(ByteOrder.LITTLE_ENDIAN);
+			}
+			// The mappings stay valid after the file is closed.
+			return new HeightField(size, size, regions, regionRows, sampleBytes, scale);
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+
+	/**
+     * The height at a sample, plus the offset.
+     */
+	public float get(int row, int column)
+	{
+		return sample(row, column) + offset;
+	}
+
+
+	/**
+     * The height at a sample as it is stored, without the offset.
+     */
+	public float sample(int row, int column)
+	{
+		if(heights != null)
+		{
+			return heights[row * columns + column];
+		}
+		ByteBuffer region = regions[row / regionRows];
+		int index = (row % regionRows) * columns + column;
+		if(sampleBytes == 2)
+		{
+			float alt = (region.getShort(index * 2) & 0xFFFF)/65536.0f;
+			return alt * scale;
+		}
+		return region.getFloat(index * 4) * scale;
+	}
+
+	public void set(int row, int column, float height)
+	{
+		if(heights == null)
+		{
+			throw new UnsupportedOperationException("Mapped heights are read only");
+		}
+		heights[row * columns + column] = height;
+	}
+
+
+	/**
+     * Whether the heights are read from a mapped file rather than held in memory.
+     */
+	public boolean isMapped() {
+		return heights == null;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+
+	/**
+     * Amount added to every stored height by get(), so the field can be
+     * moved up or down without rewriting (or being able to write) the samples.
+     */
+	public float getOffset() {
+		return offset;
+	}
+
+	public void setOffset(float offset) {
+		this.offset = offset;
+	}
+}
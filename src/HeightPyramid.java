@@ -0,0 +1,310 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the height pyramid class. It keeps the lowest and highest height
+ * of square blocks of a height field, level after level, up to one block
+ * that covers the whole field. A ray is tested against a block's highest
+ * height before any of the samples inside it, so a ray through open sky
+ * is answered from a few blocks rather than every quad it crosses.
+ *
+ * Coordinates are in samples: u is the column and v the row, and the
+ * height between samples is interpolated bilinearly, like heightAt().
+ *
+ */
+
+package src;
+
+public class HeightPyramid {
+
+	/**
+     * Quads along each side of a block on the lowest level. The quads of
+     * such a block are tested one by one.
+     */
+	private static final int LEAF = 4;
+
+	private HeightField altitude;
+	private int quadRows, quadColumns;
+
+	/**
+     * Blocks per column and row on each level, and their lowest and highest
+     * heights, row-major.
+     */
+	private int[] levelRows, levelColumns;
+	private float[][] mins, maxs;
+
+
+	/**
+     * A ray being intersected, so several threads can test theirs at once.
+     */
+	private static class Ray {
+		float u0, v0, y0, du, dv, dy;
+	}
+
+
+	/**
+     * Build the pyramid of the stored heights (without the offset) of a field.
+     */
+	public HeightPyramid(HeightField altitude)
+	{
+		this.altitude = altitude;
+		quadRows = altitude.getRows() - 1;
+		quadColumns = altitude.getColumns() - 1;
+
+		int levels = 1;
+		for(int size = LEAF; size < Math.max(quadRows, quadColumns); size *= 2)
+		{
+			levels++;
+		}
+		levelRows = new int[levels];
+		levelColumns = new int[levels];
+		mins = new float[levels][];
+		maxs = new float[levels][];
+
+		levelRows[0] = (quadRows + LEAF - 1) / LEAF;
+		levelColumns[0] = (quadColumns + LEAF - 1) / LEAF;
+		mins[0] = new float[levelRows[0] * levelColumns[0]];
+		maxs[0] = new float[levelRows[0] * levelColumns[0]];
+		for(int r = 0; r < levelRows[0]; r++)
+		{
+			for(int c = 0; c < levelColumns[0]; c++)
+			{
+				float low = Float.POSITIVE_INFINITY, high = Float.NEGATIVE_INFINITY;
+				for(int i = r * LEAF; i <= Math.min((r + 1) * LEAF, quadRows); i++)
+				{
+					for(int j = c * LEAF; j <= Math.min((c + 1) * LEAF, quadColumns); j++)
+					{
+						float h = altitude.sample(i, j);
+						low = Math.min(low, h);
+						high = Math.max(high, h);
+					}
+				}
+				mins[0][r * levelColumns[0] + c] = low;
+				maxs[0][r * levelColumns[0] + c] = high;
+			}
+		}
+
+		for(int l = 1; l < levels; l++)
+		{
+			int below = levelColumns[l - 1];
+			levelRows[l] = (levelRows[l - 1] + 1) / 2;
+			levelColumns[l] = (below + 1) / 2;
+			mins[l] = new float[levelRows[l] * levelColumns[l]];
+			maxs[l] = new float[levelRows[l] * levelColumns[l]];
+			for(int r = 0; r < levelRows[l]; r++)
+			{
+				for(int c = 0; c < levelColumns[l]; c++)
+				{
+					float low = Float.POSITIVE_INFINITY, high = Float.NEGATIVE_INFINITY;
+					for(int i = 2 * r; i < Math.min(2 * r + 2, levelRows[l - 1]); i++)
+					{
+						for(int j = 2 * c; j < Math.min(2 * c + 2, below); j++)
+						{
+							low = Math.min(low, mins[l - 1][i * below + j]);
+							high = Math.max(high, maxs[l - 1][i * below + j]);
+						}
+					}
+					mins[l][r * levelColumns[l] + c] = low;
+					maxs[l][r * levelColumns[l] + c] = high;
+				}
+			}
+		}
+	}
+
+
+	/**
+     * First point of the ray (u0, v0, y0) + t (du, dv, dy), with t from tMin
+     * to tMax, that is on or below the field. Returns its t, or NaN if the
+     * ray stays above the field or misses it. A ray that starts below the
+     * field hits it at tMin.
+     */
+	public float intersect(float u0, float v0, float y0, float du, float dv, float dy, float tMin, float tMax)
+	{
+		Ray ray = new Ray();
+		ray.u0 = u0;
+		ray.v0 = v0;
+		ray.y0 = y0;
+		ray.du = du;
+		ray.dv = dv;
+		ray.dy = dy;
+		return intersect(ray, mins.length - 1, 0, 0, tMin, tMax);
+	}
+
+
+	/**
+     * Test the ray against block (r, c) of a level, then against the blocks
+     * below it in the order the ray enters them. Blocks do not overlap, so
+     * the first hit found is the nearest.
+     */
+	private float intersect(Ray ray, int level, int r, int c, float tMin, float tMax)
+	{
+		int size = LEAF << level;
+		float[] span = {tMin, tMax};
+		if(!clip(ray, c * size, r * size, Math.min((c + 1) * size, quadColumns), Math.min((r + 1) * size, quadRows), span))
+		{
+			return Float.NaN;
+		}
+		float ya = ray.y0 + ray.dy * span[0], yb = ray.y0 + ray.dy * span[1];
+		int block = r * levelColumns[level] + c;
+		if(Math.min(ya, yb) > maxs[level][block])
+		{
+			return Float.NaN;
+		}
+		if(Math.max(ya, yb) < mins[level][block])
+		{
+			return span[0];
+		}
+
+		if(level == 0)
+		{
+			float first = Float.NaN;
+			for(int i = r * LEAF; i < Math.min((r + 1) * LEAF, quadRows); i++)
+			{
+				for(int j = c * LEAF; j < Math.min((c + 1) * LEAF, quadColumns); j++)
+				{
+					float t = intersectQuad(ray, i, j, span[0], Float.isNaN(first) ? span[1] : first);
+					if(!Float.isNaN(t) && !(t >= first))
+					{
+						first = t;
+					}
+				}
+			}
+			return first;
+		}
+
+		int[] children = new int[4];
+		float[] entries = new float[4];
+		int count = 0;
+		int childSize = size / 2;
+		for(int i = 2 * r; i < Math.min(2 * r + 2, levelRows[level - 1]); i++)
+		{
+			for(int j = 2 * c; j < Math.min(2 * c + 2, levelColumns[level - 1]); j++)
+			{
+				float[] child = {span[0], span[1]};
+				if(clip(ray, j * childSize, i * childSize, Math.min((j + 1) * childSize, quadColumns),
+						Math.min((i + 1) * childSize, quadRows), child))
+				{
+					// Insert in order of entry.
+					int k = count++;
+					while(k > 0 && entries[k - 1] > child[0])
+					{
+						children[k] = children[k - 1];
+						entries[k] = entries[k - 1];
+						k--;
+					}
+					children[k] = i * levelColumns[level - 1] + j;
+					entries[k] = child[0];
+				}
+			}
+		}
+		for(int k = 0; k < count; k++)
+		{
+			int i = children[k] / levelColumns[level - 1], j = children[k] % levelColumns[level - 1];
+			float t = intersect(ray, level - 1, i, j, span[0], span[1]);
+			if(!Float.isNaN(t))
+			{
+				return t;
+			}
+		}
+		return Float.NaN;
+	}
+
+
+	/**
+     * First t from tMin to tMax where the ray is on or below quad (row,
+     * column), or NaN. Along the ray the bilinear height is a quadratic in t,
+     * so the crossing is solved for directly.
+     */
+	private float intersectQuad(Ray ray, int row, int column, float tMin, float tMax)
+	{
+		float[] span = {tMin, tMax};
+		if(!clip(ray, column, row, column + 1, row + 1, span))
+		{
+			return Float.NaN;
+		}
+		double h00 = altitude.sample(row, column), h01 = altitude.sample(row, column + 1);
+		double h10 = altitude.sample(row + 1, column), h11 = altitude.sample(row + 1, column + 1);
+		double e1 = h01 - h00, e2 = h10 - h00, e3 = h00 - h01 - h10 + h11;
+		double du = ray.du, dv = ray.dv;
+		double a = ray.u0 - column, b = ray.v0 - row;
+
+		// Ray height minus terrain height: qa t^2 + qb t + qc.
+		double qa = -e3 * du * dv;
+		double qb = ray.dy - (e1 * du + e2 * dv + e3 * (a * dv + b * du));
+		double qc = ray.y0 - (h00 + e1 * a + e2 * b + e3 * a * b);
+
+		double start = span[0], end = span[1];
+		if((qa * start + qb) * start + qc <= 0)
+		{
+			return span[0];
+		}
+		boolean below = (qa * end + qb) * end + qc <= 0;
+		double t = Double.NaN;
+		if(Math.abs(qa) < 1e-12)
+		{
+			if(qb != 0)
+			{
+				t = -qc / qb;
+			}
+		}
+		else
+		{
+			double discriminant = qb * qb - 4 * qa * qc;
+			if(discriminant >= 0)
+			{
+				double q = -0.5 * (qb + Math.copySign(Math.sqrt(discriminant), qb));
+				double r1 = q / qa, r2 = q != 0 ? qc / q : r1;
+				double low = Math.min(r1, r2), high = Math.max(r1, r2);
+				t = low >= start ? low : high;
+			}
+		}
+		if(t >= start && t <= end)
+		{
+			return (float) t;
+		}
+		return below ? span[1] : Float.NaN;
+	}
+
+
+	/**
+     * Narrow span to the part of the ray over the rectangle from (uMin, vMin)
+     * to (uMax, vMax). False if the ray does not cross it.
+     */
+	private static boolean clip(Ray ray, float uMin, float vMin, float uMax, float vMax, float[] span)
+	{
+		return clip(ray.u0, ray.du, uMin, uMax, span) && clip(ray.v0, ray.dv, vMin, vMax, span);
+	}
+
+	private static boolean clip(float origin, float direction, float low, float high, float[] span)
+	{
+		if(direction == 0)
+		{
+			return origin >= low && origin <= high;
+		}
+		float t0 = (low - origin) / direction, t1 = (high - origin) / direction;
+		if(t0 > t1)
+		{
+			float swap = t0;
+			t0 = t1;
+			t1 = swap;
+		}
+		span[0] = Math.max(span[0], t0);
+		span[1] = Math.min(span[1], t1);
+		return span[0] <= span[1];
+	}
+
+
+	/**
+     * Memory of the block heights.
+     */
+	public long getBytes()
+	{
+		long bytes = 0;
+		for(float[] level : mins)
+		{
+			bytes += level.length * 8L;
+		}
+		return bytes;
+	}
+}
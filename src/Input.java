@@ -0,0 +1,88 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the input class. LWJGL only reads the keyboard and the mouse on
+ * the thread that owns the window, so that thread captures them here every
+ * frame, and the simulation takes a copy every tick. Mouse motion adds up
+ * between copies, so none is lost when frames and ticks do not line up.
+ *
+ */
+
+package src;
+
+import org.lwjgl.input.Keyboard;
+import org.lwjgl.input.Mouse;
+import org.lwjgl.opengl.Display;
+
+public class Input {
+
+	private boolean[] keys = new boolean[Keyboard.KEYBOARD_SIZE];
+	private boolean[] buttons = new boolean[2];
+	private int dx, dy;
+	private boolean insideWindow;
+	private boolean active;
+
+
+	/**
+     * Read the keyboard, the mouse and the window. Call on the window's thread.
+     */
+	public synchronized void capture()
+	{
+		for(int key = 0; key < keys.length; key++)
+		{
+			keys[key] = Keyboard.isKeyDown(key);
+		}
+		for(int button = 0; button < buttons.length; button++)
+		{
+			buttons[button] = Mouse.isButtonDown(button);
+		}
+		dx += Mouse.getDX();
+		dy += Mouse.getDY();
+		insideWindow = Mouse.isInsideWindow();
+		active = Display.isActive();
+	}
+
+
+	/**
+     * Copy the input captured so far into into, and start adding up mouse
+     * motion again from zero.
+     */
+	public synchronized void take(Input into)
+	{
+		System.arraycopy(keys, 0, into.keys, 0, keys.length);
+		System.arraycopy(buttons, 0, into.buttons, 0, buttons.length);
+		into.dx = dx;
+		into.dy = dy;
+		into.insideWindow = insideWindow;
+		into.active = active;
+		dx = 0;
+		dy = 0;
+	}
+
+
+	public boolean isKeyDown(int key) {
+		return keys[key];
+	}
+
+	public boolean isButtonDown(int button) {
+		return buttons[button];
+	}
+
+	public int getDX() {
+		return dx;
+	}
+
+	public int getDY() {
+		return dy;
+	}
+
+	public boolean isInsideWindow() {
+		return insideWindow;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+}
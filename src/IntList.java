@@ -0,0 +1,71 @@
+/** 
+ * 3D Video Game: Journey of a Dragon.
+ * 
+ * Author: Jihan Li
+ * 
+ * This is a growable list of primitive ints. It avoids boxing 
+ * every parsed index into its own object.
+ * 
+ */
+
+package src;
+
+import java.util.Arrays;
+
+public class IntList {
+	
+	private int[] data;
+	private int size;
+	
+	public IntList()
+	{
+		this(1024);
+	}
+	
+	public IntList(int capacity)
+	{
+		data = new int[Math.max(capacity, 16)];
+	}
+	
+	
+	/** 
+     * Append a value, growing the backing array if needed.
+     */
+	public void add(int value)
+	{
+		if(size == data.length)
+		{
+			data = Arrays.copyOf(data, data.length + (data.length >> 1));
+		}
+		data[size++] = value;
+	}
+	
+	public int get(int index)
+	{
+		return data[index];
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public void clear()
+	{
+		size = 0;
+	}
+	
+	
+	/** 
+     * Return the backing array. Only the first size() values are valid.
+     */
+	public int[] array()
+	{
+		return data;
+	}
+	
+	public int[] toArray()
+	{
+		return Arrays.copyOf(data, size);
+	}
+}
@@ -4,6 +4,22 @@
  * Author: Jihan Li
  * 
  * This is the map class. It creates a terrain based on the input heightmap.
+ * The terrain is split into chunks of CHUNK_QUADS by CHUNK_QUADS quads, and
+ * only the chunks inside the view frustum are drawn. Each chunk is drawn at
+ * the coarsest detail level whose error stays under GameConfig.terrainError
+ * pixels on screen.
+ * 
+ * The world is a grid of tiles, one heightmap each (see TerrainTile), and the
+ * map streams them around the camera: tiles within GameConfig.tileRadius are
+ * loaded and meshed on a background thread, their chunks are uploaded a few
+ * per frame, and tiles out of range are evicted, least recently used first,
+ * while the tiles use more than GameConfig.tileBudget megabytes. Neighboring
+ * tiles share their edge row or column of samples.
+ * 
+ * With GameConfig.gpuTerrain the heights stay on the GPU instead: each tile
+ * is a float texture, and every chunk is drawn with one shared flat grid
+ * patch that the Terrain shader displaces, shades and colors from the
+ * heights and a color ramp texture.
  * 
  * Reference: 
  *  
@@ -15,42 +31,102 @@
 package src;
 
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.imageio.ImageIO;
 
 import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.Display;
+import org.lwjgl.opengl.GLContext;
 import org.lwjgl.util.vector.Vector2f;
 import org.lwjgl.util.vector.Vector3f;
-import org.lwjgl.util.vector.Vector4f;
-import org.newdawn.slick.Color;
 import org.newdawn.slick.opengl.PNGDecoder;
 
 public class Map {
 	
+	/** 
+     * Size of a terrain chunk in quads along each side.
+     */
+	public static final int CHUNK_QUADS = 64;
+	
+	/** 
+     * Texels of the color ramp used by displaced terrain.
+     */
+	private static final int RAMP_SIZE = 1024;
+	
+	/** 
+     * Half the size of a tile along z (map rows) and x (map columns).
+     */
 	private int width = 1600;
 	private int height = 1600;
-	private int srcW;
-	private int srcH;
+	private float maxAltitude = 300.0f;
+	private float heightOffset;
 	
-	private int terrain;
-		
-
-	private float[][] altitude;
-	private Vector4f[][] colors;
-	private Vector3f[][] normals;
+	/** 
+     * Tiles by position in the world grid (see tileKey), and the thread that loads them.
+     */
+	private ConcurrentHashMap<Long, TerrainTile> tiles = new ConcurrentHashMap<Long, TerrainTile>();
 	
-	private float maxAltitude = 300.0f;
+	/** 
+     * The tile the last height query found. Queries mostly stay on one tile,
+     * and this skips looking it up in tiles, which boxes the key. Cleared
+     * whenever a tile is removed or replaced.
+     */
+	private volatile TerrainTile lastTile;
+	private ExecutorService loader;
+	private String heightMap;
+	private boolean tiled;
+	private long frame;
+	
+	private boolean useBuffers;
+	private boolean displaced;
+	private Frustum frustum = new Frustum();
+	
+	/** 
+     * Displaced terrain: the grid patch, the color ramp and the shader's uniforms.
+     */
+	private int patchBuffer, rampTexture;
+	private int displacedLocation, heightsLocation, rampLocation;
+	private int patchOriginLocation, samplesLocation, placementLocation, maxAltitudeLocation;
+	
+	/** 
+     * Index buffers by chunk size, level and neighbor levels, each as {buffer, index count},
+     * and full detail indices by chunk size for display lists.
+     */
+	private HashMap<Integer, int[]> indexBuffers = new HashMap<Integer, int[]>();
+	private HashMap<Integer, ShortBuffer> listIndices = new HashMap<Integer, ShortBuffer>();
+	
+	private int drawnChunks, culledChunks;
+	private int triangles, fullTriangles;
+	private int[] levelTriangles = new int[TerrainChunk.LEVELS];
+	private int readyTiles, loadingTiles, evictedTiles;
+	private long tileBytes;
 	
 	private Shader mapShader = new Shader();
 	private int diffuseLocation;
@@ -63,182 +139,779 @@ public class Map {
 	}
 	
 	
-	public float[][] getAltitude()
+	/** 
+     * Half the size of a tile in world units along x (map columns) and z (map rows).
+     */
+	public float getExtentX()
+	{
+		return height;
+	}
+	
+	public float getExtentZ()
 	{
-		return altitude;
+		return width;
 	}
 	
 	
-	public float getWidth()
+	/** 
+     * Amount added to every terrain height returned by heightAt(). Set it 
+     * before loadTerrain().
+     */
+	public void setHeightOffset(float heightOffset)
 	{
-		return srcW;
+		this.heightOffset = heightOffset;
 	}
 	
-	public float getHeight()
+	public float getHeightOffset()
 	{
-		return srcH;
+		return heightOffset;
 	}
 	
 	
 	/** 
-     * Load the height map of a terrain.
+     * Load the terrain named heightMap. In a tiled world every tile has its 
+     * own heightmap, res/heightMap_<row>_<column> (.r16, .raw or .png), and 
+     * tile (0, 0) is centered on the origin. Without tile (0, 0) the world is
+     * the single heightmap res/heightMap. The tile at the origin is loaded 
+     * before this returns; the others stream in through update().
      */
 	public void loadTerrain(String heightMap) throws IOException
 	{
-		BufferedImage src = ImageIO.read(new File("res/" + heightMap + ".png"));
-        srcW = src.getWidth();
-        srcH = src.getHeight();
-        
-        altitude = new float[srcW][srcH];
-        Color color;
-        float alt;
-        for(int i = 0; i < srcW; i++)
-        {
-        	for(int j = 0; j < srcH; j++)
-        	{
-        		color = new Color(src.getRGB(i, j));
-        		alt = color.getRed()/256.0f;
-        		altitude[i][j] = alt * maxAltitude;
-        	}
-        }
-        
-        
-        getNormal();
-        getColor();
+		this.heightMap = heightMap;
+		String first = "res/" + heightMap + "_0_0";
+		tiled = new File(first + ".r16").exists() || new File(first + ".raw").exists() || new File(first + ".png").exists();
 		
         mapShader.generateShader("Terrain");
 		
         glBindAttribLocation(mapShader.getShaderProgram(), diffuseLocation, "Kd");
 		diffuseLocation = glGetAttribLocation(mapShader.getShaderProgram(), "Kd");
+		ContextCapabilities caps = GLContext.getCapabilities();
+		useBuffers = !GameConfig.displayLists && caps.OpenGL15;
+		
+		// Displacement needs float textures and texture reads in the vertex shader.
+		displaced = GameConfig.gpuTerrain && useBuffers && (caps.OpenGL30 || (caps.GL_ARB_texture_rg && caps.GL_ARB_texture_float))
+				&& glGetInteger(GL_MAX_VERTEX_TEXTURE_IMAGE_UNITS) > 0;
+		if(GameConfig.gpuTerrain && !displaced)
+		{
+			System.err.println("GPU terrain is not supported, the terrain vertices are built on the CPU.");
+		}
+		if(displaced)
+		{
+			initDisplacement();
+		}
+		
+		loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "Terrain loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
         
-        initMap();
+		TerrainTile origin = createTile(0, 0);
+		origin.load(tilePath(0, 0));
+		if(origin.getState() == TerrainTile.State.MISSING)
+		{
+			throw new FileNotFoundException("No heightmap for res/" + heightMap);
+		}
+		while(origin.getState() == TerrainTile.State.MESHED)
+		{
+			uploadChunk(origin);
+		}
+		tiles.put(tileKey(0, 0), origin);
+		lastTile = null;
+	}
+	
+	
+	/** 
+     * Put heights that are already in memory at a tile of the world, for 
+     * height queries without loading or drawing anything (e.g. in the benchmark).
+     */
+	public void addTile(int row, int column, HeightField altitude)
+	{
+		TerrainTile tile = createTile(row, column);
+		tile.setHeights(altitude);
+		tiles.put(tileKey(row, column), tile);
+		lastTile = null;
+	}
+	
+	private TerrainTile createTile(int row, int column)
+	{
+		return new TerrainTile(row, column, width, height, maxAltitude, heightOffset, displaced);
+	}
+	
+	
+	/** 
+     * Create the grid patch shared by all displaced chunks, where vertex 
+     * (r, c) is simply at (r, c), and the color ramp texture.
+     */
+	private void initDisplacement()
+	{
+		int program = mapShader.getShaderProgram();
+		displacedLocation = glGetUniformLocation(program, "displaced");
+		heightsLocation = glGetUniformLocation(program, "heights");
+		rampLocation = glGetUniformLocation(program, "ramp");
+		patchOriginLocation = glGetUniformLocation(program, "patchOrigin");
+		samplesLocation = glGetUniformLocation(program, "samples");
+		placementLocation = glGetUniformLocation(program, "placement");
+		maxAltitudeLocation = glGetUniformLocation(program, "maxAltitude");
+		
+		FloatBuffer patch = BufferUtils.createFloatBuffer((CHUNK_QUADS + 1) * (CHUNK_QUADS + 1) * 2);
+		for(int r = 0; r <= CHUNK_QUADS; r++)
+		{
+			for(int c = 0; c <= CHUNK_QUADS; c++)
+			{
+				patch.put(r).put(c);
+			}
+		}
+		patch.flip();
+		patchBuffer = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, patchBuffer);
+		glBufferData(GL_ARRAY_BUFFER, patch, GL_STATIC_DRAW);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		
+		// Texel k holds the color at the middle of its height range, as getColor() computes it.
+		float[] color = new float[RAMP_SIZE * 4];
+		for(int k = 0; k < RAMP_SIZE; k++)
+		{
+			TerrainTile.rampColor((k + 0.5f) / RAMP_SIZE, color, k * 4);
+		}
+		FloatBuffer ramp = BufferUtils.createFloatBuffer(color.length);
+		ramp.put(color).flip();
+		rampTexture = glGenTextures();
+		glBindTexture(GL_TEXTURE_1D, rampTexture);
+		glTexParameteri(GL_TEXTURE_1D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+		glTexParameteri(GL_TEXTURE_1D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		glTexParameteri(GL_TEXTURE_1D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		glTexImage1D(GL_TEXTURE_1D, 0, GL_RGBA8, RAMP_SIZE, 0, GL_RGBA, GL_FLOAT, ramp);
+		glBindTexture(GL_TEXTURE_1D, 0);
+	}
+	
+	
+	/** 
+     * Heightmap of a tile without its extension, or null if there is none.
+     */
+	private String tilePath(int row, int column)
+	{
+		if(tiled)
+		{
+			return "res/" + heightMap + "_" + row + "_" + column;
+		}
+		return (row == 0 && column == 0) ? "res/" + heightMap : null;
+	}
+	
+	private static long tileKey(int row, int column)
+	{
+		return ((long) row << 32) | (column & 0xFFFFFFFFL);
+	}
+	
+	
+	/** 
+     * Row or column of the tile that covers a position along z or x, for
+     * tiles extent units from their center to their edge.
+     */
+	private static int tileIndex(float position, int extent)
+	{
+		return (int) Math.floor((position + extent) / (2.0f * extent));
 	}
 	
 	
 	/** 
-     * Generate the terrain list and use the shaders.
+     * Stream the tiles around a position. Tiles within GameConfig.tileRadius
+     * along x and z are queued for the loader, nearest first, at most 
+     * GameConfig.tileUploads finished chunks are uploaded, and tiles out of
+     * range are dropped when over budget. Call it once a frame on the render
+     * thread; it never waits for the loader.
      */
-	private void initMap()
+	public void update(float x, float z)
 	{
-		terrain = glGenLists(1);
-		glNewList(terrain, GL_COMPILE);
+		frame++;
+		float radius = GameConfig.tileRadius;
+		int firstRow = tileIndex(z - radius, width), lastRow = tileIndex(z + radius, width);
+		int firstColumn = tileIndex(x - radius, height), lastColumn = tileIndex(x + radius, height);
+		
+		List<TerrainTile> requested = new ArrayList<TerrainTile>();
+		for(int row = firstRow; row <= lastRow; row++)
+		{
+			for(int column = firstColumn; column <= lastColumn; column++)
+			{
+				TerrainTile tile = tiles.get(tileKey(row, column));
+				if(tile == null)
+				{
+					tile = createTile(row, column);
+					tiles.put(tileKey(row, column), tile);
+					requested.add(tile);
+				}
+				tile.setLastUsed(frame);
+			}
+		}
+		
+		final float centerX = x, centerZ = z;
+		Collections.sort(requested, new Comparator<TerrainTile>() {
+			public int compare(TerrainTile a, TerrainTile b)
+			{
+				return Float.compare(distance(a, centerX, centerZ), distance(b, centerX, centerZ));
+			}
+		});
+		for(TerrainTile tile : requested)
 		{
-			//glMaterialf(GL_FRONT, GL_SHININESS, 128.0f);
-			for(int i = 0; i < srcW-1; i++)
-	        {	
-				glBegin(GL_TRIANGLE_STRIP);
-	        	for(int j = 0; j < srcH; j++)
-	        	{
-	        		glNormal3f(normals[i][j].x, normals[i][j].y, normals[i][j].z);
-	        		glVertexAttrib4f(diffuseLocation, colors[i][j].x, colors[i][j].y, colors[i][j].z, colors[i][j].w);
-	        		glVertex3f(j*2.0f/(srcH-1)*height-height, altitude[i][j], i*2.0f/(srcW-1)*width-width);
-	        		
-	        		glNormal3f(normals[i+1][j].x, normals[i+1][j].y, normals[i+1][j].z);
-	        		glVertexAttrib4f(diffuseLocation, colors[i][j].x, colors[i][j].y, colors[i][j].z, colors[i][j].w);
-	        		glVertex3f(j*2.0f/(srcH-1)*height-height, altitude[i+1][j], (i+1)*2.0f/(srcW-1)*width-width);
-	        	}
-	        	glEnd();
-	        }
+			queue(tile);
 		}
-		glEndList();
+		
+		uploadTiles();
+		evictTiles();
+	}
+	
+	private float distance(TerrainTile tile, float x, float z)
+	{
+		float dx = tile.getTileColumn() * 2.0f * height - x;
+		float dz = tile.getTileRow() * 2.0f * width - z;
+		return dx * dx + dz * dz;
 	}
 	
 	
 	/** 
-     * Get normal vector of the height map.
+     * Load a tile on the loader thread, unless it is cancelled first.
      */
-	private void getNormal()
+	private void queue(final TerrainTile tile)
 	{
-		normals = new Vector3f[srcW][srcH];
-		for(int x = 0; x < srcW; x++)
+		final String path = tilePath(tile.getTileRow(), tile.getTileColumn());
+		if(path == null)
 		{
-			for(int z = 0; z < srcH; z++)
-			{	
-				if(x != 0 && z != srcH-1)
+			tile.setState(TerrainTile.State.MISSING);
+			return;
+		}
+		loader.execute(new Runnable() {
+			public void run()
+			{
+				if(tile.isCancelled())
+				{
+					return;
+				}
+				try
 				{
-					float sum = (float) Math.sqrt(Math.pow(altitude[x][z]-altitude[x-1][z],2) + Math.pow(altitude[x][z]-altitude[x][z+1],2) + 1.0f);
-					normals[x][z] = new Vector3f(-(altitude[x][z]-altitude[x-1][z])/sum, 1.0f/sum, -(altitude[x][z]-altitude[x][z+1])/sum);
+					tile.load(path);
 				}
-				else if(x == 0 || z == srcH-1)
+				catch(Exception e)
 				{
-					normals[x][z] = new Vector3f(0, 1, 0);
+					e.printStackTrace();
+					tile.setState(TerrainTile.State.FAILED);
 				}
 			}
+		});
+	}
+	
+	
+	/** 
+     * Upload at most GameConfig.tileUploads chunks of the tiles the loader has finished.
+     */
+	private void uploadTiles()
+	{
+		int uploads = GameConfig.tileUploads;
+		for(TerrainTile tile : tiles.values())
+		{
+			while(uploads > 0 && tile.getState() == TerrainTile.State.MESHED)
+			{
+				uploadChunk(tile);
+				uploads--;
+			}
+		}
+	}
+	
+	
+	/** 
+     * Give a tile's next chunk a vertex buffer, or a display list when vertex
+     * buffers are not available. Display lists are always full detail. A 
+     * displaced tile uploads the next band of its height texture instead.
+     */
+	private void uploadChunk(TerrainTile tile)
+	{
+		if(tile.isDisplaced())
+		{
+			tile.uploadHeights();
+			return;
+		}
+		TerrainChunk chunk = tile.getNextUpload();
+		FloatBuffer vertices = tile.takeVertices();
+		if(useBuffers)
+		{
+			chunk.upload(vertices);
+		}
+		else
+		{
+			// Chunks on the far edges may be smaller, so indices are shared per size.
+			int size = lodKey(chunk.getRows(), chunk.getColumns(), 0, 0, 0, 0, 0);
+			ShortBuffer chunkIndices = listIndices.get(size);
+			if(chunkIndices == null)
+			{
+				chunkIndices = TerrainChunk.buildIndices(chunk.getRows(), chunk.getColumns());
+				listIndices.put(size, chunkIndices);
+			}
+			chunk.compileList(vertices, chunkIndices, diffuseLocation);
 		}
-		
 	}
 	
+	
 	/** 
-     * Get colors based on different heights.
+     * Forget tiles out of range that are still loading, missing or failed,
+     * and delete loaded ones, least recently in range first, until the tiles
+     * fit in GameConfig.tileBudget megabytes. Tiles in range are always kept.
      */
-	private void getColor()
+	private void evictTiles()
 	{
-		colors = new Vector4f[srcW][srcH];
-		for(int x = 0; x < srcW; x++)
+		List<TerrainTile> unused = new ArrayList<TerrainTile>();
+		long bytes = 0;
+		readyTiles = 0;
+		loadingTiles = 0;
+		
+		Iterator<TerrainTile> iterator = tiles.values().iterator();
+		while(iterator.hasNext())
 		{
-			for(int z = 0; z < srcH; z++)
-			{			
-				Vector4f color;
-				float pos = altitude[x][z] / (float)(maxAltitude);
+			TerrainTile tile = iterator.next();
+			TerrainTile.State state = tile.getState();
+			boolean inRange = tile.getLastUsed() == frame;
+			if(!inRange && (state == TerrainTile.State.LOADING || state == TerrainTile.State.MISSING 
+					|| state == TerrainTile.State.FAILED))
+			{
+				// A tile that comes back in range is simply queued again.
+				tile.cancel();
+				iterator.remove();
+				continue;
+			}
+			
+			if(state == TerrainTile.State.READY)
+			{
+				readyTiles++;
+			}
+			else if(state == TerrainTile.State.LOADING || state == TerrainTile.State.MESHED)
+			{
+				loadingTiles++;
+			}
+			if(state != TerrainTile.State.LOADING)
+			{
+				bytes += tile.getBytes();
+			}
+			if(!inRange && state != TerrainTile.State.LOADING)
+			{
+				unused.add(tile);
+			}
+		}
 		
-				if(pos > 0.85f)
+		Collections.sort(unused, new Comparator<TerrainTile>() {
+			public int compare(TerrainTile a, TerrainTile b)
+			{
+				return Long.compare(a.getLastUsed(), b.getLastUsed());
+			}
+		});
+		long budget = (long) GameConfig.tileBudget << 20;
+		for(TerrainTile tile : unused)
+		{
+			if(bytes <= budget)
+			{
+				break;
+			}
+			tiles.remove(tileKey(tile.getTileRow(), tile.getTileColumn()));
+			if(lastTile == tile)
+			{
+				lastTile = null;
+			}
+			tile.cleanup();
+			bytes -= tile.getBytes();
+			if(tile.getState() == TerrainTile.State.READY)
+			{
+				readyTiles--;
+			}
+			else
+			{
+				loadingTiles--;
+			}
+			evictedTiles++;
+		}
+		tileBytes = bytes;
+	}
+	
+	
+	/** 
+     * Height of the terrain under a world position, interpolated between the 
+     * samples of whichever tile covers it. NaN where no tile is loaded. The 
+     * queries below are all safe to call from any thread, also while the
+     * render thread streams tiles in update().
+     */
+	public float heightAt(float x, float z)
+	{
+		int row = tileIndex(z, width), column = tileIndex(x, height);
+		TerrainTile tile = loadedTile(row, column);
+		if(tile == null)
+		{
+			return Float.NaN;
+		}
+		return tile.heightAt(x - column * 2.0f * height, z - row * 2.0f * width);
+	}
+	
+	
+	/** 
+     * Unit normal of the terrain under a world position, written to normal.
+     * False where no tile is loaded.
+     */
+	public boolean normalAt(float x, float z, Vector3f normal)
+	{
+		int row = tileIndex(z, width), column = tileIndex(x, height);
+		TerrainTile tile = loadedTile(row, column);
+		if(tile == null)
+		{
+			return false;
+		}
+		return tile.normalAt(x - column * 2.0f * height, z - row * 2.0f * width, normal);
+	}
+	
+	
+	/** 
+     * First point of the segment from (x0, y0, z0) to (x1, y1, z1) that is on 
+     * or below the terrain, as the fraction of the way along it, 0 to 1. NaN 
+     * if the segment stays above the terrain, or is only over tiles that are
+     * not loaded. Each tile skips the parts of the segment that pass above
+     * its height pyramid's blocks, so long rays through the sky are cheap.
+     */
+	public float intersect(float x0, float y0, float z0, float x1, float y1, float z1)
+	{
+		int firstRow = tileIndex(Math.min(z0, z1), width), lastRow = tileIndex(Math.max(z0, z1), width);
+		int firstColumn = tileIndex(Math.min(x0, x1), height), lastColumn = tileIndex(Math.max(x0, x1), height);
+		float first = Float.NaN;
+		for(int row = firstRow; row <= lastRow; row++)
+		{
+			for(int column = firstColumn; column <= lastColumn; column++)
+			{
+				TerrainTile tile = loadedTile(row, column);
+				if(tile == null)
 				{
-					color = new Vector4f(1.0f, 1.0f, 1.0f, 1.0f);
+					continue;
 				}
-				if(pos > 0.8f)
+				// Tiles do not overlap, so a nearer hit only shortens the search in the others.
+				float originX = column * 2.0f * height, originZ = row * 2.0f * width;
+				float t = tile.intersect(x0 - originX, y0, z0 - originZ, x1 - originX, y1, z1 - originZ,
+						0, Float.isNaN(first) ? 1 : first);
+				if(!Float.isNaN(t) && !(t >= first))
 				{
-					float i = pos - 0.8f;
-					color = new Vector4f((230/255f)*(1.0f-i) + (255/255f)*i, (230/255f)*(1.0f-i) + (255/255f)*i, (230/255f)*(1.0f-i) + (255/255f)*i, 1.0f);
+					first = t;
 				}
-				else if(pos > 0.7f)
+			}
+		}
+		return first;
+	}
+	
+	
+	/** 
+     * The tile at (row, column) if its heights can be queried, otherwise null.
+     */
+	private TerrainTile loadedTile(int row, int column)
+	{
+		TerrainTile tile = lastTile;
+		if(tile == null || tile.getTileRow() != row || tile.getTileColumn() != column)
+		{
+			tile = tiles.get(tileKey(row, column));
+			if(tile == null)
+			{
+				return null;
+			}
+			lastTile = tile;
+		}
+		TerrainTile.State state = tile.getState();
+		if(state != TerrainTile.State.MESHED && state != TerrainTile.State.READY)
+		{
+			return null;
+		}
+		return tile;
+	}
+	
+	
+	/** 
+     * Key of the index buffer for a chunk of rows by columns quads, its level
+     * and the levels across its first row, last row, first column and last column.
+     */
+	private static int lodKey(int rows, int columns, int level, int firstRow, int lastRow, int firstColumn, int lastColumn)
+	{
+		int key = rows * (CHUNK_QUADS + 1) + columns;
+		key = key * TerrainChunk.LEVELS + level;
+		key = key * TerrainChunk.LEVELS + firstRow;
+		key = key * TerrainChunk.LEVELS + lastRow;
+		key = key * TerrainChunk.LEVELS + firstColumn;
+		return key * TerrainChunk.LEVELS + lastColumn;
+	}
+	
+	
+	/** 
+     * The index buffer for chunk number c of a tile at its chosen level, 
+     * stitched to its neighbors' levels. Buffers are built the first time a
+     * combination is seen. Displaced chunks all use the full size grid patch,
+     * whose last rows and columns the shader folds onto the tile's edge.
+     */
+	private int[] indexBuffer(TerrainTile tile, int c)
+	{
+		TerrainChunk chunk = tile.getChunks().get(c);
+		int rows = tile.isDisplaced() ? CHUNK_QUADS : chunk.getRows();
+		int columns = tile.isDisplaced() ? CHUNK_QUADS : chunk.getColumns();
+		int level = tile.getChunkLevels()[c];
+		int row = c / tile.getChunkColumns(), column = c % tile.getChunkColumns();
+		// Only coarser neighbors matter; a finer neighbor stitches itself to this chunk.
+		int firstRow = neighborLevel(tile, row - 1, column, level);
+		int lastRow = neighborLevel(tile, row + 1, column, level);
+		int firstColumn = neighborLevel(tile, row, column - 1, level);
+		int lastColumn = neighborLevel(tile, row, column + 1, level);
+		
+		int key = lodKey(rows, columns, level, firstRow, lastRow, firstColumn, lastColumn);
+		int[] buffer = indexBuffers.get(key);
+		if(buffer == null)
+		{
+			ShortBuffer indices = TerrainChunk.buildIndices(rows, columns, 1 << level,
+					1 << firstRow, 1 << lastRow, 1 << firstColumn, 1 << lastColumn);
+			int ibo = glGenBuffers();
+			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ibo);
+			glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+			buffer = new int[]{ibo, indices.limit()};
+			indexBuffers.put(key, buffer);
+		}
+		return buffer;
+	}
+	
+	
+	/** 
+     * The coarser of level and the level of the chunk at (row, column) of a
+     * tile. The position may be over the tile's edge, in the next tile, which
+     * only counts when it is drawn and has the same size.
+     */
+	private int neighborLevel(TerrainTile tile, int row, int column, int level)
+	{
+		int rows = tile.getChunkRows(), columns = tile.getChunkColumns();
+		TerrainTile owner = tile;
+		if(row < 0 || row >= rows || column < 0 || column >= columns)
+		{
+			owner = tiles.get(tileKey(tile.getTileRow() + Math.floorDiv(row, rows), tile.getTileColumn() + Math.floorDiv(column, columns)));
+			if(owner == null || owner.getState() != TerrainTile.State.READY || owner.getChunkLevels() == null
+					|| owner.getWidth() != tile.getWidth() || owner.getHeight() != tile.getHeight())
+			{
+				return level;
+			}
+			row = Math.floorMod(row, rows);
+			column = Math.floorMod(column, columns);
+		}
+		return Math.max(level, owner.getChunkLevels()[row * columns + column]);
+	}
+
+
+	/** 
+     * Draw the terrain chunks of the loaded tiles that intersect the view 
+     * frustum, each at its level of detail. The frustum and eye are taken 
+     * from the projection and modelview the terrain is drawn with (see 
+     * ViewMatrices), so they are compared with the chunk bounds in the 
+     * terrain's own model space.
+     */
+	public void drawTerrain(FloatBuffer projection, FloatBuffer modelview) throws IOException
+	{
+		mapShader.enableShader();
+		frustum.update(projection, modelview);
+		drawnChunks = 0;
+		culledChunks = 0;
+		triangles = 0;
+		fullTriangles = 0;
+		Arrays.fill(levelTriangles, 0);
+		
+		// Levels are chosen for every tile first, since chunks on a tile's edge stitch to the next tile.
+		float pixelsPerUnit = Display.getHeight() * 0.5f * frustum.getProjectionScale();
+		for(TerrainTile tile : tiles.values())
+		{
+			if(tile.getState() != TerrainTile.State.READY)
+			{
+				continue;
+			}
+			List<TerrainChunk> chunks = tile.getChunks();
+			int[] chunkLevels = tile.getChunkLevels();
+			for(int c = 0; c < chunks.size(); c++)
+			{
+				if(useBuffers && GameConfig.terrainLod)
 				{
-					float i = pos - 0.8f;
-					color = new Vector4f((120/255f)*(1.0f-i) + (230/255f)*i, (99/255f)*(1.0f-i) + (230/255f)*i, (33/255f)*(1.0f-i) + (230/255f)*i, 1.0f);
+					chunkLevels[c] = chunks.get(c).selectLevel(frustum.getEyeX(), frustum.getEyeY(), frustum.getEyeZ(), 
+							pixelsPerUnit, GameConfig.terrainError);
 				}
-				else if(pos > 0.45f)
+				else
 				{
-					float i = (pos - 0.45f)/0.25f;
-					color = new Vector4f((118/255f)*(1.0f-i) + (120/255f)*i, (54/255f)*(1.0f-i) + (99/255f)*i, (35/255f)*(1.0f-i) + (33/255f)*i, 1.0f);
+					chunkLevels[c] = 0;
 				}
-				else if(pos > 0.38f)
+			}
+		}
+		
+		if(displaced)
+		{
+			glEnableClientState(GL_VERTEX_ARRAY);
+			glBindBuffer(GL_ARRAY_BUFFER, patchBuffer);
+			glVertexPointer(2, GL_FLOAT, 0, 0);
+			glActiveTexture(GL_TEXTURE1);
+			glBindTexture(GL_TEXTURE_1D, rampTexture);
+			glActiveTexture(GL_TEXTURE0);
+			glUniform1i(displacedLocation, 1);
+			glUniform1i(heightsLocation, 0);
+			glUniform1i(rampLocation, 1);
+			glUniform1f(maxAltitudeLocation, maxAltitude);
+		}
+		else if(useBuffers)
+		{
+			glEnableClientState(GL_VERTEX_ARRAY);
+			glEnableClientState(GL_NORMAL_ARRAY);
+			glEnableVertexAttribArray(diffuseLocation);
+		}
+		
+		int boundBuffer = -1;
+		for(TerrainTile tile : tiles.values())
+		{
+			if(tile.getState() != TerrainTile.State.READY)
+			{
+				continue;
+			}
+			if(displaced)
+			{
+				glBindTexture(GL_TEXTURE_2D, tile.getHeightTexture());
+				glUniform2f(samplesLocation, tile.getWidth(), tile.getHeight());
+				glUniform4f(placementLocation, width, height, tile.getOriginX(), tile.getOriginZ());
+			}
+			List<TerrainChunk> chunks = tile.getChunks();
+			for(int c = 0; c < chunks.size(); c++)
+			{
+				TerrainChunk chunk = chunks.get(c);
+				if(!chunk.isVisible(frustum))
 				{
-					float i = (pos - 0.38f)/0.1f;
-					color = new Vector4f((236/255f)*(1f-i) + (118/255f)*i, (238/255f)*(1f-i) + (54/255f)*i, (182/255f)*(1f-i) + (35/255f)*i, 1.0f);
+					culledChunks++;
+					continue;
 				}
-				else if(pos > 0.2f)
+				drawnChunks++;
+				
+				int chunkTriangles = chunk.getIndexCount() / 3;
+				if(useBuffers)
 				{
-					float i = pos - 0.38f;
-					color = new Vector4f((128/255f)*(1f-i) + (236/255f)*i, (128/255f)*(1f-i) + (238/255f)*i, (255/255f)*(1f-i) + (182/255f)*i, 0.7f*(1f-i) + i);
+					int[] buffer = indexBuffer(tile, c);
+					if(buffer[0] != boundBuffer)
+					{
+						glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, buffer[0]);
+						boundBuffer = buffer[0];
+					}
+					if(displaced)
+					{
+						glUniform2f(patchOriginLocation, chunk.getFirstRow(), chunk.getFirstColumn());
+						glDrawElements(GL_TRIANGLES, buffer[1], GL_UNSIGNED_SHORT, 0);
+					}
+					else
+					{
+						chunk.draw(diffuseLocation, buffer[1]);
+					}
+					chunkTriangles = buffer[1] / 3;
 				}
 				else
 				{
-					color = new Vector4f((128/255f), (128/255f), (255/255f), 0.7f);
+					chunk.draw(diffuseLocation, chunk.getIndexCount());
 				}
-				
-				colors[x][z] = color;
-				
+				triangles += chunkTriangles;
+				fullTriangles += chunk.getIndexCount() / 3;
+				levelTriangles[tile.getChunkLevels()[c]] += chunkTriangles;
 			}
 		}
+		
+		if(displaced)
+		{
+			glUniform1i(displacedLocation, 0);
+			glBindTexture(GL_TEXTURE_2D, 0);
+			glActiveTexture(GL_TEXTURE1);
+			glBindTexture(GL_TEXTURE_1D, 0);
+			glActiveTexture(GL_TEXTURE0);
+			glDisableClientState(GL_VERTEX_ARRAY);
+			glBindBuffer(GL_ARRAY_BUFFER, 0);
+			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+		}
+		else if(useBuffers)
+		{
+			glDisableVertexAttribArray(diffuseLocation);
+			glDisableClientState(GL_NORMAL_ARRAY);
+			glDisableClientState(GL_VERTEX_ARRAY);
+			glBindBuffer(GL_ARRAY_BUFFER, 0);
+			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+		}
+		mapShader.disableShader();
 	}
-
-
+	
+	
 	/** 
-     * Draw the terrain list.
+     * Stop the loader and delete the chunk buffers and lists of all tiles.
      */
-	public void drawTerrain() throws IOException
+	public void cleanup()
 	{
-		mapShader.enableShader();
-		glCallList(terrain);
-		mapShader.disableShader();
+		if(loader != null)
+		{
+			loader.shutdownNow();
+		}
+		for(TerrainTile tile : tiles.values())
+		{
+			tile.cleanup();
+		}
+		for(int[] buffer : indexBuffers.values())
+		{
+			glDeleteBuffers(buffer[0]);
+		}
+		if(patchBuffer != 0)
+		{
+			glDeleteBuffers(patchBuffer);
+			glDeleteTextures(rampTexture);
+			patchBuffer = rampTexture = 0;
+		}
+		tiles.clear();
+		lastTile = null;
+		indexBuffers.clear();
 	}
-
-
-	public Vector3f[][] getNormals() {
-		return normals;
+	
+	
+	/** 
+     * Number of chunks drawn and culled in the last drawTerrain() call.
+     */
+	public int getDrawnChunks() {
+		return drawnChunks;
 	}
-
-
-	public void setNormals(Vector3f[][] normals) {
-		this.normals = normals;
+	
+	public int getCulledChunks() {
+		return culledChunks;
+	}
+	
+	
+	/** 
+     * Triangles drawn in the last drawTerrain() call, in total, per detail
+     * level, and as they would have been at full detail.
+     */
+	public int getTriangles() {
+		return triangles;
+	}
+	
+	public int getLevelTriangles(int level) {
+		return levelTriangles[level];
+	}
+	
+	public int getFullTriangles() {
+		return fullTriangles;
+	}
+	
+	
+	/** 
+     * Tiles drawn, tiles still loading or uploading, and the memory they use,
+     * as of the last update() call, and the number of tiles evicted so far.
+     */
+	public int getReadyTiles() {
+		return readyTiles;
+	}
+	
+	public int getLoadingTiles() {
+		return loadingTiles;
+	}
+	
+	public long getTileBytes() {
+		return tileBytes;
+	}
+	
+	public int getEvictedTiles() {
+		return evictedTiles;
 	}
 }
@@ -9,34 +9,8 @@
 
 package src;
 
-import static org.lwjgl.opengl.GL11.GL_NEAREST;
-import static org.lwjgl.opengl.GL11.GL_REPLACE;
-import static org.lwjgl.opengl.GL11.GL_RGBA;
-import static org.lwjgl.opengl.GL11.GL_RGBA8;
-import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
-import static org.lwjgl.opengl.GL11.GL_TEXTURE_ENV;
-import static org.lwjgl.opengl.GL11.GL_TEXTURE_ENV_MODE;
-import static org.lwjgl.opengl.GL11.GL_TEXTURE_MAG_FILTER;
-import static org.lwjgl.opengl.GL11.GL_TEXTURE_MIN_FILTER;
-import static org.lwjgl.opengl.GL11.GL_TEXTURE_WRAP_S;
-import static org.lwjgl.opengl.GL11.GL_TEXTURE_WRAP_T;
-import static org.lwjgl.opengl.GL11.GL_UNSIGNED_BYTE;
-import static org.lwjgl.opengl.GL11.glBindTexture;
-import static org.lwjgl.opengl.GL11.glGenTextures;
-import static org.lwjgl.opengl.GL11.glTexEnvi;
-import static org.lwjgl.opengl.GL11.glTexImage2D;
-import static org.lwjgl.opengl.GL11.glTexParameteri;
-
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
-import javax.imageio.ImageIO;
-
-import org.lwjgl.BufferUtils;
-import org.lwjgl.opengl.GL12;
 import org.lwjgl.util.vector.Vector3f;
 
 public class Material {
@@ -55,6 +29,7 @@ public class Material {
 
 	//Kd, Ks, Ka, d, Ns
 	private int[] texImg = {-1,-1,-1,-1,-1};
+	private String[] texNames = new String[5];
 	
 	public Material()
 	{
@@ -76,46 +51,59 @@ public class Material {
 	}
 	
 	/** 
-     * Load the material textures.
+     * Name the material's texture in slot idx and start decoding it. It is
+     * uploaded by uploadTextures.
      */
-	public void loadMaterial(String name, int idx) throws FileNotFoundException, IOException
+	public void loadMaterial(String name, int idx)
     {
-	System.out.println("res/"+name);
-		BufferedImage img = ImageIO.read(new File("res/"+ name));
-		
-    	int width = img.getWidth();
-    	int height = img.getHeight();
-    	int[] pixels = new int[width*height];
-    	img.getRGB(0, 0, width,height, pixels, 0, width);
-		
-		ByteBuffer buffer = BufferUtils.createByteBuffer(width * height * 4); 
-		  
-		for(int y = 0; y < height; y++)
+		texNames[idx] = name;
+		TextureCache.prefetch("res/" + name);
+    }
+	
+
+	/** 
+     * Start decoding every texture named in texNames, e.g. for a material read from the mesh cache.
+     */
+	public void loadTextures()
+	{
+		for(int i = 0; i < texNames.length; i++)
 		{
-		    for(int x = 0; x < width; x++)
-		    {
-		        int pixel = pixels[y * width + x];
-		        buffer.put((byte) ((pixel >> 16) & 0xFF));
-		        buffer.put((byte) ((pixel >> 8) & 0xFF));
-		        buffer.put((byte) (pixel & 0xFF)); 
-		        buffer.put((byte) ((pixel >> 24) & 0xFF)); 
-		    }
+			if(texNames[i] != null)
+			{
+				loadMaterial(texNames[i], i);
+			}
 		}
-		
-		buffer.flip();
-		texImg[idx] = glGenTextures();
-		
-		glTexEnvi(GL_TEXTURE_ENV, GL_TEXTURE_ENV_MODE, GL_REPLACE);
-		glBindTexture(GL_TEXTURE_2D, texImg[idx]);
-		
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
-	    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
-
-	    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-	    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+	}
 	
-	    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
-    }
+	
+	/** 
+     * Get the textures named in texNames from the texture cache, waiting for
+     * any still being decoded.
+     */
+	public void uploadTextures() throws IOException
+	{
+		for(int i = 0; i < texNames.length; i++)
+		{
+			if(texNames[i] != null)
+			{
+				System.out.println("res/" + texNames[i]);
+				texImg[i] = TextureCache.acquire("res/" + texNames[i]);
+			}
+		}
+	}
+	
+	
+	/** 
+     * Give the textures back to the texture cache.
+     */
+	public void releaseTextures()
+	{
+		for(int i = 0; i < texImg.length; i++)
+		{
+			TextureCache.release(texImg[i]);
+			texImg[i] = -1;
+		}
+	}
 	
 
 	public Vector3f getAmbient() {
@@ -181,5 +169,9 @@ public class Material {
 	public void setTexImg(int[] texImg) {
 		this.texImg = texImg;
 	}
+
+	public String[] getTexNames() {
+		return texNames;
+	}
 	
 }
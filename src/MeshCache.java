@@ -0,0 +1,460 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the mesh cache class. It stores a compiled mesh next to its .obj file
+ * as a versioned binary sidecar (res/<name>.mesh), and memory-maps it on later
+ * launches so the vertex and index data go straight to GL without parsing.
+ * Only a cache that passes its checks is mapped (see load).
+ *
+ * File layout, in native byte order, every section 4-byte aligned:
+ *   header      magic, version, byte order, counts, payload CRC,
+ *               length / last modified / CRC of the .obj and .mtl sources,
+ *               index size in bytes, ACMR before and after optimization
+ *               (or -1 if the mesh was not optimized)
+ *   mtllib      name of the material library
+ *   materials   Kd, Ks, Ka, d, Ns, Tr, illum and the five map names
+ *   ranges      material, first index and index count of each draw range
+ *   vertices    interleaved MeshData.VERTEX_FLOATS floats per vertex
+ *   indices     one unsigned short or int per index
+ *
+ * A cache whose version, byte order, sizes or sources do not match, or whose
+ * payload CRC doesn't once the .obj has been touched or copied, is ignored,
+ * and the caller falls back to the text parser.
+ *
+ */
+
+package src;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.lwjgl.util.vector.Vector3f;
+
+public class MeshCache {
+
+	private static final int MAGIC = 0x56474D42; // "VGMB"
+	private static final int VERSION = 4;
+	private static final int HEADER_BYTES = 96;
+	private static final int MATERIAL_FLOATS = 13;
+
+	private static final String NO_SOURCE = "";
+
+
+	/**
+     * The cache file belonging to an .obj file.
+     */
+	public static File cacheFile(File obj)
+	{
+		String name = obj.getName();
+		int dot = name.lastIndexOf('.');
+		return new File(obj.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ".mesh");
+	}
+
+
+	/**
+     * Map a cached mesh, optimized by MeshOptimizer or not. Returns null if the
+     * cache is missing, stale or corrupt, or optimized when it shouldn't be or
+     * the other way round.
+     *
+     * Everything but the vertices and indices is read and checked through plain
+     * reads, and the file is only mapped once all of it passes. A mapping lasts until it is garbage collected, and on
+     * Windows a mapped file can't be deleted or renamed over, so a rejected
+     * cache that had been mapped could not be rewritten.
+     */
+	public static MeshData load(File obj, boolean optimized)
+	{
+		File cache = cacheFile(obj);
+		if(!cache.isFile() || !obj.isFile())
+		{
+			return null;
+		}
+
+		try
+		{
+			RandomAccessFile file = new RandomAccessFile(cache, "r");
+			try
+			{
+				return read(file.getChannel(), obj, optimized);
+			}
+			finally
+			{
+				// The mapping stays valid after the channel is closed.
+				file.close();
+			}
+		}
+		catch(IOException | RuntimeException e)
+		{
+			System.err.println("Ignoring mesh cache " + cache + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static MeshData read(FileChannel channel, File obj, boolean optimized) throws IOException
+	{
+		long size = channel.size();
+		if(size < HEADER_BYTES)
+		{
+			throw new IOException("not a mesh cache");
+		}
+		ByteBuffer header = readBytes(channel, 0, HEADER_BYTES, ByteOrder.nativeOrder());
+		if(header.getInt(0) != MAGIC)
+		{
+			throw new IOException("not a mesh cache");
+		}
+		if(header.getInt(4) != VERSION || header.getInt(8) != byteOrderTag())
+		{
+			throw new IOException("written by another version");
+		}
+
+		int vertexCount = header.getInt(12);
+		int indexCount = header.getInt(16);
+		int rangeCount = header.getInt(20);
+		int materialCount = header.getInt(24);
+		int payloadCrc = header.getInt(28);
+		int indexSize = header.getInt(80);
+		if(vertexCount < 0 || indexCount < 0 || rangeCount < 0 || materialCount < 0 || (indexSize != 2 && indexSize != 4))
+		{
+			throw new IOException("corrupt header");
+		}
+		if((header.getFloat(84) >= 0) != optimized)
+		{
+			throw new IOException(optimized ? "mesh not optimized" : "mesh optimized");
+		}
+		if(!sourceMatches(header, 32, obj))
+		{
+			throw new IOException("stale, " + obj + " has changed");
+		}
+
+		// Everything before the vertices is small enough to read outright.
+		long vertexOffset = size - (long) vertexCount * MeshData.VERTEX_BYTES - align((long) indexCount * indexSize);
+		if(vertexOffset < HEADER_BYTES + 4 || vertexOffset > Integer.MAX_VALUE)
+		{
+			throw new IOException("unexpected file size");
+		}
+		ByteBuffer buffer = readBytes(channel, 0, (int) vertexOffset, ByteOrder.nativeOrder());
+		buffer.position(HEADER_BYTES);
+		String mtllib = readString(buffer);
+		File mtl = mtllib.isEmpty() ? null : new File(obj.getParentFile(), mtllib);
+		if(!sourceMatches(header, 56, mtl))
+		{
+			throw new IOException("stale, " + mtl + " has changed");
+		}
+		// Checksumming the payload means reading all of it, which is what the
+		// mapping saves, so it is only done when the .obj was touched or copied
+		// since the cache was written. Otherwise the exact size and the source
+		// stamps vouch for it.
+		if(header.getLong(40) != obj.lastModified() && checksum(channel, HEADER_BYTES) != payloadCrc)
+		{
+			throw new IOException("payload checksum mismatch");
+		}
+
+		List<Material> materials = new ArrayList<Material>(materialCount);
+		for(int i = 0; i < materialCount; i++)
+		{
+			Material mat = new Material();
+			mat.setDiffuse(new Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat()));
+			mat.setSpecular(new Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat()));
+			mat.setAmbient(new Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat()));
+			mat.setDissolve(buffer.getFloat());
+			mat.setShininess(buffer.getFloat());
+			mat.setTransparent(buffer.getFloat());
+			mat.setIlluminance(buffer.getFloat());
+			String[] names = mat.getTexNames();
+			for(int t = 0; t < names.length; t++)
+			{
+				String name = readString(buffer);
+				names[t] = name.isEmpty() ? null : name;
+			}
+			materials.add(mat);
+		}
+
+		int[] rangeMaterial = new int[rangeCount];
+		int[] rangeFirst = new int[rangeCount];
+		int[] rangeIndices = new int[rangeCount];
+		for(int i = 0; i < rangeCount; i++)
+		{
+			rangeMaterial[i] = buffer.getInt();
+			rangeFirst[i] = buffer.getInt();
+			rangeIndices[i] = buffer.getInt();
+			if(rangeMaterial[i] >= materialCount || rangeFirst[i] < 0 || rangeIndices[i] < 0
+					|| (long) rangeFirst[i] + rangeIndices[i] > indexCount)
+			{
+				throw new IOException("corrupt draw range");
+			}
+		}
+		if(buffer.position() != vertexOffset)
+		{
+			throw new IOException("unexpected file size");
+		}
+
+		// Only now, with every check passed, is the file mapped.
+		MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		data.order(ByteOrder.nativeOrder());
+		int indexOffset = (int) vertexOffset + vertexCount * MeshData.VERTEX_BYTES;
+		MeshData mesh = new MeshData(MeshData.floatView(data, (int) vertexOffset, vertexCount * MeshData.VERTEX_FLOATS),
+				MeshData.byteView(data, indexOffset, indexCount * indexSize), indexSize, rangeMaterial, rangeFirst, rangeIndices);
+		mesh.setMaterials(materials);
+		mesh.setMtllib(mtllib.isEmpty() ? null : mtllib);
+		if(header.getFloat(84) >= 0)
+		{
+			mesh.setAcmr(header.getFloat(84), header.getFloat(88));
+		}
+		return mesh;
+	}
+
+
+	/**
+     * Write the cache for a freshly compiled mesh. It is written to a temporary
+     * file first so a crash never leaves a half-written cache behind.
+     */
+	public static void write(File obj, MeshData mesh) throws IOException
+	{
+		File cache = cacheFile(obj);
+		String mtllib = mesh.getMtllib() == null ? NO_SOURCE : mesh.getMtllib();
+		File mtl = mtllib.isEmpty() ? null : new File(obj.getParentFile(), mtllib);
+		List<Material> materials = mesh.getMaterials();
+
+		int size = HEADER_BYTES + stringBytes(mtllib);
+		for(Material mat : materials)
+		{
+			size += MATERIAL_FLOATS * 4;
+			for(String name : mat.getTexNames())
+			{
+				size += stringBytes(name == null ? NO_SOURCE : name);
+			}
+		}
+		size += mesh.getRangeCount() * 12;
+		size += mesh.getVertexCount() * MeshData.VERTEX_BYTES + (int) align((long) mesh.getIndexCount() * mesh.getIndexSize());
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, byteOrderTag());
+		buffer.putInt(12, mesh.getVertexCount());
+		buffer.putInt(16, mesh.getIndexCount());
+		buffer.putInt(20, mesh.getRangeCount());
+		buffer.putInt(24, materials.size());
+		putSource(buffer, 32, obj);
+		putSource(buffer, 56, mtl);
+		buffer.putInt(80, mesh.getIndexSize());
+		buffer.putFloat(84, mesh.isOptimized() ? mesh.getAcmrBefore() : -1);
+		buffer.putFloat(88, mesh.isOptimized() ? mesh.getAcmrAfter() : -1);
+
+		buffer.position(HEADER_BYTES);
+		putString(buffer, mtllib);
+		for(Material mat : materials)
+		{
+			putVector(buffer, mat.getDiffuse());
+			putVector(buffer, mat.getSpecular());
+			putVector(buffer, mat.getAmbient());
+			buffer.putFloat(mat.getDissolve());
+			buffer.putFloat(mat.getShininess());
+			buffer.putFloat(mat.getTransparent());
+			buffer.putFloat(mat.getIlluminance());
+			for(String name : mat.getTexNames())
+			{
+				putString(buffer, name == null ? NO_SOURCE : name);
+			}
+		}
+		for(int i = 0; i < mesh.getRangeCount(); i++)
+		{
+			buffer.putInt(mesh.getRangeMaterial(i));
+			buffer.putInt(mesh.getRangeFirst(i));
+			buffer.putInt(mesh.getRangeIndexCount(i));
+		}
+		buffer.asFloatBuffer().put(mesh.getVertices());
+		buffer.position(buffer.position() + mesh.getVertexCount() * MeshData.VERTEX_BYTES);
+		buffer.put(mesh.getIndices());
+
+		ByteBuffer payload = buffer.duplicate();
+		payload.position(HEADER_BYTES);
+		payload.limit(size);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		buffer.putInt(28, (int) crc.getValue());
+
+		buffer.position(0);
+		buffer.limit(size);
+		File temp = new File(cache.getPath() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(temp, "rw");
+		try
+		{
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			while(buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+		}
+		finally
+		{
+			file.close();
+		}
+		if(cache.exists() && !cache.delete() || !temp.renameTo(cache))
+		{
+			temp.delete();
+			throw new IOException("could not replace " + cache);
+		}
+	}
+
+
+	/**
+     * Source stamps are 24 bytes: length, last modified time and CRC32 of the file,
+     * or all -1 if there is no such file.
+     */
+	static void putSource(ByteBuffer buffer, int offset, File source) throws IOException
+	{
+		if(source == null || !source.isFile())
+		{
+			buffer.putLong(offset, -1).putLong(offset + 8, -1).putLong(offset + 16, -1);
+			return;
+		}
+		buffer.putLong(offset, source.length());
+		buffer.putLong(offset + 8, source.lastModified());
+		buffer.putLong(offset + 16, checksum(source));
+	}
+
+
+	/**
+     * A source matches if its length and modification time are unchanged. If only
+     * the time differs (the file was touched or copied), its checksum decides.
+     */
+	static boolean sourceMatches(ByteBuffer buffer, int offset, File source) throws IOException
+	{
+		long length = buffer.getLong(offset);
+		if(source == null || !source.isFile())
+		{
+			return length == -1;
+		}
+		if(length != source.length())
+		{
+			return false;
+		}
+		if(buffer.getLong(offset + 8) == source.lastModified())
+		{
+			return true;
+		}
+		return buffer.getLong(offset + 16) == checksum(source);
+	}
+
+	private static long checksum(File source) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		FileInputStream in = new FileInputStream(source);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally
+		{
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+     * Read length bytes at position of a file into a heap buffer, without mapping it.
+     */
+	static ByteBuffer readBytes(FileChannel channel, long position, int length, ByteOrder order) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new IOException("unexpected end of file");
+			}
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+
+	/**
+     * The CRC32 of a file from position to its end, read in chunks without mapping it.
+     */
+	static int checksum(FileChannel channel, long position) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+		long size = channel.size();
+		while(position < size)
+		{
+			chunk.clear();
+			int read = channel.read(chunk, position);
+			if(read < 0)
+			{
+				throw new IOException("unexpected end of file");
+			}
+			crc.update(chunk.array(), 0, read);
+			position += read;
+		}
+		return (int) crc.getValue();
+	}
+
+	private static long align(long bytes)
+	{
+		return (bytes + 3) & ~3L;
+	}
+
+	private static int byteOrderTag()
+	{
+		return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 2;
+	}
+
+	private static void putVector(ByteBuffer buffer, Vector3f value)
+	{
+		if(value == null)
+		{
+			buffer.putFloat(0).putFloat(0).putFloat(0);
+		}
+		else
+		{
+			buffer.putFloat(value.x).putFloat(value.y).putFloat(value.z);
+		}
+	}
+
+
+	/**
+     * Strings are an int byte length followed by UTF-8 bytes, padded to 4 bytes.
+     */
+	private static int stringBytes(String value)
+	{
+		int length = value.getBytes(StandardCharsets.UTF_8).length;
+		return 4 + ((length + 3) & ~3);
+	}
+
+	private static void putString(ByteBuffer buffer, String value)
+	{
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+		buffer.position(buffer.position() + ((4 - bytes.length % 4) % 4));
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException
+	{
+		int length = buffer.getInt();
+		if(length < 0 || length > buffer.remaining())
+		{
+			throw new IOException("corrupt string");
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		buffer.position(buffer.position() + ((4 - length % 4) % 4));
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,349 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the compiled mesh class. It holds a model's geometry in the layout
+ * GL consumes directly: one interleaved vertex buffer of welded (unique)
+ * vertices, one 16-bit or 32-bit index buffer and one draw range per material.
+ *
+ * The buffers are direct and in native byte order. They are either built from
+ * the parsed .obj data or are views of a memory-mapped MeshCache file.
+ *
+ */
+
+package src;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_SHORT;
+
+import org.lwjgl.BufferUtils;
+
+public class MeshData {
+
+	/**
+     * Interleaved vertex layout: position xyz, normal xyz, texture uv.
+     */
+	public static final int POSITION_OFFSET = 0;
+	public static final int NORMAL_OFFSET = 3;
+	public static final int TEXTURE_OFFSET = 6;
+	public static final int VERTEX_FLOATS = 8;
+	public static final int VERTEX_BYTES = VERTEX_FLOATS * 4;
+
+	private FloatBuffer vertices;
+	private ByteBuffer indices;
+	private int indexSize;
+	private int vertexCount;
+	private int indexCount;
+
+	private int[] rangeMaterial;
+	private int[] rangeFirst;
+	private int[] rangeCount;
+
+	private List<Material> materials = new ArrayList<Material>();
+	private String mtllib;
+
+	private boolean optimized;
+	private float acmrBefore, acmrAfter;
+
+
+	/** 
+     * Wrap vertex and index data. The index bytes hold indexSize (2 or 4) bytes per index.
+     */
+	public MeshData(FloatBuffer vertices, ByteBuffer indices, int indexSize, int[] rangeMaterial, int[] rangeFirst, int[] rangeCount)
+	{
+		this.vertices = vertices;
+		this.indices = indices;
+		this.indexSize = indexSize;
+		this.vertexCount = vertices.remaining() / VERTEX_FLOATS;
+		this.indexCount = indices.remaining() / indexSize;
+		this.rangeMaterial = rangeMaterial;
+		this.rangeFirst = rangeFirst;
+		this.rangeCount = rangeCount;
+	}
+
+
+	/**
+     * Compile parsed .obj data. Faces are sorted by material (keeping their file
+     * order within a material), so each material is one draw range. Corners with
+     * the same position, texture and normal indices are welded into one vertex,
+     * and 16-bit indices are used when the vertex count allows. Missing normals
+     * or texture coordinates are written as zero.
+     */
+	public static MeshData compile(float[] positions, float[] textures, float[] normals,
+			int[] faces, int[] faceMaterials, int faceCount)
+	{
+		int[] order = sortByMaterial(faceMaterials, faceCount);
+
+		VertexWelder welder = new VertexWelder(faceCount * 3);
+		FloatBuffer welded = BufferUtils.createFloatBuffer(faceCount * 3 * VERTEX_FLOATS);
+		int[] corners = new int[faceCount * 3];
+
+		IntList rangeMaterial = new IntList(64);
+		IntList rangeFirst = new IntList(64);
+		IntList rangeCount = new IntList(64);
+
+		for(int i = 0; i < faceCount; i++)
+		{
+			int f = order[i];
+			for(int corner = 0; corner < 3; corner++)
+			{
+				int base = f * ObjParser.FACE_STRIDE + corner * 3;
+				int vertex = welder.weld(faces[base], faces[base + 1], faces[base + 2]);
+				if(vertex < 0)
+				{
+					vertex = -vertex - 1;
+					putVertex(welded, positions, textures, normals, faces[base], faces[base + 1], faces[base + 2]);
+				}
+				corners[i * 3 + corner] = vertex;
+			}
+
+			int last = rangeMaterial.size() - 1;
+			if(last >= 0 && rangeMaterial.get(last) == faceMaterials[f])
+			{
+				rangeCount.array()[last] += 3;
+			}
+			else
+			{
+				rangeMaterial.add(faceMaterials[f]);
+				rangeFirst.add(i * 3);
+				rangeCount.add(3);
+			}
+		}
+		welded.flip();
+
+		FloatBuffer vertices = BufferUtils.createFloatBuffer(welded.remaining());
+		vertices.put(welded);
+		vertices.flip();
+
+		int indexSize = indexSizeFor(welder.size());
+		return new MeshData(vertices, packIndices(corners, indexSize), indexSize,
+				rangeMaterial.toArray(), rangeFirst.toArray(), rangeCount.toArray());
+	}
+
+
+	/**
+     * 2-byte indices if every vertex number fits in an unsigned short, else 4.
+     */
+	static int indexSizeFor(int vertexCount)
+	{
+		return vertexCount <= 0x10000 ? 2 : 4;
+	}
+
+	static ByteBuffer packIndices(int[] indices, int indexSize)
+	{
+		ByteBuffer packed = BufferUtils.createByteBuffer(indices.length * indexSize);
+		if(indexSize == 2)
+		{
+			for(int index : indices)
+			{
+				packed.putShort((short) index);
+			}
+		}
+		else
+		{
+			packed.asIntBuffer().put(indices);
+			packed.position(packed.capacity());
+		}
+		packed.flip();
+		return packed;
+	}
+
+
+	/**
+     * Stable counting sort of face numbers by material. Faces without a material (-1) come first.
+     */
+	static int[] sortByMaterial(int[] faceMaterials, int faceCount)
+	{
+		int buckets = 1;
+		for(int f = 0; f < faceCount; f++)
+		{
+			buckets = Math.max(buckets, faceMaterials[f] + 2);
+		}
+
+		int[] start = new int[buckets + 1];
+		for(int f = 0; f < faceCount; f++)
+		{
+			start[faceMaterials[f] + 2]++;
+		}
+		for(int b = 1; b <= buckets; b++)
+		{
+			start[b] += start[b - 1];
+		}
+
+		int[] order = new int[faceCount];
+		for(int f = 0; f < faceCount; f++)
+		{
+			order[start[faceMaterials[f] + 1]++] = f;
+		}
+		return order;
+	}
+
+	static void putVertex(FloatBuffer vertices, float[] positions, float[] textures, float[] normals, int v, int t, int n)
+	{
+		if(v >= 0)
+		{
+			vertices.put(positions[3*v]).put(positions[3*v + 1]).put(positions[3*v + 2]);
+		}
+		else
+		{
+			vertices.put(0).put(0).put(0);
+		}
+		if(n >= 0)
+		{
+			vertices.put(normals[3*n]).put(normals[3*n + 1]).put(normals[3*n + 2]);
+		}
+		else
+		{
+			vertices.put(0).put(0).put(0);
+		}
+		if(t >= 0)
+		{
+			vertices.put(textures[2*t]).put(textures[2*t + 1]);
+		}
+		else
+		{
+			vertices.put(0).put(0);
+		}
+	}
+
+	/**
+     * A view of the given bytes as floats, in native order.
+     */
+	static FloatBuffer floatView(ByteBuffer bytes, int offset, int count)
+	{
+		ByteBuffer view = bytes.duplicate();
+		view.position(offset);
+		view.limit(offset + count * 4);
+		return view.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	static ByteBuffer byteView(ByteBuffer bytes, int offset, int count)
+	{
+		ByteBuffer view = bytes.duplicate();
+		view.position(offset);
+		view.limit(offset + count);
+		return view.slice().order(ByteOrder.nativeOrder());
+	}
+
+
+	/**
+     * A view of the vertex buffer starting at the given float offset.
+     */
+	public FloatBuffer getVertices(int offset)
+	{
+		FloatBuffer view = vertices.duplicate();
+		view.position(offset);
+		return view;
+	}
+
+	public FloatBuffer getVertices() {
+		return vertices.duplicate();
+	}
+
+	public ByteBuffer getIndices() {
+		return indices.duplicate().order(ByteOrder.nativeOrder());
+	}
+
+
+	/**
+     * A view of the index buffer covering one draw range.
+     */
+	public ByteBuffer getRangeIndices(int range)
+	{
+		ByteBuffer view = getIndices();
+		view.position(rangeFirst[range] * indexSize);
+		view.limit((rangeFirst[range] + rangeCount[range]) * indexSize);
+		return view;
+	}
+
+
+	/**
+     * Read one index.
+     */
+	public int getIndex(int i)
+	{
+		return indexSize == 2 ? indices.getShort(i * 2) & 0xFFFF : indices.getInt(i * 4);
+	}
+
+	public int getIndexSize() {
+		return indexSize;
+	}
+
+
+	/**
+     * GL_UNSIGNED_SHORT or GL_UNSIGNED_INT, matching the index size.
+     */
+	public int getIndexType() {
+		return indexSize == 2 ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT;
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public int getIndexCount() {
+		return indexCount;
+	}
+
+	public int getRangeCount() {
+		return rangeMaterial.length;
+	}
+
+	public int getRangeMaterial(int range) {
+		return rangeMaterial[range];
+	}
+
+	public int getRangeFirst(int range) {
+		return rangeFirst[range];
+	}
+
+	public int getRangeIndexCount(int range) {
+		return rangeCount[range];
+	}
+
+	public List<Material> getMaterials() {
+		return materials;
+	}
+
+	public void setMaterials(List<Material> materials) {
+		this.materials = materials;
+	}
+
+	public String getMtllib() {
+		return mtllib;
+	}
+
+	public void setMtllib(String mtllib) {
+		this.mtllib = mtllib;
+	}
+
+
+	/**
+     * Mark the mesh as cache-optimized, with its average cache miss ratio before and after.
+     */
+	public void setAcmr(float before, float after)
+	{
+		optimized = true;
+		acmrBefore = before;
+		acmrAfter = after;
+	}
+
+	public boolean isOptimized() {
+		return optimized;
+	}
+
+	public float getAcmrBefore() {
+		return acmrBefore;
+	}
+
+	public float getAcmrAfter() {
+		return acmrAfter;
+	}
+}
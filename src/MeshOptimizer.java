@@ -0,0 +1,313 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the mesh optimizer class. It reorders the triangles of each draw
+ * range for the GPU post-transform vertex cache, then renumbers the vertices
+ * in the order they are first used so vertex fetches walk memory forwards.
+ *
+ * Reference:
+ *
+ * Linear-Speed Vertex Cache Optimisation, by Tom Forsyth
+ * https://tomforsyth1000.github.io/papers/fast_vert_cache_opt.html
+ *
+ */
+
+package src;
+
+import java.nio.FloatBuffer;
+
+import org.lwjgl.BufferUtils;
+
+public class MeshOptimizer {
+
+	/**
+     * Size of the simulated LRU cache used for scoring, and of the FIFO cache
+     * used to measure the average cache miss ratio (misses per triangle).
+     */
+	private static final int SCORE_CACHE_SIZE = 32;
+	private static final int FIFO_CACHE_SIZE = 16;
+
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRI_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+
+
+	/**
+     * Return an optimized copy of the mesh, with the ACMR before and after recorded on it.
+     */
+	public static MeshData optimize(MeshData mesh)
+	{
+		int vertexCount = mesh.getVertexCount();
+		int[] indices = new int[mesh.getIndexCount()];
+		for(int i = 0; i < indices.length; i++)
+		{
+			indices[i] = mesh.getIndex(i);
+		}
+		float before = acmr(indices, vertexCount);
+
+		int[] rangeFirst = new int[mesh.getRangeCount()];
+		int[] rangeCount = new int[mesh.getRangeCount()];
+		int[] rangeMaterial = new int[mesh.getRangeCount()];
+		for(int r = 0; r < rangeFirst.length; r++)
+		{
+			rangeFirst[r] = mesh.getRangeFirst(r);
+			rangeCount[r] = mesh.getRangeIndexCount(r);
+			rangeMaterial[r] = mesh.getRangeMaterial(r);
+			reorderTriangles(indices, rangeFirst[r], rangeCount[r] / 3, vertexCount);
+		}
+
+		FloatBuffer vertices = reorderVertices(indices, mesh.getVertices(), vertexCount);
+		float after = acmr(indices, vertexCount);
+
+		int indexSize = MeshData.indexSizeFor(vertexCount);
+		MeshData optimized = new MeshData(vertices, MeshData.packIndices(indices, indexSize), indexSize,
+				rangeMaterial, rangeFirst, rangeCount);
+		optimized.setMaterials(mesh.getMaterials());
+		optimized.setMtllib(mesh.getMtllib());
+		optimized.setAcmr(before, after);
+		return optimized;
+	}
+
+
+	/**
+     * Average cache miss ratio: vertex shader runs per triangle with a FIFO cache.
+     * 0.5 is the ideal for a large regular mesh, 3.0 means no reuse at all.
+     */
+	public static float acmr(int[] indices, int vertexCount)
+	{
+		if(indices.length == 0)
+		{
+			return 0;
+		}
+		// stamp holds the miss number at which each vertex entered the FIFO, 0 if never.
+		// A vertex is still cached while fewer than FIFO_CACHE_SIZE misses have followed.
+		int[] stamp = new int[vertexCount];
+		int misses = 0;
+		for(int i = 0; i < indices.length; i++)
+		{
+			int v = indices[i];
+			if(stamp[v] == 0 || misses - stamp[v] >= FIFO_CACHE_SIZE)
+			{
+				misses++;
+				stamp[v] = misses;
+			}
+		}
+		return misses / (indices.length / 3.0f);
+	}
+
+
+	/**
+     * Forsyth's greedy reorder of the triangles in indices[first, first + 3 * triangles).
+     */
+	static void reorderTriangles(int[] indices, int first, int triangles, int vertexCount)
+	{
+		if(triangles < 2)
+		{
+			return;
+		}
+
+		// Triangle lists per vertex, as offsets into one adjacency array.
+		int[] valence = new int[vertexCount];
+		for(int i = 0; i < triangles * 3; i++)
+		{
+			valence[indices[first + i]]++;
+		}
+		int[] adjacencyStart = new int[vertexCount + 1];
+		for(int v = 0; v < vertexCount; v++)
+		{
+			adjacencyStart[v + 1] = adjacencyStart[v] + valence[v];
+		}
+		int[] adjacency = new int[triangles * 3];
+		int[] fill = new int[vertexCount];
+		for(int t = 0; t < triangles; t++)
+		{
+			for(int c = 0; c < 3; c++)
+			{
+				int v = indices[first + t * 3 + c];
+				adjacency[adjacencyStart[v] + fill[v]++] = t;
+			}
+		}
+
+		int[] remaining = valence;
+		float[] vertexScore = new float[vertexCount];
+		for(int v = 0; v < vertexCount; v++)
+		{
+			vertexScore[v] = vertexScore(-1, remaining[v]);
+		}
+
+		boolean[] added = new boolean[triangles];
+		float[] triangleScore = new float[triangles];
+		for(int t = 0; t < triangles; t++)
+		{
+			for(int c = 0; c < 3; c++)
+			{
+				triangleScore[t] += vertexScore[indices[first + t * 3 + c]];
+			}
+		}
+
+		int[] output = new int[triangles * 3];
+		int[] cache = new int[SCORE_CACHE_SIZE + 3];
+		int[] nextCache = new int[SCORE_CACHE_SIZE + 3];
+		int cacheSize = 0;
+		int scanCursor = 0;
+		int best = -1;
+
+		for(int out = 0; out < triangles; out++)
+		{
+			if(best < 0)
+			{
+				// Nothing useful in the cache: restart from the next triangle in file
+				// order, which keeps the whole pass linear.
+				while(added[scanCursor])
+				{
+					scanCursor++;
+				}
+				best = scanCursor;
+			}
+
+			added[best] = true;
+			int a = indices[first + best * 3], b = indices[first + best * 3 + 1], c = indices[first + best * 3 + 2];
+			output[out * 3] = a;
+			output[out * 3 + 1] = b;
+			output[out * 3 + 2] = c;
+
+			// Move the triangle's vertices to the front of the LRU cache.
+			int nextSize = 0;
+			nextCache[nextSize++] = a;
+			nextCache[nextSize++] = b;
+			nextCache[nextSize++] = c;
+			for(int i = 0; i < cacheSize; i++)
+			{
+				int v = cache[i];
+				if(v != a && v != b && v != c)
+				{
+					nextCache[nextSize++] = v;
+				}
+			}
+			for(int corner = 0; corner < 3; corner++)
+			{
+				int v = nextCache[corner];
+				remaining[v]--;
+				// Remove the triangle from the vertex's list of remaining triangles.
+				int end = adjacencyStart[v] + remaining[v];
+				for(int k = adjacencyStart[v]; k <= end; k++)
+				{
+					if(adjacency[k] == best)
+					{
+						adjacency[k] = adjacency[end];
+						break;
+					}
+				}
+			}
+
+			int[] swap = cache;
+			cache = nextCache;
+			nextCache = swap;
+			cacheSize = nextSize;
+
+			// Rescore the vertices in the cache and those that just fell out of it.
+			for(int i = 0; i < cacheSize; i++)
+			{
+				int v = cache[i];
+				int position = i < SCORE_CACHE_SIZE ? i : -1;
+				float score = vertexScore(position, remaining[v]);
+				float delta = score - vertexScore[v];
+				vertexScore[v] = score;
+				for(int k = adjacencyStart[v]; k < adjacencyStart[v] + remaining[v]; k++)
+				{
+					triangleScore[adjacency[k]] += delta;
+				}
+			}
+			cacheSize = Math.min(cacheSize, SCORE_CACHE_SIZE);
+
+			best = -1;
+			float bestScore = -1;
+			for(int i = 0; i < cacheSize; i++)
+			{
+				int v = cache[i];
+				for(int k = adjacencyStart[v]; k < adjacencyStart[v] + remaining[v]; k++)
+				{
+					int t = adjacency[k];
+					if(triangleScore[t] > bestScore)
+					{
+						bestScore = triangleScore[t];
+						best = t;
+					}
+				}
+			}
+		}
+
+		System.arraycopy(output, 0, indices, first, output.length);
+	}
+
+	private static final int MAX_VALENCE_SCORE = 64;
+	private static final float[] CACHE_SCORES = new float[SCORE_CACHE_SIZE];
+	private static final float[] VALENCE_SCORES = new float[MAX_VALENCE_SCORE];
+
+	static
+	{
+		for(int i = 0; i < SCORE_CACHE_SIZE; i++)
+		{
+			if(i < 3)
+			{
+				// The last triangle's vertices get a fixed score so it is not simply repeated.
+				CACHE_SCORES[i] = LAST_TRI_SCORE;
+			}
+			else
+			{
+				float scaler = 1.0f / (SCORE_CACHE_SIZE - 3);
+				CACHE_SCORES[i] = (float) Math.pow(1.0f - (i - 3) * scaler, CACHE_DECAY_POWER);
+			}
+		}
+		for(int i = 1; i < MAX_VALENCE_SCORE; i++)
+		{
+			VALENCE_SCORES[i] = VALENCE_BOOST_SCALE * (float) Math.pow(i, -VALENCE_BOOST_POWER);
+		}
+	}
+
+	private static float vertexScore(int cachePosition, int remaining)
+	{
+		if(remaining == 0)
+		{
+			return -1;
+		}
+		float score = cachePosition >= 0 ? CACHE_SCORES[cachePosition] : 0;
+		return score + VALENCE_SCORES[Math.min(remaining, MAX_VALENCE_SCORE - 1)];
+	}
+
+
+	/**
+     * Renumber vertices in order of first use and rewrite the indices to match.
+     * Vertices that no index refers to are dropped.
+     */
+	static FloatBuffer reorderVertices(int[] indices, FloatBuffer vertices, int vertexCount)
+	{
+		int[] remap = new int[vertexCount];
+		for(int v = 0; v < vertexCount; v++)
+		{
+			remap[v] = -1;
+		}
+
+		int next = 0;
+		FloatBuffer reordered = BufferUtils.createFloatBuffer(vertexCount * MeshData.VERTEX_FLOATS);
+		for(int i = 0; i < indices.length; i++)
+		{
+			int v = indices[i];
+			if(remap[v] < 0)
+			{
+				remap[v] = next++;
+				int base = v * MeshData.VERTEX_FLOATS;
+				for(int k = 0; k < MeshData.VERTEX_FLOATS; k++)
+				{
+					reordered.put(vertices.get(base + k));
+				}
+			}
+			indices[i] = remap[v];
+		}
+		reordered.flip();
+		return reordered;
+	}
+}
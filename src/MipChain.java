@@ -0,0 +1,150 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the mip chain class. It builds the smaller copies of an image the
+ * GPU samples from when a texture is minified, each half the size of the
+ * one before down to 1x1, with a 2x2 box filter. At an odd size the last
+ * row or column is repeated. The rows of each level are filtered in bands
+ * on the fork-join pool.
+ *
+ * A chain is stored as its levels one after another, largest first, as in
+ * a DDS file.
+ *
+ */
+
+package src;
+
+import static org.lwjgl.opengl.GL11.GL_RGBA8;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.BufferUtils;
+
+public class MipChain {
+
+	/**
+     * Rows of a level filtered per parallel task.
+     */
+	private static final int BAND_ROWS = 64;
+
+
+	/**
+     * Levels in a full chain for a width by height image.
+     */
+	public static int levels(int width, int height)
+	{
+		int levels = 1;
+		while(width > 1 || height > 1)
+		{
+			width = Math.max(1, width >> 1);
+			height = Math.max(1, height >> 1);
+			levels++;
+		}
+		return levels;
+	}
+
+
+	/**
+     * The width or height of level of an image size pixels across.
+     */
+	public static int size(int size, int level)
+	{
+		return Math.max(1, size >> level);
+	}
+
+
+	/**
+     * Bytes of one level of a width by height image, in GL_RGBA8 or a
+     * TextureCompressor format.
+     */
+	public static int levelBytes(int format, int width, int height)
+	{
+		return format == GL_RGBA8 ? width * height * 4 : TextureCompressor.imageBytes(format, width, height);
+	}
+
+
+	/**
+     * Where level starts in a chain.
+     */
+	public static int offset(int format, int width, int height, int level)
+	{
+		int offset = 0;
+		for(int i = 0; i < level; i++)
+		{
+			offset += levelBytes(format, size(width, i), size(height, i));
+		}
+		return offset;
+	}
+
+
+	/**
+     * Bytes of the first levels of a chain.
+     */
+	public static long bytes(int format, int width, int height, int levels)
+	{
+		return offset(format, width, height, levels);
+	}
+
+
+	/**
+     * The full RGBA chain of a width by height RGBA image.
+     */
+	public static ByteBuffer build(ByteBuffer rgba, int width, int height)
+	{
+		int levels = levels(width, height);
+		ByteBuffer chain = BufferUtils.createByteBuffer(offset(GL_RGBA8, width, height, levels));
+		ByteBuffer top = rgba.duplicate();
+		top.position(0);
+		chain.put(top);
+		for(int level = 1; level < levels; level++)
+		{
+			final ByteBuffer src = level(chain, width, height, level - 1);
+			final ByteBuffer dst = level(chain, width, height, level);
+			final int srcWidth = size(width, level - 1), srcHeight = size(height, level - 1), dstWidth = size(width, level);
+			Bands.invoke(0, size(height, level), BAND_ROWS, new Bands.Work() {
+				public void run(int from, int to)
+				{
+					halve(src, srcWidth, srcHeight, dst, dstWidth, from, to);
+				}
+			});
+		}
+		chain.clear();
+		return chain;
+	}
+
+	private static ByteBuffer level(ByteBuffer chain, int width, int height, int level)
+	{
+		ByteBuffer slice = chain.duplicate();
+		slice.limit(offset(GL_RGBA8, width, height, level + 1));
+		slice.position(offset(GL_RGBA8, width, height, level));
+		return slice.slice();
+	}
+
+
+	/**
+     * Filter rows from to to of dst, dstWidth pixels wide, from src, which is
+     * srcWidth by srcHeight.
+     */
+	private static void halve(ByteBuffer src, int srcWidth, int srcHeight, ByteBuffer dst, int dstWidth, int from, int to)
+	{
+		for(int y = from; y < to; y++)
+		{
+			int row0 = Math.min(2 * y, srcHeight - 1) * srcWidth;
+			int row1 = Math.min(2 * y + 1, srcHeight - 1) * srcWidth;
+			for(int x = 0; x < dstWidth; x++)
+			{
+				int x0 = Math.min(2 * x, srcWidth - 1);
+				int x1 = Math.min(2 * x + 1, srcWidth - 1);
+				int at = (y * dstWidth + x) * 4;
+				for(int c = 0; c < 4; c++)
+				{
+					int sum = (src.get((row0 + x0) * 4 + c) & 0xFF) + (src.get((row0 + x1) * 4 + c) & 0xFF)
+							+ (src.get((row1 + x0) * 4 + c) & 0xFF) + (src.get((row1 + x1) * 4 + c) & 0xFF);
+					dst.put(at + c, (byte) ((sum + 2) >> 2));
+				}
+			}
+		}
+	}
+}
@@ -5,6 +5,8 @@
  * 
  * This is the model class. It parses the .obj and .mtl files, 
  * and load all the attributes and textures into objects.
+ * The .obj geometry is read by ObjParser into flat primitive arrays,
+ * compiled into a MeshData, and cached on disk by MeshCache.
  * 
  * Reference: 
  *  
@@ -17,28 +19,37 @@ package src;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.*;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
-import org.lwjgl.util.vector.Vector2f;
+import org.lwjgl.opengl.ARBDrawInstanced;
+import org.lwjgl.opengl.ARBInstancedArrays;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GLContext;
 import org.lwjgl.util.vector.Vector3f;
 
 public class Model {
 	
-	private List<Vector3f> vertices = new ArrayList<Vector3f>();
-	private List<Vector2f> textures = new ArrayList<Vector2f>();
-	private List<Vector3f> normals = new ArrayList<Vector3f>(); 
-	private List<Face> faces =	new ArrayList<Face>();
+	private MeshData mesh;
 	private HashMap<String, Integer> matIndex = new HashMap<String, Integer>();
 	private List<Material> materials =	new ArrayList<Material>();
 	private int obj;
+	private int vbo, ibo, vao;
+	private int instanceVbo;
+	private boolean instancing, arbDraw, arbDivisor;
+	private int instanceMatrixLocation;
 	private Shader modelShader = new Shader();
 	private int diffuseLocation, ambientLocation, specularLocation, shininessLocation, illumLocation, dissolveLocation;
 	
@@ -48,10 +59,29 @@ public class Model {
      */
 	public void cleanup()
 	{
-		vertices.clear();
-		textures.clear();
-		normals.clear();
-		faces.clear();
+		if(vao != 0)
+		{
+			glDeleteVertexArrays(vao);
+		}
+		if(vbo != 0)
+		{
+			glDeleteBuffers(vbo);
+			glDeleteBuffers(ibo);
+		}
+		if(instanceVbo != 0)
+		{
+			glDeleteBuffers(instanceVbo);
+		}
+		if(obj != 0)
+		{
+			glDeleteLists(obj, 1);
+		}
+		vao = vbo = ibo = obj = instanceVbo = 0;
+		mesh = null;
+		for(Material mat : materials)
+		{
+			mat.releaseTextures();
+		}
 		materials.clear();
 	}
 	
@@ -61,62 +91,49 @@ public class Model {
      */
 	public void loadModel(String filename) throws IOException
 	{
-		FileReader fr = null;
-		fr = new FileReader(new File("res/" + filename + ".obj"));
-		BufferedReader reader = new BufferedReader(fr);
-		String line;
-		String mtllib = null;
-		int matNum = -1;
+		File objFile = new File("res/" + filename + ".obj");
 		
-		while((line = reader.readLine()) != null)
+		mesh = MeshCache.load(objFile, GameConfig.optimizeMeshes);
+		if(mesh != null)
 		{
-			line = line.trim();
-			String[] values = line.split("[ ]+");
-			
-			if(line.startsWith("mtllib "))
-			{
-				mtllib = values[1];
-				loadMaterial(mtllib);
-			}
-			else if(line.startsWith("v "))
+			materials = mesh.getMaterials();
+			for(Material mat : materials)
 			{
-				Vector3f vertex = new Vector3f(Float.parseFloat(values[1]), Float.parseFloat(values[2]), Float.parseFloat(values[3]));
-				vertices.add(vertex);
+				mat.loadTextures();
 			}
-			else if(line.startsWith("vt "))
-			{
-				Vector2f texture = new Vector2f(Float.parseFloat(values[1]), Float.parseFloat(values[2]));
-				textures.add(texture);
-			}
-			else if(line.startsWith("vn "))
+		}
+		else
+		{
+			mesh = parseModel(objFile);
+			if(GameConfig.optimizeMeshes)
 			{
-				Vector3f normal = new Vector3f(Float.parseFloat(values[1]), Float.parseFloat(values[2]), Float.parseFloat(values[3]));
-				normals.add(normal);
+				mesh = MeshOptimizer.optimize(mesh);
 			}
-			else if(line.startsWith("usemtl "))
+			try
 			{
-				if(mtllib != null)
-				{	
-					matNum = matIndex.get(values[1]);
-				}
+				MeshCache.write(objFile, mesh);
 			}
-			else if(line.startsWith("f "))
+			catch(IOException e)
 			{
-				String[] vertex1 = values[1].split("/");
-				String[] vertex2 = values[2].split("/");
-				String[] vertex3 = values[3].split("/");
-				Vector3f verIdx = null, texIdx = null, nomIdx = null;
-				if(!vertex1[0].equals(""))
-					verIdx = new Vector3f(Integer.parseInt(vertex1[0]), Integer.parseInt(vertex2[0]), Integer.parseInt(vertex3[0]));
-				if(!vertex1[1].equals(""))
-					texIdx = new Vector3f(Integer.parseInt(vertex1[1]), Integer.parseInt(vertex2[1]), Integer.parseInt(vertex3[1]));
-				if(!vertex1[2].equals(""))
-					nomIdx = new Vector3f(Integer.parseInt(vertex1[2]), Integer.parseInt(vertex2[2]), Integer.parseInt(vertex3[2]));
-				faces.add(new Face(verIdx, texIdx, nomIdx, matNum));
+				System.err.println("Could not write mesh cache for " + objFile + ": " + e.getMessage());
 			}
 		}
-
-		reader.close();
+		
+		// The textures were decoding while the mesh was read; upload them now.
+		for(Material mat : materials)
+		{
+			mat.uploadTextures();
+		}
+		
+		int triangles = mesh.getIndexCount() / 3;
+		System.out.println("Model " + filename + ": " + triangles + " triangles, " + mesh.getVertexCount() 
+				+ " unique vertices (" + String.format("%.2f", mesh.getIndexCount() / (float) Math.max(mesh.getVertexCount(), 1)) 
+				+ "x fewer than unwelded), " + (8 * mesh.getIndexSize()) + "-bit indices");
+		if(mesh.isOptimized())
+		{
+			System.out.println("Model " + filename + ": vertex cache ACMR " + String.format("%.3f", mesh.getAcmrBefore()) 
+					+ " before, " + String.format("%.3f", mesh.getAcmrAfter()) + " after optimization");
+		}
 		
 		modelShader.generateShader("Dragon");
 		
@@ -126,11 +143,50 @@ public class Model {
 		shininessLocation = glGetUniformLocation(modelShader.getShaderProgram(), "Ns");
 		illumLocation = glGetUniformLocation(modelShader.getShaderProgram(), "illum");
 		dissolveLocation = glGetUniformLocation(modelShader.getShaderProgram(), "dissolve");
+		instanceMatrixLocation = glGetAttribLocation(modelShader.getShaderProgram(), "instanceMatrix");
 		
 		init();
 	}
 	
 	
+	/** 
+     * Parse the .obj file and its material library, and compile the geometry.
+     */
+	private MeshData parseModel(File objFile) throws IOException
+	{
+		ObjParser parser = new ObjParser();
+		parser.parse(objFile);
+		
+		if(parser.getMtllib() != null)
+		{
+			loadMaterial(parser.getMtllib());
+		}
+		
+		List<String> names = parser.getMaterialNames();
+		int[] nameToMaterial = new int[names.size()];
+		for(int i = 0; i < nameToMaterial.length; i++)
+		{
+			Integer index = matIndex.get(names.get(i));
+			nameToMaterial[i] = (index == null) ? -1 : index;
+		}
+		int faceCount = parser.getFaceCount();
+		int[] faceMaterials = parser.getFaceMaterials().toArray();
+		for(int i = 0; i < faceCount; i++)
+		{
+			if(faceMaterials[i] >= 0)
+			{
+				faceMaterials[i] = nameToMaterial[faceMaterials[i]];
+			}
+		}
+		
+		MeshData compiled = MeshData.compile(parser.getPositions().array(), parser.getTexCoords().array(), 
+				parser.getNormals().array(), parser.getFaces().array(), faceMaterials, faceCount);
+		compiled.setMaterials(materials);
+		compiled.setMtllib(parser.getMtllib());
+		return compiled;
+	}
+	
+	
 	/** 
      * Load the materials for the model.
      */
@@ -209,152 +265,273 @@ public class Model {
 	
 	
 	/** 
-     * Generate the model list.
+     * Upload the mesh. With vertex buffer objects the interleaved vertices and 
+     * the indices go into one buffer each, recorded in a vertex array object 
+     * where the context has them. Otherwise a display list is compiled.
      */
 	public void init()
 	{
+		ContextCapabilities caps = GLContext.getCapabilities();
+		if(GameConfig.displayLists || !caps.OpenGL15)
+		{
+			initList();
+			return;
+		}
+		
+		vbo = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, vbo);
+		glBufferData(GL_ARRAY_BUFFER, mesh.getVertices(), GL_STATIC_DRAW);
+		
+		ibo = glGenBuffers();
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ibo);
+		glBufferData(GL_ELEMENT_ARRAY_BUFFER, mesh.getIndices(), GL_STATIC_DRAW);
+		
+		// The draw call and the divisor each come from core GL or their own extension.
+		arbDraw = !caps.OpenGL31;
+		arbDivisor = !caps.OpenGL33;
+		instancing = instanceMatrixLocation >= 0 && !GameConfig.displayLists
+				&& (caps.OpenGL31 || caps.GL_ARB_draw_instanced) && (caps.OpenGL33 || caps.GL_ARB_instanced_arrays);
+		if(instancing)
+		{
+			instanceVbo = glGenBuffers();
+		}
+		
+		if(caps.OpenGL30 || caps.GL_ARB_vertex_array_object)
+		{
+			vao = glGenVertexArrays();
+			glBindVertexArray(vao);
+			bindArrays();
+			glBindVertexArray(0);
+			unbindArrays();
+		}
+		else
+		{
+			glBindBuffer(GL_ARRAY_BUFFER, 0);
+			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+		}
+	}
+	
+	
+	/** 
+     * Point the fixed-function arrays at the interleaved vertex buffer.
+     */
+	private void bindArrays()
+	{
+		glBindBuffer(GL_ARRAY_BUFFER, vbo);
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ibo);
+		glEnableClientState(GL_VERTEX_ARRAY);
+		glEnableClientState(GL_NORMAL_ARRAY);
+		glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+		glVertexPointer(3, GL_FLOAT, MeshData.VERTEX_BYTES, MeshData.POSITION_OFFSET * 4);
+		glNormalPointer(GL_FLOAT, MeshData.VERTEX_BYTES, MeshData.NORMAL_OFFSET * 4);
+		glTexCoordPointer(2, GL_FLOAT, MeshData.VERTEX_BYTES, MeshData.TEXTURE_OFFSET * 4);
+	}
+	
+	private void unbindArrays()
+	{
+		glDisableClientState(GL_VERTEX_ARRAY);
+		glDisableClientState(GL_NORMAL_ARRAY);
+		glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+	
+	
+	/** 
+     * Generate the model list. The interleaved vertex and index buffers are 
+     * handed to GL as client arrays, one glDrawElements per material.
+     */
+	private void initList()
+	{
+		glEnableClientState(GL_VERTEX_ARRAY);
+		glEnableClientState(GL_NORMAL_ARRAY);
+		glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+		glVertexPointer(3, MeshData.VERTEX_BYTES, mesh.getVertices(MeshData.POSITION_OFFSET));
+		glNormalPointer(MeshData.VERTEX_BYTES, mesh.getVertices(MeshData.NORMAL_OFFSET));
+		glTexCoordPointer(2, MeshData.VERTEX_BYTES, mesh.getVertices(MeshData.TEXTURE_OFFSET));
+		
 		obj = glGenLists(1);
 		glNewList(obj, GL_COMPILE);
 		{	
-			for(Face face : faces)
+			for(int range = 0; range < mesh.getRangeCount(); range++)
 			{
-				Vector3f indx = face.getIndices();
-				Vector3f norm = face.getNormals();
-				Vector3f tetu = face.getTextures();
-				Material current = materials.get(face.getMaterials());
-				
-				glUniform3f(diffuseLocation, current.getDiffuse().x, current.getDiffuse().y, current.getDiffuse().z);
-				glUniform3f(specularLocation, current.getSpecular().x, current.getSpecular().y, current.getSpecular().z);
-				glUniform3f(ambientLocation, current.getAmbient().x, current.getAmbient().y, current.getAmbient().z);
-				glUniform1f(dissolveLocation, current.getDissolve());
-				glUniform1f(shininessLocation, current.getShininess());
-				glUniform1f(illumLocation, current.getIlluminance());
-				
-				/*int [] textID = materials.get(face.getMaterials()).getTexImg();
-				for(int i = 0; i < textID.length; i++)
-				{
-					if(textID[i] >= 0)
-					{
-						glActiveTexture(GL_TEXTURE0 + i); 
-						glBindTexture(GL_TEXTURE_2D, textID[i]);
-					
-						switch(i)
-						{
-							case 0:
-								glUniform1i(glGetUniformLocation(modelShader.getShaderProgram(), "texKd"), textID[i]);
-								break;
-							case 1:
-								glUniform1i(glGetUniformLocation(modelShader.getShaderProgram(), "texKs"), textID[i]);
-								break;
-							case 2:
-								glUniform1i(glGetUniformLocation(modelShader.getShaderProgram(), "texKa"), textID[i]);
-								break;
-							case 3:
-								glUniform1i(glGetUniformLocation(modelShader.getShaderProgram(), "texD"), textID[i]);
-								break;
-							case 4:
-								glUniform1i(glGetUniformLocation(modelShader.getShaderProgram(), "texNs"), textID[i]);
-								break;
-							default:
-								break;
-						}
-					}
-				}*/
-				
-				glBegin(GL_TRIANGLES);
-				{
-					if(norm != null)
-					{
-						Vector3f n1 = normals.get((int) (norm.x - 1));
-						glNormal3f(n1.x, n1.y, n1.z);
-					}
-					if(tetu != null)
-					{
-						Vector2f t1 = textures.get((int) (tetu.x - 1));
-						glTexCoord2f(t1.x, t1.y);
-					}
-					if(indx != null)
-					{
-						Vector3f v1 = vertices.get((int) (indx.x - 1));
-						glVertex3f(v1.x, v1.y, v1.z);
-					}
-					
-					
-					if(norm != null)
-					{
-						Vector3f n1 = normals.get((int) (norm.y - 1));
-						glNormal3f(n1.x, n1.y, n1.z);
-					}
-					if(tetu != null)
-					{
-						Vector2f t1 = textures.get((int) (tetu.y - 1));
-						glTexCoord2f(t1.x, t1.y);
-					}
-					if(indx != null)
-					{
-						Vector3f v1 = vertices.get((int) (indx.y - 1));
-						glVertex3f(v1.x, v1.y, v1.z);
-					}
-					
-					
-					if(norm != null)
-					{
-						Vector3f n1 = normals.get((int) (norm.z - 1));
-						glNormal3f(n1.x, n1.y, n1.z);
-					}
-					if(tetu != null)
-					{
-						Vector2f t1 = textures.get((int) (tetu.z - 1));
-						glTexCoord2f(t1.x, t1.y);
-					}
-					if(indx != null)
-					{
-						Vector3f v1 = vertices.get((int) (indx.z - 1));
-						glVertex3f(v1.x, v1.y, v1.z);
-					}
-		        }
-				glEnd();
-				//glActiveTexture(GL_TEXTURE0); 
+				applyMaterial(mesh.getRangeMaterial(range));
+				glDrawElements(GL_TRIANGLES, mesh.getRangeIndexCount(range), mesh.getIndexType(), mesh.getRangeIndices(range));
 			}
-			
 		}
 		glEndList();
+		
+		glDisableClientState(GL_VERTEX_ARRAY);
+		glDisableClientState(GL_NORMAL_ARRAY);
+		glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+	}
+	
+	
+	/** 
+     * Set the material uniforms of the model shader.
+     */
+	private void applyMaterial(int material)
+	{
+		if(material < 0)
+		{
+			return;
+		}
+		Material current = materials.get(material);
+		
+		glUniform3f(diffuseLocation, current.getDiffuse().x, current.getDiffuse().y, current.getDiffuse().z);
+		glUniform3f(specularLocation, current.getSpecular().x, current.getSpecular().y, current.getSpecular().z);
+		glUniform3f(ambientLocation, current.getAmbient().x, current.getAmbient().y, current.getAmbient().z);
+		glUniform1f(dissolveLocation, current.getDissolve());
+		glUniform1f(shininessLocation, current.getShininess());
+		glUniform1f(illumLocation, current.getIlluminance());
 	}
 	
 	
 	/** 
-     * Draw the model list.
+     * Draw the model, one draw call per material.
      */
 	public void draw()
 	{
 		modelShader.enableShader();
-		glCallList(obj);
+		setIdentityInstance();
+		if(vbo == 0)
+		{
+			glCallList(obj);
+		}
+		else
+		{
+			beginArrays();
+			for(int range = 0; range < mesh.getRangeCount(); range++)
+			{
+				applyMaterial(mesh.getRangeMaterial(range));
+				glDrawElements(GL_TRIANGLES, mesh.getRangeIndexCount(range), mesh.getIndexType(), 
+						(long) mesh.getRangeFirst(range) * mesh.getIndexSize());
+			}
+			endArrays();
+		}
 		modelShader.disableShader();	
 	}
 	
-	public List<Vector3f> getVertices() {
-		return vertices;
-	}
-	public void setVertices(List<Vector3f> vertices) {
-		this.vertices = vertices;
-	}
-	public List<Vector2f> getTextures() {
-		return textures;
+	
+	/** 
+     * Draw many copies of the model. The matrices buffer holds one column-major 
+     * 4x4 object-to-world matrix per instance (see ModelInstance.writeMatrix), 
+     * applied on top of the current modelview matrix.
+     * 
+     * With instanced arrays the matrices are uploaded once and every instance is 
+     * drawn by one call per material. Otherwise each instance is drawn in turn.
+     */
+	public void drawInstanced(FloatBuffer matrices, int count)
+	{
+		if(count <= 0)
+		{
+			return;
+		}
+		if(!instancing)
+		{
+			FloatBuffer matrix = matrices.duplicate();
+			for(int i = 0; i < count; i++)
+			{
+				matrix.limit(matrices.position() + (i + 1) * 16);
+				matrix.position(matrices.position() + i * 16);
+				glPushMatrix();
+				glMultMatrix(matrix);
+				draw();
+				glPopMatrix();
+			}
+			return;
+		}
+		
+		modelShader.enableShader();
+		beginArrays();
+		glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+		glBufferData(GL_ARRAY_BUFFER, matrices, GL_STREAM_DRAW);
+		for(int column = 0; column < 4; column++)
+		{
+			int location = instanceMatrixLocation + column;
+			glEnableVertexAttribArray(location);
+			glVertexAttribPointer(location, 4, GL_FLOAT, false, 64, column * 16);
+			vertexAttribDivisor(location, 1);
+		}
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		
+		for(int range = 0; range < mesh.getRangeCount(); range++)
+		{
+			applyMaterial(mesh.getRangeMaterial(range));
+			long offset = (long) mesh.getRangeFirst(range) * mesh.getIndexSize();
+			if(arbDraw)
+			{
+				ARBDrawInstanced.glDrawElementsInstancedARB(GL_TRIANGLES, mesh.getRangeIndexCount(range), mesh.getIndexType(), offset, count);
+			}
+			else
+			{
+				glDrawElementsInstanced(GL_TRIANGLES, mesh.getRangeIndexCount(range), mesh.getIndexType(), offset, count);
+			}
+		}
+		
+		for(int column = 0; column < 4; column++)
+		{
+			vertexAttribDivisor(instanceMatrixLocation + column, 0);
+			glDisableVertexAttribArray(instanceMatrixLocation + column);
+		}
+		endArrays();
+		modelShader.disableShader();
 	}
-	public void setTextures(List<Vector2f> textures) {
-		this.textures = textures;
+	
+	private void vertexAttribDivisor(int location, int divisor)
+	{
+		if(arbDivisor)
+		{
+			ARBInstancedArrays.glVertexAttribDivisorARB(location, divisor);
+		}
+		else
+		{
+			glVertexAttribDivisor(location, divisor);
+		}
 	}
-	public List<Vector3f> getNormals() {
-		return normals;
+	
+	
+	/** 
+     * Single draws use the identity as the instance matrix.
+     */
+	private void setIdentityInstance()
+	{
+		if(instanceMatrixLocation < 0)
+		{
+			return;
+		}
+		glVertexAttrib4f(instanceMatrixLocation, 1, 0, 0, 0);
+		glVertexAttrib4f(instanceMatrixLocation + 1, 0, 1, 0, 0);
+		glVertexAttrib4f(instanceMatrixLocation + 2, 0, 0, 1, 0);
+		glVertexAttrib4f(instanceMatrixLocation + 3, 0, 0, 0, 1);
 	}
-	public void setNormals(List<Vector3f> normals) {
-		this.normals = normals;
+	
+	private void beginArrays()
+	{
+		if(vao != 0)
+		{
+			glBindVertexArray(vao);
+		}
+		else
+		{
+			bindArrays();
+		}
 	}
-	public List<Face> getFaces() {
-		return faces;
+	
+	private void endArrays()
+	{
+		if(vao != 0)
+		{
+			glBindVertexArray(0);
+		}
+		else
+		{
+			unbindArrays();
+		}
 	}
-	public void setFaces(List<Face> faces) {
-		this.faces = faces;
+	
+	public MeshData getMesh() {
+		return mesh;
 	}
 
 	public Shader getModelShader() {
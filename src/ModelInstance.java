@@ -0,0 +1,104 @@
+/** 
+ * 3D Video Game: Journey of a Dragon.
+ * 
+ * Author: Jihan Li
+ * 
+ * This is the model instance class. It places a shared Model asset in the 
+ * world with its own position, heading and scale.
+ * 
+ */
+
+package src;
+
+import static org.lwjgl.opengl.GL11.*;
+
+import java.nio.FloatBuffer;
+
+import org.lwjgl.util.vector.Vector3f;
+
+public class ModelInstance {
+	
+	private Model model;
+	private Vector3f position = new Vector3f(0, 0, 0);
+	private float yaw = 0;
+	private float scale = 1;
+	
+	public ModelInstance(Model model)
+	{
+		this.model = model;
+	}
+	
+	
+	/** 
+     * Draw the shared model with this instance's transform.
+     */
+	public void draw()
+	{
+		glPushMatrix();
+		{
+			glTranslatef(position.x, position.y, position.z);
+			glRotatef(yaw, 0, 1, 0);
+			glScalef(scale, scale, scale);
+			model.draw();
+		}
+		glPopMatrix();
+	}
+	
+	/** 
+     * Append this instance's transform (translate, then yaw, then scale) 
+     * as a column-major 4x4 matrix, the layout Model.drawInstanced reads.
+     */
+	public void writeMatrix(FloatBuffer matrices)
+	{
+		writeMatrix(matrices, position.x, position.y, position.z, yaw, scale);
+	}
+	
+	public static void writeMatrix(FloatBuffer matrices, float x, float y, float z, float yaw, float scale)
+	{
+		double angle = Math.toRadians(yaw);
+		writeMatrix(matrices, x, y, z, (float) Math.cos(angle), (float) Math.sin(angle), scale);
+	}
+	
+	
+	/** 
+     * Same as above, with the yaw given as its cosine and sine.
+     */
+	public static void writeMatrix(FloatBuffer matrices, float x, float y, float z, float cos, float sin, float scale)
+	{
+		cos *= scale;
+		sin *= scale;
+		matrices.put(cos).put(0).put(-sin).put(0);
+		matrices.put(0).put(scale).put(0).put(0);
+		matrices.put(sin).put(0).put(cos).put(0);
+		matrices.put(x).put(y).put(z).put(1);
+	}
+	
+	public void setPosition(float x, float y, float z)
+	{
+		position.set(x, y, z);
+	}
+
+	public Model getModel() {
+		return model;
+	}
+
+	public Vector3f getPosition() {
+		return position;
+	}
+
+	public float getYaw() {
+		return yaw;
+	}
+
+	public void setYaw(float yaw) {
+		this.yaw = yaw;
+	}
+
+	public float getScale() {
+		return scale;
+	}
+
+	public void setScale(float scale) {
+		this.scale = scale;
+	}
+}
@@ -0,0 +1,64 @@
+/** 
+ * 3D Video Game: Journey of a Dragon.
+ * 
+ * Author: Jihan Li
+ * 
+ * This is the model registry class. It loads each named model asset once, 
+ * so its geometry, materials, textures, shader and display list are shared 
+ * by every instance placed in the world.
+ * 
+ */
+
+package src;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+public class ModelRegistry {
+	
+	private LinkedHashMap<String, Model> models = new LinkedHashMap<String, Model>();
+	
+	
+	/** 
+     * Get a model asset, loading it the first time it is requested.
+     */
+	public Model getModel(String name) throws IOException
+	{
+		Model model = models.get(name);
+		if(model == null)
+		{
+			model = new Model();
+			model.loadModel(name);
+			models.put(name, model);
+		}
+		return model;
+	}
+	
+	
+	/** 
+     * Create a new instance of a model asset with its own transform.
+     */
+	public ModelInstance createInstance(String name) throws IOException
+	{
+		return new ModelInstance(getModel(name));
+	}
+	
+	
+	/** 
+     * Release the GL resources of all loaded assets.
+     */
+	public void cleanup()
+	{
+		for(Model model : models.values())
+		{
+			model.getModelShader().deleteShader();
+			model.cleanup();
+		}
+		models.clear();
+	}
+	
+	public int size()
+	{
+		return models.size();
+	}
+}
@@ -0,0 +1,593 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the NPC simulation class. It moves the NPC dragons on a fixed
+ * timestep, independent of the frame rate, and keeps their state in packed
+ * primitive arrays (one array per attribute) so any number of dragons can
+ * be stepped and exported to the renderer in tight loops.
+ *
+ * The dragons flock: each one steers away from close neighbors (separation),
+ * towards their average heading (alignment) and towards their average
+ * position (cohesion). Neighbors are found through a uniform grid hashed into
+ * a fixed table, so a step costs O(n). Each step reads the current state and
+ * writes the next one, and the agents are updated in fixed chunks on the
+ * fork-join pool, so the result for a given seed does not depend on the
+ * number of threads.
+ *
+ * Reference:
+ *
+ * Flocks, Herds, and Schools: A Distributed Behavioral Model, by Craig Reynolds
+ * https://www.red3d.com/cwr/boids/
+ *
+ */
+
+package src;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class NpcSimulation {
+
+	/**
+     * Length of one simulation step in seconds.
+     */
+	public static final float FIXED_STEP = 1.0f / 60.0f;
+
+	/**
+     * Agents per parallel task. Fixed, so the work split never depends on the machine.
+     */
+	private static final int CHUNK = 2048;
+
+	/**
+     * Flocking parameters, in world units and seconds. The grid cell is as
+     * large as the neighbor radius, so the 27 cells around an agent cover it.
+     */
+	private static final float NEIGHBOR_RADIUS = 80.0f;
+	private static final float SEPARATION_RADIUS = 30.0f;
+	private static final float CELL_SIZE = NEIGHBOR_RADIUS;
+	private static final int MAX_NEIGHBORS = 24;
+
+	private static final float SEPARATION_WEIGHT = 2400.0f;
+	private static final float ALIGNMENT_WEIGHT = 1.2f;
+	private static final float COHESION_WEIGHT = 0.4f;
+	private static final float RETURN_WEIGHT = 0.2f;
+	private static final float TERRAIN_WEIGHT = 4.0f;
+
+	private static final float MIN_SPEED = 40.0f;
+	private static final float MAX_SPEED = 120.0f;
+	private static final float MAX_ACCELERATION = 150.0f;
+
+	/**
+     * Dragons keep this far above the ground, look this many seconds ahead
+     * for rising terrain, and turn back below the ceiling.
+     */
+	private static final float CLEARANCE = 30.0f;
+	private static final float LOOK_AHEAD = 0.75f;
+	private static final float CEILING = 600.0f;
+
+	private static final float[] DEFAULT_SIZE = {1.0f, 2.0f, 2.5f, 3.0f, 1.5f, 2.5f, 3.0f, 1.0f, 2.8f, 3.2f};
+
+	private int count;
+
+	private float[] posX, posY, posZ;
+	private float[] velX, velY, velZ;
+	private float[] nextPosX, nextPosY, nextPosZ;
+	private float[] nextVelX, nextVelY, nextVelZ;
+	private float[] headingCos, headingSin;
+	private float[] scale;
+
+	/**
+     * The dragons roam within this horizontal distance of the origin. It grows
+     * with the flock so large flocks are not packed into a small space.
+     */
+	private float roamRadius;
+
+	/**
+     * Spatial hash: each occupied cell gets a number c for the step, found by
+     * its key in an open-addressed table, and cellStart[c] to cellStart[c + 1]
+     * is the range of cellAgents holding its agents, in index order.
+     */
+	private long[] tableKey;
+	private int[] tableCell;
+	private int tableMask;
+	private int[] cellStart;
+	private int[] cellAgents;
+	private int[] agentCell;
+	private long[] agentKey;
+
+	/**
+     * Cell keys, positions and velocities copied into cellAgents order, so
+     * the agents of a cell, and their neighbors, are read from consecutive
+     * memory.
+     */
+	private long[] cellKey;
+	private float[] cellPosX, cellPosY, cellPosZ;
+	private float[] cellVelX, cellVelY, cellVelZ;
+
+	/**
+     * Per chunk, the cellAgents ranges of the 27 cells around the cell being
+     * updated, as start and end pairs.
+     */
+	private int[][] neighborRanges;
+
+	/**
+     * Per chunk, the cellAgents slots of the neighbors of the agent being updated.
+     */
+	private int[][] neighborSlots;
+
+	/**
+     * The terrain the dragons keep above, queried through Map.heightAt().
+     * Where no tile is loaded, or while this is null before setTerrain(), the
+     * ground is taken as minus infinity and does not hold the dragons up.
+     */
+	private Map terrain;
+
+	private boolean parallel = true;
+	private long steps;
+
+
+	/**
+     * Create count dragons. The first ten use the classic sizes, any beyond
+     * that get random ones in the same range.
+     */
+	public NpcSimulation(int count, long seed)
+	{
+		this.count = count;
+		posX = new float[count];
+		posY = new float[count];
+		posZ = new float[count];
+		velX = new float[count];
+		velY = new float[count];
+		velZ = new float[count];
+		nextPosX = new float[count];
+		nextPosY = new float[count];
+		nextPosZ = new float[count];
+		nextVelX = new float[count];
+		nextVelY = new float[count];
+		nextVelZ = new float[count];
+		headingCos = new float[count];
+		headingSin = new float[count];
+		scale = new float[count];
+
+		int slots = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+		tableKey = new long[slots];
+		tableCell = new int[slots];
+		tableMask = slots - 1;
+		cellStart = new int[count + 1];
+		cellAgents = new int[count];
+		agentCell = new int[count];
+		agentKey = new long[count];
+		cellKey = new long[count];
+		cellPosX = new float[count];
+		cellPosY = new float[count];
+		cellPosZ = new float[count];
+		cellVelX = new float[count];
+		cellVelY = new float[count];
+		cellVelZ = new float[count];
+		neighborRanges = new int[count / CHUNK + 1][27 * 2];
+		neighborSlots = new int[count / CHUNK + 1][MAX_NEIGHBORS];
+
+		roamRadius = Math.min(1500.0f, 400.0f + 4.0f * (float) Math.sqrt(count));
+
+		Random random = new Random(seed);
+		for(int i = 0; i < count; i++)
+		{
+			double angle = random.nextDouble() * 2 * Math.PI;
+			float radius = roamRadius * (float) Math.sqrt(random.nextDouble());
+			posX[i] = radius * (float) Math.cos(angle);
+			posY[i] = random.nextFloat() * 400 - 50;
+			posZ[i] = radius * (float) Math.sin(angle);
+
+			double direction = random.nextDouble() * 2 * Math.PI;
+			float speed = MIN_SPEED + random.nextFloat() * (MAX_SPEED - MIN_SPEED);
+			velX[i] = speed * (float) Math.cos(direction);
+			velY[i] = 0;
+			velZ[i] = speed * (float) Math.sin(direction);
+
+			scale[i] = (i < DEFAULT_SIZE.length) ? DEFAULT_SIZE[i] : 1.0f + random.nextFloat() * 2.2f;
+			setHeading(i, velX[i], velZ[i]);
+		}
+		// Between steps the next positions hold the previous ones, see exportState().
+		System.arraycopy(posX, 0, nextPosX, 0, count);
+		System.arraycopy(posY, 0, nextPosY, 0, count);
+		System.arraycopy(posZ, 0, nextPosZ, 0, count);
+	}
+
+
+	/**
+     * Keep the dragons above the terrain, as Map.heightAt() gives it under
+     * whichever tile is loaded there.
+     */
+	public void setTerrain(Map terrain)
+	{
+		this.terrain = terrain;
+	}
+
+	/**
+     * Update the agents on the fork-join pool (the default) or on the calling thread.
+     * Both give the same result.
+     */
+	public void setParallel(boolean parallel)
+	{
+		this.parallel = parallel;
+	}
+
+
+	/**
+     * Take one step of dt seconds.
+     */
+	public void step(final float dt)
+	{
+		buildGrid();
+		if(parallel && count > CHUNK)
+		{
+			// Bands split on chunk boundaries, so every chunk covers the same agents on any machine.
+			Bands.invoke(0, count, CHUNK, new Bands.Work() {
+				public void run(int from, int to)
+				{
+					update(from, to, dt);
+				}
+			});
+		}
+		else
+		{
+			update(0, count, dt);
+		}
+
+		float[] swap;
+		swap = posX; posX = nextPosX; nextPosX = swap;
+		swap = posY; posY = nextPosY; nextPosY = swap;
+		swap = posZ; posZ = nextPosZ; nextPosZ = swap;
+		swap = velX; velX = nextVelX; nextVelX = swap;
+		swap = velY; velY = nextVelY; nextVelY = swap;
+		swap = velZ; velZ = nextVelZ; nextVelZ = swap;
+		steps++;
+	}
+
+
+	/**
+     * Number the occupied cells in the order their first agent comes, sort
+     * the agents by cell with a counting sort and gather their state in that
+     * order. Agents keep their index order within a cell, so neighbor order
+     * is deterministic.
+     */
+	private void buildGrid()
+	{
+		Arrays.fill(tableCell, -1);
+		int cells = 0;
+		for(int i = 0; i < count; i++)
+		{
+			int cx = cell(posX[i]), cy = cell(posY[i]), cz = cell(posZ[i]);
+			long key = key(cx, cy, cz);
+			int slot = bucket(cx, cy, cz);
+			while(tableCell[slot] >= 0 && tableKey[slot] != key)
+			{
+				slot = (slot + 1) & tableMask;
+			}
+			if(tableCell[slot] < 0)
+			{
+				tableKey[slot] = key;
+				tableCell[slot] = cells;
+				cellStart[++cells] = 0;
+			}
+			agentCell[i] = tableCell[slot];
+			agentKey[i] = key;
+			cellStart[agentCell[i] + 1]++;
+		}
+		cellStart[0] = 0;
+		for(int c = 1; c <= cells; c++)
+		{
+			cellStart[c] += cellStart[c - 1];
+		}
+		for(int i = 0; i < count; i++)
+		{
+			// cellStart[c] is used as the fill cursor and restored below.
+			cellAgents[cellStart[agentCell[i]]++] = i;
+		}
+		for(int c = cells; c > 0; c--)
+		{
+			cellStart[c] = cellStart[c - 1];
+		}
+		cellStart[0] = 0;
+
+		for(int k = 0; k < count; k++)
+		{
+			int i = cellAgents[k];
+			cellKey[k] = agentKey[i];
+			cellPosX[k] = posX[i];
+			cellPosY[k] = posY[i];
+			cellPosZ[k] = posZ[i];
+			cellVelX[k] = velX[i];
+			cellVelY[k] = velY[i];
+			cellVelZ[k] = velZ[i];
+		}
+	}
+
+
+	/**
+     * The number of an occupied cell this step, or -1 for an empty one.
+     */
+	private int findCell(int cx, int cy, int cz)
+	{
+		long key = key(cx, cy, cz);
+		int slot = bucket(cx, cy, cz);
+		while(tableCell[slot] >= 0)
+		{
+			if(tableKey[slot] == key)
+			{
+				return tableCell[slot];
+			}
+			slot = (slot + 1) & tableMask;
+		}
+		return -1;
+	}
+
+	private static int cell(float coordinate)
+	{
+		return (int) Math.floor(coordinate / CELL_SIZE);
+	}
+
+	private int bucket(int cx, int cy, int cz)
+	{
+		return (cx * 73856093 ^ cy * 19349663 ^ cz * 83492791) & tableMask;
+	}
+
+	private static long key(int cx, int cy, int cz)
+	{
+		return ((cx & 0x1FFFFFL) << 42) | ((cy & 0x1FFFFFL) << 21) | (cz & 0x1FFFFFL);
+	}
+
+
+	/**
+     * Steer and move the agents in slots [from, to) of cellAgents, reading the
+     * current state and writing the next. from is a multiple of CHUNK.
+     */
+	private void update(int from, int to, float dt)
+	{
+		float neighborSq = NEIGHBOR_RADIUS * NEIGHBOR_RADIUS;
+		float separationSq = SEPARATION_RADIUS * SEPARATION_RADIUS;
+
+		// Agents are visited in grid order, so the agents of a cell come one after
+		// another and share the ranges of the 27 cells around it.
+		int[] ranges = neighborRanges[from / CHUNK];
+		int[] neighbors = neighborSlots[from / CHUNK];
+		int rangeCount = 0;
+		for(int s = from; s < to; s++)
+		{
+			int i = cellAgents[s];
+			float px = cellPosX[s], py = cellPosY[s], pz = cellPosZ[s];
+			float vx = cellVelX[s], vy = cellVelY[s], vz = cellVelZ[s];
+
+			if(s == from || cellKey[s] != cellKey[s - 1])
+			{
+				rangeCount = 0;
+				int cx = cell(px), cy = cell(py), cz = cell(pz);
+				for(int dx = -1; dx <= 1; dx++)
+				{
+					for(int dy = -1; dy <= 1; dy++)
+					{
+						for(int dz = -1; dz <= 1; dz++)
+						{
+							int c = findCell(cx + dx, cy + dy, cz + dz);
+							if(c >= 0)
+							{
+								ranges[rangeCount++] = cellStart[c];
+								ranges[rangeCount++] = cellStart[c + 1];
+							}
+						}
+					}
+				}
+			}
+
+			// Find the neighbors first. Most agents looked at are out of range, too
+			// unpredictably for a branch, so every one is written to neighbors and
+			// only counted, from the sign bit of the distance test, if it is in range.
+			int found = 0;
+			search:
+			for(int r = 0; r < rangeCount; r += 2)
+			{
+				for(int k = ranges[r]; k < ranges[r + 1]; k++)
+				{
+					float ox = cellPosX[k] - px, oy = cellPosY[k] - py, oz = cellPosZ[k] - pz;
+					float distanceSq = ox * ox + oy * oy + oz * oz;
+					neighbors[found] = k;
+					found += (Float.floatToRawIntBits(distanceSq - neighborSq) >>> 31) & ((k - s | s - k) >>> 31);
+					if(found == MAX_NEIGHBORS)
+					{
+						break search;
+					}
+				}
+			}
+
+			float sumVx = 0, sumVy = 0, sumVz = 0;
+			float sumPx = 0, sumPy = 0, sumPz = 0;
+			float sepX = 0, sepY = 0, sepZ = 0;
+			for(int n = 0; n < found; n++)
+			{
+				int k = neighbors[n];
+				float ox = cellPosX[k] - px, oy = cellPosY[k] - py, oz = cellPosZ[k] - pz;
+				float distanceSq = ox * ox + oy * oy + oz * oz;
+				sumVx += cellVelX[k];
+				sumVy += cellVelY[k];
+				sumVz += cellVelZ[k];
+				sumPx += ox;
+				sumPy += oy;
+				sumPz += oz;
+				if(distanceSq < separationSq)
+				{
+					// Push away harder the closer the neighbor is.
+					float push = 1.0f / Math.max(distanceSq, 1.0f);
+					sepX -= ox * push;
+					sepY -= oy * push;
+					sepZ -= oz * push;
+				}
+			}
+
+			float ax = 0, ay = 0, az = 0;
+			if(found > 0)
+			{
+				float inverse = 1.0f / found;
+				ax += (sumVx * inverse - vx) * ALIGNMENT_WEIGHT + sumPx * inverse * COHESION_WEIGHT + sepX * SEPARATION_WEIGHT;
+				ay += (sumVy * inverse - vy) * ALIGNMENT_WEIGHT + sumPy * inverse * COHESION_WEIGHT + sepY * SEPARATION_WEIGHT;
+				az += (sumVz * inverse - vz) * ALIGNMENT_WEIGHT + sumPz * inverse * COHESION_WEIGHT + sepZ * SEPARATION_WEIGHT;
+			}
+
+			// Turn back towards the middle of the world when straying too far.
+			float distance = (float) Math.sqrt(px * px + pz * pz);
+			if(distance > roamRadius)
+			{
+				float pull = (distance - roamRadius) * RETURN_WEIGHT / distance;
+				ax -= px * pull;
+				az -= pz * pull;
+			}
+
+			// Climb early when the ground ahead rises, and sink back below the ceiling.
+			float ground = Math.max(groundAt(px, pz), groundAt(px + vx * LOOK_AHEAD, pz + vz * LOOK_AHEAD));
+			if(py < ground + 2 * CLEARANCE)
+			{
+				ay += (ground + 2 * CLEARANCE - py) * TERRAIN_WEIGHT;
+			}
+			if(py > CEILING)
+			{
+				ay -= (py - CEILING) * RETURN_WEIGHT;
+			}
+
+			float acceleration = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+			if(acceleration > MAX_ACCELERATION)
+			{
+				float limit = MAX_ACCELERATION / acceleration;
+				ax *= limit;
+				ay *= limit;
+				az *= limit;
+			}
+
+			vx += ax * dt;
+			vy += ay * dt;
+			vz += az * dt;
+			float speed = (float) Math.sqrt(vx * vx + vy * vy + vz * vz);
+			if(speed > MAX_SPEED || speed < MIN_SPEED)
+			{
+				float target = speed > MAX_SPEED ? MAX_SPEED : MIN_SPEED;
+				float limit = speed > 0 ? target / speed : 0;
+				vx *= limit;
+				vy *= limit;
+				vz *= limit;
+			}
+
+			px += vx * dt;
+			py += vy * dt;
+			pz += vz * dt;
+
+			// Never end a step inside a mountain.
+			float floor = groundAt(px, pz) + CLEARANCE;
+			if(py < floor)
+			{
+				py = floor;
+				if(vy < 0)
+				{
+					vy = 0;
+				}
+			}
+
+			nextPosX[i] = px;
+			nextPosY[i] = py;
+			nextPosZ[i] = pz;
+			nextVelX[i] = vx;
+			nextVelY[i] = vy;
+			nextVelZ[i] = vz;
+			// Only agent i's heading is written here, so chunks never share a slot.
+			setHeading(i, vx, vz);
+		}
+	}
+
+
+	/**
+     * Height of the terrain under a world position, the same one Camera
+     * collides with. Minus infinity where no tile is loaded or before
+     * setTerrain().
+     */
+	private float groundAt(float x, float z)
+	{
+		if(terrain == null)
+		{
+			return Float.NEGATIVE_INFINITY;
+		}
+		float ground = terrain.heightAt(x, z);
+		return Float.isNaN(ground) ? Float.NEGATIVE_INFINITY : ground;
+	}
+
+
+	/**
+     * Face the dragon along its horizontal velocity. The dragon model faces -z,
+     * so the yaw rotates -z onto the velocity.
+     */
+	private void setHeading(int i, float vx, float vz)
+	{
+		float length = (float) Math.sqrt(vx * vx + vz * vz);
+		if(length > 0)
+		{
+			headingCos[i] = -vz / length;
+			headingSin[i] = -vx / length;
+		}
+	}
+
+
+	/**
+     * Write one column-major 4x4 matrix per dragon into the buffer, in the
+     * layout Model.drawInstanced reads. The buffer must have room for
+     * 16 * getCount() floats.
+     */
+	public void exportTransforms(FloatBuffer matrices)
+	{
+		for(int i = 0; i < count; i++)
+		{
+			ModelInstance.writeMatrix(matrices, posX[i], posY[i], posZ[i], headingCos[i], headingSin[i], scale[i]);
+		}
+	}
+
+
+	/**
+     * Write FrameSnapshot.NPC_FLOATS floats per dragon into state: its position
+     * before the last step and now, its heading and its scale. After a step
+     * swaps the state arrays, the next positions are the previous step's,
+     * untouched until the following step overwrites them.
+     */
+	public void exportState(float[] state)
+	{
+		for(int i = 0, s = 0; i < count; i++, s += FrameSnapshot.NPC_FLOATS)
+		{
+			state[s] = nextPosX[i];
+			state[s + 1] = nextPosY[i];
+			state[s + 2] = nextPosZ[i];
+			state[s + 3] = posX[i];
+			state[s + 4] = posY[i];
+			state[s + 5] = posZ[i];
+			state[s + 6] = headingCos[i];
+			state[s + 7] = headingSin[i];
+			state[s + 8] = scale[i];
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getSteps() {
+		return steps;
+	}
+
+	public float getX(int i) {
+		return posX[i];
+	}
+
+	public float getY(int i) {
+		return posY[i];
+	}
+
+	public float getZ(int i) {
+		return posZ[i];
+	}
+}
@@ -0,0 +1,408 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the obj parser class. It streams an .obj file through a reusable
+ * character buffer and writes positions, texture coordinates, normals and
+ * face indices straight into primitive stores, without creating a String
+ * or vector object per line.
+ *
+ * Supported statements: v, vt, vn, f, usemtl and mtllib. Face corners may be
+ * written as v, v/vt, v//vn or v/vt/vn, and negative indices are resolved
+ * relative to the current end of each list.
+ *
+ */
+
+package src;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ObjParser {
+
+	/**
+     * Each face stores 9 ints: position, texture and normal index for each of
+     * its three corners. Indices are 0-based, and -1 means the attribute is absent.
+     */
+	public static final int FACE_STRIDE = 9;
+
+	private static final float[] POWERS_OF_TEN = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+	private static final int MAX_EXACT_MANTISSA = 1 << 24;
+
+	private FloatList positions = new FloatList(3 * 4096);
+	private FloatList texCoords = new FloatList(2 * 4096);
+	private FloatList normals = new FloatList(3 * 4096);
+	private IntList faces = new IntList(FACE_STRIDE * 4096);
+	private IntList faceMaterials = new IntList(4096);
+	private List<String> materialNames = new ArrayList<String>();
+	private String mtllib;
+
+	private Reader reader;
+	private char[] chunk = new char[1 << 16];
+	private int chunkPos, chunkLen;
+	private char[] line = new char[256];
+	private int lineLen, cursor;
+
+
+	/**
+     * Parse the .obj file.
+     */
+	public void parse(File file) throws IOException
+	{
+		reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.ISO_8859_1);
+		int material = -1;
+
+		try
+		{
+			while(nextLine())
+			{
+				int start = skipBlank();
+				int end = skipToken();
+				int len = end - start;
+
+				if(len == 0 || line[start] == '#')
+				{
+					continue;
+				}
+
+				if(len == 1 && line[start] == 'v')
+				{
+					positions.add(nextFloat());
+					positions.add(nextFloat());
+					positions.add(nextFloat());
+				}
+				else if(len == 2 && line[start] == 'v' && line[start+1] == 't')
+				{
+					texCoords.add(nextFloat());
+					texCoords.add(nextFloat());
+				}
+				else if(len == 2 && line[start] == 'v' && line[start+1] == 'n')
+				{
+					normals.add(nextFloat());
+					normals.add(nextFloat());
+					normals.add(nextFloat());
+				}
+				else if(len == 1 && line[start] == 'f')
+				{
+					// Only the first three corners are used, the same as the old parser.
+					for(int i = 0; i < 3; i++)
+					{
+						nextCorner();
+					}
+					faceMaterials.add(material);
+				}
+				else if(matches(start, len, "usemtl"))
+				{
+					if(mtllib != null)
+					{
+						material = materialId(nextString());
+					}
+				}
+				else if(matches(start, len, "mtllib"))
+				{
+					mtllib = nextString();
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+			reader = null;
+		}
+	}
+
+
+	/**
+     * Read the next line into the line buffer. Returns false at the end of the file.
+     */
+	private boolean nextLine() throws IOException
+	{
+		lineLen = 0;
+		cursor = 0;
+		boolean read = false;
+
+		while(true)
+		{
+			if(chunkPos == chunkLen)
+			{
+				chunkLen = reader.read(chunk, 0, chunk.length);
+				chunkPos = 0;
+				if(chunkLen <= 0)
+				{
+					chunkLen = 0;
+					return read;
+				}
+			}
+			read = true;
+
+			char c = chunk[chunkPos++];
+			if(c == '\n')
+			{
+				return true;
+			}
+			if(c == '\r')
+			{
+				continue;
+			}
+			if(lineLen == line.length)
+			{
+				char[] grown = new char[line.length * 2];
+				System.arraycopy(line, 0, grown, 0, lineLen);
+				line = grown;
+			}
+			line[lineLen++] = c;
+		}
+	}
+
+
+	/**
+     * Skip spaces and tabs and return the start of the next token.
+     */
+	private int skipBlank()
+	{
+		while(cursor < lineLen && (line[cursor] == ' ' || line[cursor] == '\t'))
+		{
+			cursor++;
+		}
+		return cursor;
+	}
+
+
+	/**
+     * Skip the current token and return its end.
+     */
+	private int skipToken()
+	{
+		while(cursor < lineLen && line[cursor] != ' ' && line[cursor] != '\t')
+		{
+			cursor++;
+		}
+		return cursor;
+	}
+
+	private boolean matches(int start, int len, String keyword)
+	{
+		if(len != keyword.length())
+		{
+			return false;
+		}
+		for(int i = 0; i < len; i++)
+		{
+			if(line[start + i] != keyword.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String nextString() throws IOException
+	{
+		int start = skipBlank();
+		int end = skipToken();
+		if(start == end)
+		{
+			throw new IOException("Missing name in obj statement.");
+		}
+		return new String(line, start, end - start);
+	}
+
+
+	/**
+     * Parse the next token as a float. Plain decimals whose digits fit in a float
+     * mantissa are computed with one correctly rounded float operation, which gives
+     * the same bits as Float.parseFloat. Anything else falls back to Float.parseFloat.
+     */
+	private float nextFloat() throws IOException
+	{
+		int start = skipBlank();
+		int end = skipToken();
+		if(start == end)
+		{
+			throw new IOException("Missing value in obj statement.");
+		}
+
+		int i = start;
+		boolean negative = false;
+		if(line[i] == '-' || line[i] == '+')
+		{
+			negative = line[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int fraction = 0;
+		int digits = 0;
+		boolean point = false;
+		boolean simple = i < end;
+
+		for(; i < end; i++)
+		{
+			char c = line[i];
+			if(c >= '0' && c <= '9')
+			{
+				if(mantissa > MAX_EXACT_MANTISSA)
+				{
+					simple = false;
+					break;
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if(point)
+				{
+					fraction++;
+				}
+			}
+			else if(c == '.' && !point)
+			{
+				point = true;
+			}
+			else
+			{
+				simple = false;
+				break;
+			}
+		}
+
+		if(simple && digits > 0 && mantissa <= MAX_EXACT_MANTISSA && fraction < POWERS_OF_TEN.length)
+		{
+			float value = (float) mantissa / POWERS_OF_TEN[fraction];
+			return negative ? -value : value;
+		}
+
+		try
+		{
+			return Float.parseFloat(new String(line, start, end - start));
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IOException("Invalid number in obj file: " + new String(line, start, end - start));
+		}
+	}
+
+
+	/**
+     * Parse one face corner (v, v/vt, v//vn or v/vt/vn) into the face store.
+     */
+	private void nextCorner() throws IOException
+	{
+		int start = skipBlank();
+		int end = skipToken();
+		if(start == end)
+		{
+			throw new IOException("Face has fewer than three vertices.");
+		}
+
+		int i = start;
+		for(int field = 0; field < 3; field++)
+		{
+			int fieldEnd = i;
+			while(fieldEnd < end && line[fieldEnd] != '/')
+			{
+				fieldEnd++;
+			}
+
+			int count = field == 0 ? positions.size() / 3 : field == 1 ? texCoords.size() / 2 : normals.size() / 3;
+			faces.add(fieldEnd > i ? resolveIndex(parseInt(i, fieldEnd), count) : -1);
+
+			i = fieldEnd < end ? fieldEnd + 1 : end;
+		}
+	}
+
+	private int parseInt(int start, int end) throws IOException
+	{
+		int i = start;
+		boolean negative = line[i] == '-';
+		if(negative || line[i] == '+')
+		{
+			i++;
+		}
+		if(i == end)
+		{
+			throw new IOException("Invalid index in obj file.");
+		}
+		int value = 0;
+		for(; i < end; i++)
+		{
+			char c = line[i];
+			if(c < '0' || c > '9')
+			{
+				throw new IOException("Invalid index in obj file: " + new String(line, start, end - start));
+			}
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+
+	/**
+     * Turn a 1-based or negative (relative) obj index into a 0-based index.
+     */
+	private static int resolveIndex(int index, int count) throws IOException
+	{
+		if(index > 0)
+		{
+			return index - 1;
+		}
+		if(index < 0 && count + index >= 0)
+		{
+			return count + index;
+		}
+		throw new IOException("Invalid index in obj file: " + index);
+	}
+
+	private int materialId(String name)
+	{
+		int id = materialNames.indexOf(name);
+		if(id < 0)
+		{
+			id = materialNames.size();
+			materialNames.add(name);
+		}
+		return id;
+	}
+
+
+	public FloatList getPositions() {
+		return positions;
+	}
+
+	public FloatList getTexCoords() {
+		return texCoords;
+	}
+
+	public FloatList getNormals() {
+		return normals;
+	}
+
+	public IntList getFaces() {
+		return faces;
+	}
+
+	public int getFaceCount() {
+		return faceMaterials.size();
+	}
+
+
+	/**
+     * Material of each face, as an index into getMaterialNames(), or -1.
+     */
+	public IntList getFaceMaterials() {
+		return faceMaterials;
+	}
+
+	public List<String> getMaterialNames() {
+		return materialNames;
+	}
+
+	public String getMtllib() {
+		return mtllib;
+	}
+}
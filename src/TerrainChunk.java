@@ -0,0 +1,395 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the terrain chunk class. A chunk is a rectangle of heightmap quads
+ * with its own vertex buffer (or display list) and an axis-aligned bounding
+ * box, so the map can skip chunks outside the view frustum. Chunks of the
+ * same size share index buffers.
+ *
+ * Chunks are drawn with geomipmapping: level L uses every 2^L-th height
+ * sample (plus the last row and column) from the same full resolution
+ * vertex buffer. Where a neighbor is drawn at a coarser level, the vertices
+ * on the shared edge are snapped to the neighbor's samples, so both sides
+ * of the edge follow the same line and no cracks open.
+ *
+ * Reference:
+ *
+ * Fast Terrain Rendering Using Geometrical MipMapping, by Willem H. de Boer
+ *
+ */
+
+package src;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import org.lwjgl.BufferUtils;
+
+public class TerrainChunk {
+
+	/**
+     * Interleaved vertex layout: position xyz, normal xyz, color rgba.
+     */
+	public static final int POSITION_OFFSET = 0;
+	public static final int NORMAL_OFFSET = 3;
+	public static final int COLOR_OFFSET = 6;
+	public static final int VERTEX_FLOATS = 10;
+	public static final int VERTEX_BYTES = VERTEX_FLOATS * 4;
+
+	/**
+     * Number of detail levels. The coarsest level draws a full chunk as one quad.
+     */
+	public static final int LEVELS = Integer.numberOfTrailingZeros(Map.CHUNK_QUADS) + 1;
+
+	private int firstRow, firstColumn;
+	private int rows, columns;
+
+	private float minX, minY, minZ;
+	private float maxX, maxY, maxZ;
+
+	/**
+     * Geometric error of each level: the largest height difference between a
+     * full resolution sample and the level's surface. Never decreases with level.
+     */
+	private float[] errors = new float[LEVELS];
+
+	private int vbo;
+	private int list;
+
+
+	/**
+     * A chunk of rows by columns quads, starting at the given heightmap sample.
+     */
+	public TerrainChunk(int firstRow, int firstColumn, int rows, int columns)
+	{
+		this.firstRow = firstRow;
+		this.firstColumn = firstColumn;
+		this.rows = rows;
+		this.columns = columns;
+	}
+
+
+	/**
+     * Full detail triangle indices for a chunk of rows by columns quads.
+     */
+	public static ShortBuffer buildIndices(int rows, int columns)
+	{
+		return buildIndices(rows, columns, 1, 1, 1, 1, 1);
+	}
+
+
+	/**
+     * Triangle indices for a chunk of rows by columns quads drawn with every
+     * step-th sample, with the same winding as the terrain's old triangle
+     * strips. Vertex (r, c) is number r * (columns + 1) + c. The other steps
+     * are those of the neighbors across the first row, last row, first column
+     * and last column; edge vertices snap to a coarser neighbor's samples, and
+     * triangles that collapse are left out.
+     */
+	public static ShortBuffer buildIndices(int rows, int columns, int step,
+			int firstRowStep, int lastRowStep, int firstColumnStep, int lastColumnStep)
+	{
+		int[] rowSamples = samples(rows, step);
+		int[] columnSamples = samples(columns, step);
+		ShortBuffer indices = BufferUtils.createShortBuffer((rowSamples.length - 1) * (columnSamples.length - 1) * 6);
+		int[] corner = new int[4];
+
+		for(int ri = 0; ri < rowSamples.length - 1; ri++)
+		{
+			for(int ci = 0; ci < columnSamples.length - 1; ci++)
+			{
+				for(int k = 0; k < 4; k++)
+				{
+					int r = rowSamples[ri + (k & 1)];
+					int c = columnSamples[ci + (k >> 1)];
+					if(r == 0)
+					{
+						c = snap(c, columns, firstRowStep);
+					}
+					else if(r == rows)
+					{
+						c = snap(c, columns, lastRowStep);
+					}
+					if(c == 0)
+					{
+						r = snap(r, rows, firstColumnStep);
+					}
+					else if(c == columns)
+					{
+						r = snap(r, rows, lastColumnStep);
+					}
+					corner[k] = r * (columns + 1) + c;
+				}
+				// corner 0 = (r0, c0), 1 = (r1, c0), 2 = (r0, c1), 3 = (r1, c1)
+				putTriangle(indices, corner[0], corner[1], corner[2]);
+				putTriangle(indices, corner[2], corner[1], corner[3]);
+			}
+		}
+		indices.flip();
+		return indices;
+	}
+
+
+	/**
+     * Sample positions 0, step, 2 * step, ... along an edge of length quads,
+     * always ending with length itself.
+     */
+	private static int[] samples(int length, int step)
+	{
+		int[] samples = new int[(length + step - 1) / step + 1];
+		for(int i = 0; i < samples.length - 1; i++)
+		{
+			samples[i] = i * step;
+		}
+		samples[samples.length - 1] = length;
+		return samples;
+	}
+
+
+	/**
+     * Move an edge sample onto the grid of a coarser step, which has the same
+     * samples as samples(length, step).
+     */
+	private static int snap(int position, int length, int step)
+	{
+		return position == length ? length : position / step * step;
+	}
+
+	private static void putTriangle(ShortBuffer indices, int a, int b, int c)
+	{
+		if(a != b && b != c && a != c)
+		{
+			indices.put((short) a).put((short) b).put((short) c);
+		}
+	}
+
+
+	/**
+     * Measure the geometric error of every level against the full resolution
+     * heights. Each level's triangles are split along the same diagonal as
+     * buildIndices() uses.
+     */
+	public void computeErrors(HeightField altitude)
+	{
+		for(int level = 1; level < LEVELS; level++)
+		{
+			int step = 1 << level;
+			int[] rowSamples = samples(rows, step);
+			int[] columnSamples = samples(columns, step);
+			float error = errors[level - 1];
+
+			for(int ri = 0; ri < rowSamples.length - 1; ri++)
+			{
+				int r0 = rowSamples[ri], r1 = rowSamples[ri + 1];
+				for(int ci = 0; ci < columnSamples.length - 1; ci++)
+				{
+					int c0 = columnSamples[ci], c1 = columnSamples[ci + 1];
+					float h00 = height(altitude, r0, c0), h10 = height(altitude, r1, c0);
+					float h01 = height(altitude, r0, c1), h11 = height(altitude, r1, c1);
+
+					for(int r = r0; r <= r1; r++)
+					{
+						float u = (float) (r - r0) / (r1 - r0);
+						for(int c = c0; c <= c1; c++)
+						{
+							float v = (float) (c - c0) / (c1 - c0);
+							float surface = (u + v <= 1) ? h00 + u * (h10 - h00) + v * (h01 - h00)
+									: h11 + (1 - u) * (h01 - h11) + (1 - v) * (h10 - h11);
+							error = Math.max(error, Math.abs(height(altitude, r, c) - surface));
+						}
+					}
+				}
+			}
+			errors[level] = error;
+		}
+	}
+
+	private float height(HeightField altitude, int r, int c)
+	{
+		return altitude.sample(firstRow + r, firstColumn + c);
+	}
+
+
+	/**
+     * The coarsest level whose error, seen from the eye, covers at most
+     * maxError pixels. pixelsPerUnit is the size in pixels of one world unit
+     * at distance one. The eye is in the same space as the chunk's bounds.
+     */
+	public int selectLevel(float eyeX, float eyeY, float eyeZ, float pixelsPerUnit, float maxError)
+	{
+		float dx = Math.max(Math.max(minX - eyeX, eyeX - maxX), 0);
+		float dy = Math.max(Math.max(minY - eyeY, eyeY - maxY), 0);
+		float dz = Math.max(Math.max(minZ - eyeZ, eyeZ - maxZ), 0);
+		float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+		for(int level = LEVELS - 1; level > 0; level--)
+		{
+			if(errors[level] * pixelsPerUnit <= maxError * distance)
+			{
+				return level;
+			}
+		}
+		return 0;
+	}
+
+
+	/**
+     * Set the bounding box from the chunk's vertices.
+     */
+	public void computeBounds(FloatBuffer vertices)
+	{
+		minX = minY = minZ = Float.POSITIVE_INFINITY;
+		maxX = maxY = maxZ = Float.NEGATIVE_INFINITY;
+		for(int v = 0; v < getVertexCount(); v++)
+		{
+			int base = v * VERTEX_FLOATS + POSITION_OFFSET;
+			float x = vertices.get(base), y = vertices.get(base + 1), z = vertices.get(base + 2);
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			minZ = Math.min(minZ, z);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+			maxZ = Math.max(maxZ, z);
+		}
+	}
+
+
+	/**
+     * Set the bounding box of a chunk whose vertices are only placed on the
+     * GPU: x and z are given, y spans the chunk's heights.
+     */
+	public void computeBounds(HeightField altitude, float minX, float minZ, float maxX, float maxZ)
+	{
+		this.minX = minX;
+		this.minZ = minZ;
+		this.maxX = maxX;
+		this.maxZ = maxZ;
+		minY = Float.POSITIVE_INFINITY;
+		maxY = Float.NEGATIVE_INFINITY;
+		for(int r = 0; r <= rows; r++)
+		{
+			for(int c = 0; c <= columns; c++)
+			{
+				float y = height(altitude, r, c);
+				minY = Math.min(minY, y);
+				maxY = Math.max(maxY, y);
+			}
+		}
+	}
+
+
+	/**
+     * Upload the vertices to the chunk's own vertex buffer object.
+     */
+	public void upload(FloatBuffer vertices)
+	{
+		vbo = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, vbo);
+		glBufferData(GL_ARRAY_BUFFER, vertices, GL_STATIC_DRAW);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+	}
+
+
+	/**
+     * Compile the chunk into a display list, for when vertex buffers are not used.
+     */
+	public void compileList(FloatBuffer vertices, ShortBuffer indices, int diffuseLocation)
+	{
+		list = glGenLists(1);
+		glNewList(list, GL_COMPILE);
+		{
+			glBegin(GL_TRIANGLES);
+			for(int i = 0; i < indices.limit(); i++)
+			{
+				int base = indices.get(i) * VERTEX_FLOATS;
+				glNormal3f(vertices.get(base + NORMAL_OFFSET), vertices.get(base + NORMAL_OFFSET + 1), vertices.get(base + NORMAL_OFFSET + 2));
+				glVertexAttrib4f(diffuseLocation, vertices.get(base + COLOR_OFFSET), vertices.get(base + COLOR_OFFSET + 1),
+						vertices.get(base + COLOR_OFFSET + 2), vertices.get(base + COLOR_OFFSET + 3));
+				glVertex3f(vertices.get(base), vertices.get(base + 1), vertices.get(base + 2));
+			}
+			glEnd();
+		}
+		glEndList();
+	}
+
+
+	/**
+     * Whether any part of the chunk is inside the frustum.
+     */
+	public boolean isVisible(Frustum frustum)
+	{
+		return frustum.intersects(minX, minY, minZ, maxX, maxY, maxZ);
+	}
+
+
+	/**
+     * Draw the chunk. With vertex buffers the caller binds the index buffer
+     * for the chunk's size and level, holding indexCount indices, and enables
+     * the vertex arrays.
+     */
+	public void draw(int diffuseLocation, int indexCount)
+	{
+		if(list != 0)
+		{
+			glCallList(list);
+			return;
+		}
+		glBindBuffer(GL_ARRAY_BUFFER, vbo);
+		glVertexPointer(3, GL_FLOAT, VERTEX_BYTES, POSITION_OFFSET * 4);
+		glNormalPointer(GL_FLOAT, VERTEX_BYTES, NORMAL_OFFSET * 4);
+		glVertexAttribPointer(diffuseLocation, 4, GL_FLOAT, false, VERTEX_BYTES, COLOR_OFFSET * 4);
+		glDrawElements(GL_TRIANGLES, indexCount, GL_UNSIGNED_SHORT, 0);
+	}
+
+
+	/**
+     * Delete the chunk's buffer or list.
+     */
+	public void cleanup()
+	{
+		if(vbo != 0)
+		{
+			glDeleteBuffers(vbo);
+		}
+		if(list != 0)
+		{
+			glDeleteLists(list, 1);
+		}
+		vbo = list = 0;
+	}
+
+
+	public int getFirstRow() {
+		return firstRow;
+	}
+
+	public int getFirstColumn() {
+		return firstColumn;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getVertexCount() {
+		return (rows + 1) * (columns + 1);
+	}
+
+	public int getIndexCount() {
+		return rows * columns * 6;
+	}
+
+	public float getError(int level) {
+		return errors[level];
+	}
+}
@@ -0,0 +1,752 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the terrain tile class. A tile is one heightmap of the world,
+ * split into chunks of Map.CHUNK_QUADS by Map.CHUNK_QUADS quads. Loading a
+ * tile reads its heights and builds the vertices, bounds and detail errors
+ * of all its chunks, and needs no GL context, so the map does it on a
+ * background thread. The render thread then uploads the finished vertices a
+ * few chunks at a time.
+ *
+ * A displaced tile (GameConfig.gpuTerrain) builds no vertices at all: its
+ * heights go to the GPU as a float texture, one texel per sample, and the
+ * map draws every chunk with the same flat grid patch, which the Terrain
+ * shader lifts to the heights. Its chunks only keep bounds and errors.
+ *
+ * Heights come from the red channel of an 8-bit PNG, a 16-bit grayscale PNG,
+ * or a memory-mapped raw .r16 or .raw file (see HeightField). Normals and
+ * colors of a mapped tile are computed from the heights as each chunk is
+ * built, instead of being kept for every sample.
+ *
+ */
+
+package src;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.util.vector.Vector3f;
+
+public class TerrainTile {
+
+	/**
+     * LOADING until the loader thread is done with the tile, then MESHED while
+     * its chunks are uploaded and READY once they all are. MISSING tiles have
+     * no heightmap, FAILED ones could not be read.
+     */
+	public static enum State
+	{
+		LOADING, MESHED, READY, MISSING, FAILED;
+	}
+
+	/**
+     * Height map rows preprocessed by one fork-join task.
+     */
+	private static final int BAND_ROWS = 64;
+
+	private int tileRow, tileColumn;
+	private float originX, originZ;
+	private int width, height;
+	private int srcW;
+	private int srcH;
+	private float maxAltitude;
+	private float heightOffset;
+
+	/**
+     * Terrain attributes, one entry per heightmap sample in row-major order:
+     * a height, 3 normal floats and 4 color floats (rgba). Normals and colors
+     * are only kept while the chunks are built, and never for a mapped
+     * height field.
+     */
+	private HeightField altitude;
+	private HeightPyramid pyramid;
+	private float[] normals;
+	private float[] colors;
+
+	private List<TerrainChunk> chunks = new ArrayList<TerrainChunk>();
+	private FloatBuffer[] vertices;
+	private int chunkRows, chunkColumns;
+	private int[] chunkLevels;
+	private int uploadedChunks;
+	private long meshBytes;
+
+	private boolean displaced;
+	private FloatBuffer texels;
+	private int heightTexture;
+	private int uploadedRows;
+
+	private volatile State state = State.LOADING;
+	private volatile boolean cancelled;
+	private long lastUsed;
+
+
+	/**
+     * The tile at (tileRow, tileColumn) of the world grid. width and height
+     * are its half size along z (rows) and x (columns); tile (0, 0) is
+     * centered on the origin. A displaced tile is drawn from a height texture.
+     */
+	public TerrainTile(int tileRow, int tileColumn, int width, int height, float maxAltitude, float heightOffset,
+			boolean displaced)
+	{
+		this.displaced = displaced;
+		this.tileRow = tileRow;
+		this.tileColumn = tileColumn;
+		this.width = width;
+		this.height = height;
+		this.maxAltitude = maxAltitude;
+		this.heightOffset = heightOffset;
+		originX = tileColumn * 2.0f * height;
+		originZ = tileRow * 2.0f * width;
+	}
+
+
+	/**
+     * Load the heightmap at path (without extension): path.r16 or .raw if
+     * there is one, otherwise path.png. The tile is MISSING if none exists.
+     */
+	public void load(String path) throws IOException
+	{
+		File r16 = new File(path + ".r16");
+		File raw = new File(path + ".raw");
+		File png = new File(path + ".png");
+		if(r16.exists())
+		{
+			mapTerrain(HeightField.map(r16, 2, maxAltitude));
+		}
+		else if(raw.exists())
+		{
+			mapTerrain(HeightField.map(raw, 4, maxAltitude));
+		}
+		else if(png.exists())
+		{
+			buildTerrain(ImageIO.read(png));
+		}
+		else
+		{
+			state = State.MISSING;
+			return;
+		}
+		altitude.setOffset(heightOffset);
+		pyramid = new HeightPyramid(altitude);
+
+		if(displaced)
+		{
+			buildPatches();
+		}
+		else
+		{
+			buildChunks();
+		}
+		normals = null;
+		colors = null;
+		state = chunks.isEmpty() ? State.READY : State.MESHED;
+	}
+
+
+	/**
+     * Use heights that are already in memory. The tile has no chunks, so it
+     * answers height queries but draws nothing.
+     */
+	public void setHeights(HeightField field)
+	{
+		srcW = field.getRows();
+		srcH = field.getColumns();
+		altitude = field;
+		pyramid = new HeightPyramid(field);
+		state = State.READY;
+	}
+
+
+	/**
+     * Use a mapped height field. Nothing is read until chunks are built.
+     */
+	void mapTerrain(HeightField field)
+	{
+		srcW = field.getRows();
+		srcH = field.getColumns();
+		altitude = field;
+		normals = null;
+		colors = null;
+	}
+
+
+	/**
+     * Compute heights, normals and colors from the height map image. The rows
+     * are processed in bands on the fork-join pool, or in order when
+     * GameConfig.parallelTerrain is off. Both give exactly the same result.
+     * A displaced tile only needs the heights.
+     */
+	void buildTerrain(final BufferedImage src)
+	{
+        srcW = src.getWidth();
+        srcH = src.getHeight();
+
+        altitude = new HeightField(srcW, srcH);
+        if(!displaced)
+        {
+        	normals = new float[srcW * srcH * 3];
+        	colors = new float[srcW * srcH * 4];
+        }
+
+        // Normals use the heights of the next and previous rows, so all heights are read first.
+        if(GameConfig.parallelTerrain)
+        {
+        	Bands.invoke(0, srcW, BAND_ROWS, new Bands.Work() {
+        		public void run(int from, int to)
+        		{
+        			readAltitude(src, from, to);
+        		}
+        	});
+        	if(!displaced)
+        	{
+        		Bands.invoke(0, srcW, BAND_ROWS, new Bands.Work() {
+        			public void run(int from, int to)
+        			{
+        				getNormal(from, to);
+        				getColor(from, to);
+        			}
+        		});
+        	}
+        }
+        else
+        {
+        	readAltitude(src, 0, srcW);
+        	if(!displaced)
+        	{
+        		getNormal(0, srcW);
+        		getColor(0, srcW);
+        	}
+        }
+	}
+
+
+	/**
+     * Read the heights of rows [from, to) from the red channel, or the gray
+     * channel of a 16-bit image. Byte and 16-bit gray images are read straight
+     * from the raster's backing array, anything else through getRGB one row
+     * at a time.
+     */
+	private void readAltitude(BufferedImage src, int from, int to)
+	{
+		Raster raster = src.getRaster();
+		boolean direct = (src.getType() == BufferedImage.TYPE_3BYTE_BGR || src.getType() == BufferedImage.TYPE_4BYTE_ABGR)
+				&& raster.getParent() == null;
+		boolean gray16 = src.getType() == BufferedImage.TYPE_USHORT_GRAY && raster.getParent() == null;
+
+		if(gray16)
+		{
+			ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+			DataBufferUShort buffer = (DataBufferUShort) raster.getDataBuffer();
+			short[] data = buffer.getData();
+			int pixelStride = model.getPixelStride();
+			int scanlineStride = model.getScanlineStride();
+			int gray = buffer.getOffset() + model.getBandOffsets()[0];
+
+			for(int i = from; i < to; i++)
+			{
+				for(int j = 0; j < srcH; j++)
+				{
+					float alt = (data[gray + j * scanlineStride + i * pixelStride] & 0xFFFF)/65536.0f;
+					altitude.set(i, j, alt * maxAltitude);
+				}
+			}
+		}
+		else if(direct)
+		{
+			ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+			DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+			byte[] data = buffer.getData();
+			int pixelStride = model.getPixelStride();
+			int scanlineStride = model.getScanlineStride();
+			int red = buffer.getOffset() + model.getBandOffsets()[0];
+
+			for(int i = from; i < to; i++)
+			{
+				for(int j = 0; j < srcH; j++)
+				{
+					float alt = (data[red + j * scanlineStride + i * pixelStride] & 0xFF)/256.0f;
+					altitude.set(i, j, alt * maxAltitude);
+				}
+			}
+		}
+		else
+		{
+			int[] rgb = new int[srcH];
+			for(int i = from; i < to; i++)
+			{
+				src.getRGB(i, 0, 1, srcH, rgb, 0, 1);
+				for(int j = 0; j < srcH; j++)
+				{
+					float alt = ((rgb[j] >> 16) & 0xFF)/256.0f;
+					altitude.set(i, j, alt * maxAltitude);
+				}
+			}
+		}
+	}
+
+
+	/**
+     * Split the tile into chunks and build their vertices, bounds and detail
+     * errors. The vertices wait in memory until they are uploaded.
+     */
+	private void buildChunks()
+	{
+		chunkRows = (srcW-1 + Map.CHUNK_QUADS-1) / Map.CHUNK_QUADS;
+		chunkColumns = (srcH-1 + Map.CHUNK_QUADS-1) / Map.CHUNK_QUADS;
+		chunkLevels = new int[chunkRows * chunkColumns];
+		vertices = new FloatBuffer[chunkRows * chunkColumns];
+
+		for(int row = 0; row < srcW-1; row += Map.CHUNK_QUADS)
+		{
+			for(int column = 0; column < srcH-1; column += Map.CHUNK_QUADS)
+			{
+				TerrainChunk chunk = new TerrainChunk(row, column, Math.min(Map.CHUNK_QUADS, srcW-1 - row),
+						Math.min(Map.CHUNK_QUADS, srcH-1 - column));
+				FloatBuffer chunkVertices = chunkVertices(chunk);
+				chunk.computeBounds(chunkVertices);
+				chunk.computeErrors(altitude);
+				vertices[chunks.size()] = chunkVertices;
+				meshBytes += (long) chunk.getVertexCount() * TerrainChunk.VERTEX_BYTES;
+				chunks.add(chunk);
+			}
+		}
+	}
+
+
+	/**
+     * Split a displaced tile into chunks with bounds and detail errors, and
+     * copy the heights into the texels of its height texture.
+     */
+	private void buildPatches()
+	{
+		chunkRows = (srcW-1 + Map.CHUNK_QUADS-1) / Map.CHUNK_QUADS;
+		chunkColumns = (srcH-1 + Map.CHUNK_QUADS-1) / Map.CHUNK_QUADS;
+		chunkLevels = new int[chunkRows * chunkColumns];
+
+		texels = BufferUtils.createFloatBuffer(srcW * srcH);
+		for(int i = 0; i < srcW; i++)
+		{
+			for(int j = 0; j < srcH; j++)
+			{
+				texels.put(altitude.sample(i, j));
+			}
+		}
+		texels.flip();
+		meshBytes = (long) srcW * srcH * 4;
+
+		for(int row = 0; row < srcW-1; row += Map.CHUNK_QUADS)
+		{
+			for(int column = 0; column < srcH-1; column += Map.CHUNK_QUADS)
+			{
+				TerrainChunk chunk = new TerrainChunk(row, column, Math.min(Map.CHUNK_QUADS, srcW-1 - row),
+						Math.min(Map.CHUNK_QUADS, srcH-1 - column));
+				int lastRow = row + chunk.getRows(), lastColumn = column + chunk.getColumns();
+				chunk.computeBounds(altitude, column*2.0f/(srcH-1)*height-height + originX, row*2.0f/(srcW-1)*width-width + originZ,
+						lastColumn*2.0f/(srcH-1)*height-height + originX, lastRow*2.0f/(srcW-1)*width-width + originZ);
+				chunk.computeErrors(altitude);
+				chunks.add(chunk);
+			}
+		}
+	}
+
+
+	/**
+     * Interleaved position, normal and color of every height sample in a chunk.
+     */
+	private FloatBuffer chunkVertices(TerrainChunk chunk)
+	{
+		FloatBuffer vertices = BufferUtils.createFloatBuffer(chunk.getVertexCount() * TerrainChunk.VERTEX_FLOATS);
+		float[] vertex = new float[7];
+		for(int i = chunk.getFirstRow(); i <= chunk.getFirstRow() + chunk.getRows(); i++)
+		{
+			for(int j = chunk.getFirstColumn(); j <= chunk.getFirstColumn() + chunk.getColumns(); j++)
+			{
+				int sample = i * srcH + j;
+				vertices.put(j*2.0f/(srcH-1)*height-height + originX).put(altitude.sample(i, j)).put(i*2.0f/(srcW-1)*width-width + originZ);
+				if(normals != null)
+				{
+					vertices.put(normals, sample * 3, 3);
+					vertices.put(colors, sample * 4, 4);
+				}
+				else
+				{
+					getNormal(i, j, vertex, 0);
+					getColor(i, j, vertex, 3);
+					vertices.put(vertex);
+				}
+			}
+		}
+		vertices.flip();
+		return vertices;
+	}
+
+
+	/**
+     * Get normal vector of the height map, for rows [from, to).
+     */
+	private void getNormal(int from, int to)
+	{
+		for(int x = from; x < to; x++)
+		{
+			for(int z = 0; z < srcH; z++)
+			{
+				getNormal(x, z, normals, (x * srcH + z) * 3);
+			}
+		}
+
+	}
+
+	/**
+     * Normal vector at sample (x, z), written to out[n .. n+2].
+     */
+	private void getNormal(int x, int z, float[] out, int n)
+	{
+		if(x != 0 && z != srcH-1)
+		{
+			float dx = altitude.sample(x, z)-altitude.sample(x-1, z);
+			float dz = altitude.sample(x, z)-altitude.sample(x, z+1);
+			// A float squared is exact in double, the same value Math.pow(d, 2) returned.
+			float sum = (float) Math.sqrt((double) dx*dx + (double) dz*dz + 1.0f);
+			out[n] = -dx/sum;
+			out[n+1] = 1.0f/sum;
+			out[n+2] = -dz/sum;
+		}
+		else
+		{
+			out[n] = 0;
+			out[n+1] = 1;
+			out[n+2] = 0;
+		}
+	}
+
+	/**
+     * Get colors based on different heights, for rows [from, to).
+     */
+	private void getColor(int from, int to)
+	{
+		for(int x = from; x < to; x++)
+		{
+			for(int z = 0; z < srcH; z++)
+			{
+				getColor(x, z, colors, (x * srcH + z) * 4);
+			}
+		}
+	}
+
+	/**
+     * Color at sample (x, z), written to out[c .. c+3].
+     */
+	private void getColor(int x, int z, float[] out, int c)
+	{
+		rampColor(altitude.sample(x, z) / (float)(maxAltitude), out, c);
+	}
+
+	/**
+     * Color at a height of pos times the highest altitude, written to out[c .. c+3].
+     */
+	public static void rampColor(float pos, float[] out, int c)
+	{
+
+		if(pos > 0.85f)
+		{
+			setColor(out, c, 1.0f, 1.0f, 1.0f, 1.0f);
+		}
+		if(pos > 0.8f)
+		{
+			float i = pos - 0.8f;
+			setColor(out, c, (230/255f)*(1.0f-i) + (255/255f)*i, (230/255f)*(1.0f-i) + (255/255f)*i, (230/255f)*(1.0f-i) + (255/255f)*i, 1.0f);
+		}
+		else if(pos > 0.7f)
+		{
+			float i = pos - 0.8f;
+			setColor(out, c, (120/255f)*(1.0f-i) + (230/255f)*i, (99/255f)*(1.0f-i) + (230/255f)*i, (33/255f)*(1.0f-i) + (230/255f)*i, 1.0f);
+		}
+		else if(pos > 0.45f)
+		{
+			float i = (pos - 0.45f)/0.25f;
+			setColor(out, c, (118/255f)*(1.0f-i) + (120/255f)*i, (54/255f)*(1.0f-i) + (99/255f)*i, (35/255f)*(1.0f-i) + (33/255f)*i, 1.0f);
+		}
+		else if(pos > 0.38f)
+		{
+			float i = (pos - 0.38f)/0.1f;
+			setColor(out, c, (236/255f)*(1f-i) + (118/255f)*i, (238/255f)*(1f-i) + (54/255f)*i, (182/255f)*(1f-i) + (35/255f)*i, 1.0f);
+		}
+		else if(pos > 0.2f)
+		{
+			float i = pos - 0.38f;
+			setColor(out, c, (128/255f)*(1f-i) + (236/255f)*i, (128/255f)*(1f-i) + (238/255f)*i, (255/255f)*(1f-i) + (182/255f)*i, 0.7f*(1f-i) + i);
+		}
+		else
+		{
+			setColor(out, c, (128/255f), (128/255f), (255/255f), 0.7f);
+		}
+	}
+
+	private static void setColor(float[] out, int c, float r, float g, float b, float a)
+	{
+		out[c] = r;
+		out[c+1] = g;
+		out[c+2] = b;
+		out[c+3] = a;
+	}
+
+
+	/**
+     * The next chunk whose vertices have not been uploaded.
+     */
+	public TerrainChunk getNextUpload()
+	{
+		return chunks.get(uploadedChunks);
+	}
+
+
+	/**
+     * Hand over the vertices of the next chunk to upload. The tile is READY
+     * once every chunk has been handed over.
+     */
+	public FloatBuffer takeVertices()
+	{
+		FloatBuffer next = vertices[uploadedChunks];
+		vertices[uploadedChunks++] = null;
+		if(uploadedChunks == chunks.size())
+		{
+			vertices = null;
+			state = State.READY;
+		}
+		return next;
+	}
+
+
+	/**
+     * Upload the next band of rows of a displaced tile's height texture,
+     * creating the texture first. The tile is READY after the last band.
+     */
+	public void uploadHeights()
+	{
+		if(heightTexture == 0)
+		{
+			heightTexture = glGenTextures();
+			glBindTexture(GL_TEXTURE_2D, heightTexture);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+			glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+			// Texel (s, t) is sample (t, s): a texture row is a heightmap row.
+			glTexImage2D(GL_TEXTURE_2D, 0, GL_R32F, srcH, srcW, 0, GL_RED, GL_FLOAT, (FloatBuffer) null);
+		}
+		else
+		{
+			glBindTexture(GL_TEXTURE_2D, heightTexture);
+		}
+
+		int rows = Math.min(BAND_ROWS, srcW - uploadedRows);
+		texels.limit((uploadedRows + rows) * srcH);
+		texels.position(uploadedRows * srcH);
+		glTexSubImage2D(GL_TEXTURE_2D, 0, 0, uploadedRows, srcH, rows, GL_RED, GL_FLOAT, texels);
+		glBindTexture(GL_TEXTURE_2D, 0);
+		uploadedRows += rows;
+		if(uploadedRows == srcW)
+		{
+			texels = null;
+			state = State.READY;
+		}
+	}
+
+
+	/**
+     * Height of the terrain under a position given relative to the tile's
+     * center, interpolated between the four samples around it. NaN outside
+     * the tile.
+     */
+	public float heightAt(float x, float z)
+	{
+		float v = (z + width) * (srcW - 1) / (2 * width);
+		float u = (x + height) * (srcH - 1) / (2 * height);
+		if(!(v >= 0 && v <= srcW - 1 && u >= 0 && u <= srcH - 1))
+		{
+			return Float.NaN;
+		}
+		int row = Math.min((int) v, srcW - 2), column = Math.min((int) u, srcH - 2);
+		float fv = v - row, fu = u - column;
+		float h00 = altitude.sample(row, column), h01 = altitude.sample(row, column + 1);
+		float h10 = altitude.sample(row + 1, column), h11 = altitude.sample(row + 1, column + 1);
+		float top = h00 + (h01 - h00) * fu;
+		float bottom = h10 + (h11 - h10) * fu;
+		return top + (bottom - top) * fv + altitude.getOffset();
+	}
+
+
+	/**
+     * Unit normal of the interpolated terrain under a position given relative
+     * to the tile's center, written to normal. False outside the tile.
+     */
+	public boolean normalAt(float x, float z, Vector3f normal)
+	{
+		float v = (z + width) * (srcW - 1) / (2 * width);
+		float u = (x + height) * (srcH - 1) / (2 * height);
+		if(!(v >= 0 && v <= srcW - 1 && u >= 0 && u <= srcH - 1))
+		{
+			return false;
+		}
+		int row = Math.min((int) v, srcW - 2), column = Math.min((int) u, srcH - 2);
+		float fv = v - row, fu = u - column;
+		float h00 = altitude.sample(row, column), h01 = altitude.sample(row, column + 1);
+		float h10 = altitude.sample(row + 1, column), h11 = altitude.sample(row + 1, column + 1);
+		float twist = h00 - h01 - h10 + h11;
+		// Slopes per sample, then per world unit.
+		float dx = (h01 - h00 + twist * fv) * (srcH - 1) / (2 * height);
+		float dz = (h10 - h00 + twist * fu) * (srcW - 1) / (2 * width);
+		normal.set(-dx, 1, -dz);
+		normal.normalise();
+		return true;
+	}
+
+
+	/**
+     * First point of the segment from (x0, y0, z0) to (x1, y1, z1), relative
+     * to the tile's center, that is on or below the terrain, as a fraction t 
+     * of the way along it between tMin and tMax. NaN if there is none.
+     */
+	public float intersect(float x0, float y0, float z0, float x1, float y1, float z1, float tMin, float tMax)
+	{
+		float uScale = (srcH - 1) / (2.0f * height), vScale = (srcW - 1) / (2.0f * width);
+		return pyramid.intersect((x0 + height) * uScale, (z0 + width) * vScale, y0 - altitude.getOffset(),
+				(x1 - x0) * uScale, (z1 - z0) * vScale, y1 - y0, tMin, tMax);
+	}
+
+
+	/**
+     * Delete the chunk buffers and lists, and drop vertices not yet uploaded.
+     */
+	public void cleanup()
+	{
+		for(TerrainChunk chunk : chunks)
+		{
+			chunk.cleanup();
+		}
+		if(heightTexture != 0)
+		{
+			glDeleteTextures(heightTexture);
+			heightTexture = 0;
+		}
+		vertices = null;
+		texels = null;
+	}
+
+
+	public int getTileRow() {
+		return tileRow;
+	}
+
+	public int getTileColumn() {
+		return tileColumn;
+	}
+
+	public HeightField getAltitude() {
+		return altitude;
+	}
+
+	public boolean isDisplaced() {
+		return displaced;
+	}
+
+	public int getHeightTexture() {
+		return heightTexture;
+	}
+
+	public float getOriginX() {
+		return originX;
+	}
+
+	public float getOriginZ() {
+		return originZ;
+	}
+
+	public int getWidth() {
+		return srcW;
+	}
+
+	public int getHeight() {
+		return srcH;
+	}
+
+	public List<TerrainChunk> getChunks() {
+		return chunks;
+	}
+
+	public int getChunkRows() {
+		return chunkRows;
+	}
+
+	public int getChunkColumns() {
+		return chunkColumns;
+	}
+
+
+	/**
+     * Detail level of each chunk, row-major, as chosen for the current frame.
+     */
+	public int[] getChunkLevels() {
+		return chunkLevels;
+	}
+
+
+	/**
+     * Memory the tile holds: its heights, unless they are mapped, their
+     * pyramid, and its chunk vertices or height texture, in memory or on the GPU.
+     */
+	public long getBytes() {
+		long heights = (altitude == null || altitude.isMapped()) ? 0 : (long) srcW * srcH * 4;
+		return heights + (pyramid == null ? 0 : pyramid.getBytes()) + meshBytes;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public void setState(State state) {
+		this.state = state;
+	}
+
+
+	/**
+     * A cancelled tile is no longer wanted, and is skipped if it has not
+     * been loaded yet.
+     */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+
+	/**
+     * Frame number when the tile was last within the load radius.
+     */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	public void setLastUsed(long lastUsed) {
+		this.lastUsed = lastUsed;
+	}
+}
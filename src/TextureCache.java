@@ -0,0 +1,294 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the texture cache class. Every texture the game uploads goes
+ * through it, so an image is uploaded once however many materials, models
+ * or sky boxes use it, and each user gets the same GL texture. Textures are
+ * keyed by their file's content (TextureLoader.Pixels.getKey), so two
+ * files with the same content share a texture, and a file that changes on
+ * disk is loaded afresh. A path is remembered with the file's length and
+ * modification time, so a texture that is already resident is found again
+ * without reading the file.
+ *
+ * Each texture counts its users. One nobody uses any more stays resident,
+ * in case it is wanted again, until the textures use more than
+ * GameConfig.textureBudget megabytes; then the least recently released are
+ * deleted first. Textures in use are never deleted.
+ *
+ * Only the thread that owns the context may use the cache.
+ *
+ */
+
+package src;
+
+import static org.lwjgl.opengl.GL11.glDeleteTextures;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+public class TextureCache {
+
+	/**
+     * A resident texture: a whole image, or a cube map made of cells of an
+     * image split into a grid, with the size of one face.
+     */
+	private static class Entry {
+		String name;
+		String key;
+		String format;
+		int texture;
+		int width, height;
+		long bytes;
+		int refs;
+	}
+
+	/**
+     * What a path held when it was last loaded.
+     */
+	private static class Source {
+		long length, modified;
+		String key;
+	}
+
+	private static HashMap<String, Source> sources = new HashMap<String, Source>();
+	private static HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private static LinkedHashMap<Integer, Entry> textures = new LinkedHashMap<Integer, Entry>();
+
+	/**
+     * Textures nobody uses, least recently released first.
+     */
+	private static LinkedHashSet<Entry> unused = new LinkedHashSet<Entry>();
+
+	private static long bytes;
+	private static int hits, misses, evictions;
+
+
+	/**
+     * The texture for the image at path, uploading it if it isn't resident.
+     * Give it back with release when done with it.
+     */
+	public static int acquire(String path) throws IOException
+	{
+		return acquire(path, 1, 1, null);
+	}
+
+
+	/**
+     * A cube map whose faces, in GL's order +X, -X, +Y, -Y, +Z, -Z, are cells
+     * of the image at path split into columns by rows, numbered row by row
+     * from the top left.
+     */
+	public static int acquireCubeMap(String path, int columns, int rows, int... faces) throws IOException
+	{
+		return acquire(path, columns, rows, faces);
+	}
+
+	private static int acquire(String path, int columns, int rows, int[] faces) throws IOException
+	{
+		TextureLoader.Pixels pixels = null;
+		String key = residentKey(path);
+		Entry entry = (key == null) ? null : entries.get(entryKey(key, columns, rows, faces));
+		if(entry == null)
+		{
+			pixels = TextureLoader.get(path);
+			remember(path, pixels.getKey());
+			entry = entries.get(entryKey(pixels.getKey(), columns, rows, faces));
+		}
+		else
+		{
+			// It is resident; a decode started by prefetch isn't needed.
+			TextureLoader.discard(path);
+		}
+		if(entry == null)
+		{
+			entry = upload(path, pixels, columns, rows, faces);
+			misses++;
+		}
+		else
+		{
+			hits++;
+		}
+		if(entry.refs++ == 0)
+		{
+			unused.remove(entry);
+		}
+		evict();
+		return entry.texture;
+	}
+
+
+	/**
+     * Start decoding the image at path, unless its texture is resident already.
+     */
+	public static void prefetch(String path)
+	{
+		prefetch(path, 1, 1, null);
+	}
+
+	public static void prefetchCubeMap(String path, int columns, int rows, int... faces)
+	{
+		prefetch(path, columns, rows, faces);
+	}
+
+	private static void prefetch(String path, int columns, int rows, int[] faces)
+	{
+		String key = residentKey(path);
+		if(key == null || !entries.containsKey(entryKey(key, columns, rows, faces)))
+		{
+			TextureLoader.decode(path);
+		}
+	}
+
+
+	/**
+     * Give back a texture from acquire. Once nobody uses it, it may be
+     * deleted to stay within the budget. Textures the cache doesn't know,
+     * such as -1 for none, are ignored.
+     */
+	public static void release(int texture)
+	{
+		Entry entry = textures.get(texture);
+		if(entry == null || entry.refs == 0)
+		{
+			return;
+		}
+		if(--entry.refs == 0)
+		{
+			unused.add(entry);
+			evict();
+		}
+	}
+
+
+	/**
+     * The content key of path if it is unchanged since it was last loaded, or null.
+     */
+	private static String residentKey(String path)
+	{
+		Source source = sources.get(path);
+		if(source == null)
+		{
+			return null;
+		}
+		File file = new File(path);
+		if(file.length() != source.length || file.lastModified() != source.modified)
+		{
+			sources.remove(path);
+			return null;
+		}
+		return source.key;
+	}
+
+	private static void remember(String path, String key)
+	{
+		File file = new File(path);
+		Source source = new Source();
+		source.length = file.length();
+		source.modified = file.lastModified();
+		source.key = key;
+		sources.put(path, source);
+	}
+
+	private static String entryKey(String key, int columns, int rows, int[] faces)
+	{
+		return (faces == null) ? key : key + "#cube" + columns + "x" + rows + Arrays.toString(faces);
+	}
+
+	private static Entry upload(String path, TextureLoader.Pixels pixels, int columns, int rows, int[] faces) throws IOException
+	{
+		Entry entry = new Entry();
+		entry.key = entryKey(pixels.getKey(), columns, rows, faces);
+		entry.name = (faces == null) ? path : path + " [cube]";
+		entry.width = pixels.getWidth() / columns;
+		entry.height = pixels.getHeight() / rows;
+		if(faces == null)
+		{
+			entry.texture = TextureLoader.upload(pixels);
+			entry.bytes = pixels.bytes(entry.width, entry.height);
+		}
+		else
+		{
+			if(pixels.isCompressed() && entry.width % 4 != 0)
+			{
+				// The faces don't start on a block; upload them uncompressed.
+				pixels = TextureLoader.read(new File(path), false);
+			}
+			entry.texture = TextureLoader.uploadCubeMap(pixels, columns, rows, faces);
+			entry.bytes = faces.length * pixels.bytes(entry.width, entry.height);
+		}
+		entry.format = pixels.getFormat() == TextureCompressor.BC1 ? "BC1" : pixels.getFormat() == TextureCompressor.BC3 ? "BC3" : "RGBA8";
+		entries.put(entry.key, entry);
+		textures.put(entry.texture, entry);
+		bytes += entry.bytes;
+		return entry;
+	}
+
+
+	/**
+     * Delete unused textures, least recently released first, while the
+     * textures use more than the budget.
+     */
+	private static void evict()
+	{
+		long budget = (long) GameConfig.textureBudget << 20;
+		Iterator<Entry> oldest = unused.iterator();
+		while(bytes > budget && oldest.hasNext())
+		{
+			Entry entry = oldest.next();
+			oldest.remove();
+			delete(entry);
+			evictions++;
+		}
+	}
+
+	private static void delete(Entry entry)
+	{
+		glDeleteTextures(entry.texture);
+		entries.remove(entry.key);
+		textures.remove(entry.texture);
+		bytes -= entry.bytes;
+	}
+
+
+	/**
+     * Delete every texture, in use or not.
+     */
+	public static void cleanup()
+	{
+		for(Entry entry : new ArrayList<Entry>(textures.values()))
+		{
+			delete(entry);
+		}
+		unused.clear();
+		sources.clear();
+	}
+
+
+	/**
+     * The resident textures with their sizes and users, and how the cache has done.
+     */
+	public static String report()
+	{
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("Textures: %d resident, %.1f of %d MB, %d hits, %d misses, %d evicted%n",
+				textures.size(), bytes / 1048576.0, GameConfig.textureBudget, hits, misses, evictions));
+		for(Entry entry : textures.values())
+		{
+			report.append(String.format("  %-28s %5d x %-5d %-5s %8.1f KB  %s%n", entry.name, entry.width, entry.height,
+					entry.format, entry.bytes / 1024.0, entry.refs == 0 ? "unused" : entry.refs + (entry.refs == 1 ? " user" : " users")));
+		}
+		return report.toString();
+	}
+
+	public static long getBytes() {
+		return bytes;
+	}
+}
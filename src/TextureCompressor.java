@@ -0,0 +1,346 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the texture compressor class. It encodes RGBA images into the
+ * S3TC block formats the GPU samples directly: BC1 (DXT1) at 8 bytes per
+ * 4x4 block for opaque images, and BC3 (DXT5) at 16 bytes per block for
+ * images with alpha, an eighth and a quarter of the size of RGBA8.
+ *
+ * Each block's colors are fitted along their principal axis: the axis is
+ * found by power iteration on the block's color covariance, the endpoints
+ * are the extreme colors along it, and every pixel takes the nearest of
+ * the four colors the GPU interpolates between them. Blocks past the right
+ * or bottom edge of an image repeat its last column or row. Bands of block
+ * rows are encoded on the fork-join pool.
+ *
+ * Reference:
+ *
+ * EXT_texture_compression_s3tc, OpenGL extension specification
+ * https://registry.khronos.org/OpenGL/extensions/EXT/EXT_texture_compression_s3tc.txt
+ *
+ */
+
+package src;
+
+import static org.lwjgl.opengl.GL11.GL_RGBA8;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.EXTTextureCompressionS3TC;
+
+public class TextureCompressor {
+
+	public static final int BC1 = EXTTextureCompressionS3TC.GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+	public static final int BC3 = EXTTextureCompressionS3TC.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+
+	/**
+     * Rows of blocks encoded per parallel task.
+     */
+	private static final int BAND_ROWS = 16;
+
+
+	/**
+     * Bytes per 4x4 block of a compressed format.
+     */
+	public static int blockBytes(int format)
+	{
+		return format == BC1 ? 8 : 16;
+	}
+
+
+	/**
+     * Bytes of a width by height image in a compressed format.
+     */
+	public static int imageBytes(int format, int width, int height)
+	{
+		return ((width + 3) / 4) * ((height + 3) / 4) * blockBytes(format);
+	}
+
+
+	/**
+     * BC3 if any pixel of the RGBA image is not fully opaque, BC1 otherwise.
+     */
+	public static int chooseFormat(ByteBuffer rgba)
+	{
+		for(int i = 3; i < rgba.limit(); i += 4)
+		{
+			if(rgba.get(i) != (byte) 0xFF)
+			{
+				return BC3;
+			}
+		}
+		return BC1;
+	}
+
+
+	/**
+     * Encode a width by height RGBA image, row after row of blocks.
+     */
+	public static ByteBuffer compress(ByteBuffer rgba, int width, int height, int format)
+	{
+		return compress(rgba, width, height, 1, format);
+	}
+
+
+	/**
+     * Encode the first levels of an RGBA mip chain (see MipChain) into a
+     * chain of compressed levels. The rows of blocks of each level are
+     * encoded in bands on the fork-join pool.
+     */
+	public static ByteBuffer compress(ByteBuffer rgba, int width, int height, int levels, int format)
+	{
+		ByteBuffer blocks = BufferUtils.createByteBuffer((int) MipChain.bytes(format, width, height, levels));
+		for(int level = 0; level < levels; level++)
+		{
+			int levelWidth = MipChain.size(width, level), levelHeight = MipChain.size(height, level);
+			ByteBuffer src = slice(rgba, MipChain.offset(GL_RGBA8, width, height, level), MipChain.levelBytes(GL_RGBA8, levelWidth, levelHeight));
+			ByteBuffer dst = slice(blocks, MipChain.offset(format, width, height, level), MipChain.levelBytes(format, levelWidth, levelHeight));
+			encode(src, levelWidth, levelHeight, dst, format);
+		}
+		return blocks;
+	}
+
+	private static void encode(final ByteBuffer rgba, final int width, final int height, final ByteBuffer blocks, final int format)
+	{
+		Bands.invoke(0, (height + 3) / 4, BAND_ROWS, new Bands.Work() {
+			public void run(int from, int to)
+			{
+				encodeRows(rgba, width, height, blocks, format, from, to);
+			}
+		});
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length)
+	{
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(offset + length);
+		slice.position(offset);
+		return slice.slice();
+	}
+
+
+	/**
+     * Encode the rows of blocks from to to of a width by height image.
+     */
+	private static void encodeRows(ByteBuffer rgba, int width, int height, ByteBuffer blocks, int format, int from, int to)
+	{
+		ByteBuffer out = blocks.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		out.position(from * ((width + 3) / 4) * blockBytes(format));
+		int[] block = new int[16 * 4];
+		for(int by = from * 4; by < to * 4; by += 4)
+		{
+			for(int bx = 0; bx < width; bx += 4)
+			{
+				for(int p = 0; p < 16; p++)
+				{
+					int x = Math.min(bx + (p & 3), width - 1);
+					int y = Math.min(by + (p >> 2), height - 1);
+					int at = (y * width + x) * 4;
+					for(int c = 0; c < 4; c++)
+					{
+						block[p * 4 + c] = rgba.get(at + c) & 0xFF;
+					}
+				}
+				if(format == BC3)
+				{
+					putAlphaBlock(out, block);
+				}
+				putColorBlock(out, block);
+			}
+		}
+	}
+
+
+	/**
+     * Copy the blocks of the width by height region at x, y out of a
+     * compressed image imageWidth pixels wide. x and y must be multiples of 4.
+     */
+	public static ByteBuffer region(ByteBuffer blocks, int format, int imageWidth, int x, int y, int width, int height)
+	{
+		int bytes = blockBytes(format);
+		int stride = ((imageWidth + 3) / 4) * bytes;
+		int rowBytes = ((width + 3) / 4) * bytes;
+		ByteBuffer region = BufferUtils.createByteBuffer(imageBytes(format, width, height));
+		ByteBuffer row = blocks.duplicate();
+		for(int by = y / 4; by < (y + height + 3) / 4; by++)
+		{
+			int at = blocks.position() + by * stride + (x / 4) * bytes;
+			row.limit(at + rowBytes);
+			row.position(at);
+			region.put(row);
+		}
+		region.flip();
+		return region;
+	}
+
+
+	/**
+     * The BC1 color half of a block: two RGB565 endpoints, color0 above
+     * color1 so the GPU uses four colors, and a 2-bit index per pixel.
+     */
+	private static void putColorBlock(ByteBuffer out, int[] block)
+	{
+		float meanR = 0, meanG = 0, meanB = 0;
+		for(int p = 0; p < 64; p += 4)
+		{
+			meanR += block[p];
+			meanG += block[p + 1];
+			meanB += block[p + 2];
+		}
+		meanR /= 16;
+		meanG /= 16;
+		meanB /= 16;
+
+		// Covariance of the colors: rr, rg, rb, gg, gb, bb.
+		float rr = 0, rg = 0, rb = 0, gg = 0, gb = 0, bb = 0;
+		for(int p = 0; p < 64; p += 4)
+		{
+			float r = block[p] - meanR, g = block[p + 1] - meanG, b = block[p + 2] - meanB;
+			rr += r * r;
+			rg += r * g;
+			rb += r * b;
+			gg += g * g;
+			gb += g * b;
+			bb += b * b;
+		}
+
+		// Power iteration from the luminance direction.
+		float ar = 0.3f, ag = 0.6f, ab = 0.1f;
+		for(int i = 0; i < 4; i++)
+		{
+			float nr = rr * ar + rg * ag + rb * ab;
+			float ng = rg * ar + gg * ag + gb * ab;
+			float nb = rb * ar + gb * ag + bb * ab;
+			float length = Math.max(Math.abs(nr), Math.max(Math.abs(ng), Math.abs(nb)));
+			if(length == 0)
+			{
+				break;
+			}
+			ar = nr / length;
+			ag = ng / length;
+			ab = nb / length;
+		}
+
+		int min = 0, max = 0;
+		float minDot = Float.MAX_VALUE, maxDot = -Float.MAX_VALUE;
+		for(int p = 0; p < 64; p += 4)
+		{
+			float dot = block[p] * ar + block[p + 1] * ag + block[p + 2] * ab;
+			if(dot < minDot)
+			{
+				minDot = dot;
+				min = p;
+			}
+			if(dot > maxDot)
+			{
+				maxDot = dot;
+				max = p;
+			}
+		}
+
+		int color0 = to565(block[max], block[max + 1], block[max + 2]);
+		int color1 = to565(block[min], block[min + 1], block[min + 2]);
+		if(color0 < color1)
+		{
+			int swap = color0;
+			color0 = color1;
+			color1 = swap;
+		}
+
+		int indices = 0;
+		if(color0 != color1)
+		{
+			int[] palette = new int[12];
+			expand565(color0, palette, 0);
+			expand565(color1, palette, 3);
+			for(int c = 0; c < 3; c++)
+			{
+				palette[6 + c] = (2 * palette[c] + palette[3 + c]) / 3;
+				palette[9 + c] = (palette[c] + 2 * palette[3 + c]) / 3;
+			}
+			for(int p = 15; p >= 0; p--)
+			{
+				int best = 0, bestError = Integer.MAX_VALUE;
+				for(int i = 0; i < 4; i++)
+				{
+					int dr = block[p * 4] - palette[i * 3];
+					int dg = block[p * 4 + 1] - palette[i * 3 + 1];
+					int db = block[p * 4 + 2] - palette[i * 3 + 2];
+					int error = dr * dr + dg * dg + db * db;
+					if(error < bestError)
+					{
+						bestError = error;
+						best = i;
+					}
+				}
+				indices = indices << 2 | best;
+			}
+		}
+		out.putShort((short) color0);
+		out.putShort((short) color1);
+		out.putInt(indices);
+	}
+
+
+	/**
+     * The BC3 alpha half of a block: the largest and smallest alpha, with six
+     * values interpolated between them, and a 3-bit index per pixel.
+     */
+	private static void putAlphaBlock(ByteBuffer out, int[] block)
+	{
+		int alpha0 = 0, alpha1 = 255;
+		for(int p = 3; p < 64; p += 4)
+		{
+			alpha0 = Math.max(alpha0, block[p]);
+			alpha1 = Math.min(alpha1, block[p]);
+		}
+		long indices = 0;
+		if(alpha0 != alpha1)
+		{
+			int[] palette = new int[8];
+			palette[0] = alpha0;
+			palette[1] = alpha1;
+			for(int i = 1; i < 7; i++)
+			{
+				palette[i + 1] = ((7 - i) * alpha0 + i * alpha1) / 7;
+			}
+			for(int p = 15; p >= 0; p--)
+			{
+				int best = 0, bestError = Integer.MAX_VALUE;
+				for(int i = 0; i < 8; i++)
+				{
+					int error = Math.abs(block[p * 4 + 3] - palette[i]);
+					if(error < bestError)
+					{
+						bestError = error;
+						best = i;
+					}
+				}
+				indices = indices << 3 | best;
+			}
+		}
+		out.put((byte) alpha0);
+		out.put((byte) alpha1);
+		for(int i = 0; i < 6; i++)
+		{
+			out.put((byte) (indices >>> (8 * i)));
+		}
+	}
+
+	private static int to565(int r, int g, int b)
+	{
+		return (r * 31 + 127) / 255 << 11 | (g * 63 + 127) / 255 << 5 | (b * 31 + 127) / 255;
+	}
+
+	private static void expand565(int color, int[] rgb, int at)
+	{
+		int r = color >> 11 & 31, g = color >> 5 & 63, b = color & 31;
+		rgb[at] = r << 3 | r >> 2;
+		rgb[at + 1] = g << 2 | g >> 4;
+		rgb[at + 2] = b << 3 | b >> 2;
+	}
+}
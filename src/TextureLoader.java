@@ -0,0 +1,587 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the texture loader class. Images are decoded and converted to
+ * RGBA on a pool of worker threads, so several load at once and overlap
+ * with the rest of the game's start-up, and only the upload into GL runs
+ * on the thread that owns the context.
+ *
+ * The conversion reads the pixels straight from the decoded raster, a row
+ * at a time, and writes each row into the upload buffer through an int
+ * view in one bulk put. Formats the raster can't be read directly in are
+ * copied out with a single getRGB call instead.
+ *
+ * With compression on, images are encoded to S3TC blocks by
+ * TextureCompressor on the workers and kept in a DDS cache next to the
+ * source, so later launches skip decoding altogether.
+ *
+ * Textures are sampled trilinearly from a mip chain, with anisotropic
+ * filtering where the context has it. GL generates the chain of an RGBA8
+ * texture after upload where it can; otherwise MipChain builds it on the
+ * workers, and for compressed textures it is compressed and cached along
+ * with the image.
+ *
+ * Six cells of an image can be uploaded as the faces of one cube map, as
+ * the sky boxes are.
+ *
+ */
+
+package src;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE_CUBE_MAP;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE_CUBE_MAP_POSITIVE_X;
+import static org.lwjgl.opengl.GL13.glCompressedTexImage2D;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ARBFramebufferObject;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.EXTFramebufferObject;
+import org.lwjgl.opengl.EXTTextureFilterAnisotropic;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GLContext;
+
+public class TextureLoader {
+
+	private static final ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+			new ThreadFactory() {
+				public Thread newThread(Runnable task)
+				{
+					Thread thread = new Thread(task, "Texture loader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+     * Decodes started but not yet taken, by path.
+     */
+	private static final ConcurrentHashMap<String, Future<Pixels>> pending = new ConcurrentHashMap<String, Future<Pixels>>();
+
+
+	/**
+     * A decoded image, width by height pixels, top row first: four bytes per
+     * pixel in R, G, B, A order for GL_RGBA8, or blocks for a
+     * TextureCompressor format. The key is made from the length and CRC32 of
+     * the file it was decoded from, so it is the same for files with the
+     * same content.
+     */
+	public static class Pixels {
+
+		private final int width, height;
+		private final ByteBuffer data;
+		private final String key;
+		private final int format;
+		private final int levels;
+
+		public Pixels(int width, int height, ByteBuffer rgba, String key)
+		{
+			this(width, height, rgba, key, GL_RGBA8, 1);
+		}
+
+		public Pixels(int width, int height, ByteBuffer data, String key, int format, int levels)
+		{
+			this.width = width;
+			this.height = height;
+			this.data = data;
+			this.key = key;
+			this.format = format;
+			this.levels = levels;
+		}
+
+		public boolean isCompressed()
+		{
+			return format != GL_RGBA8;
+		}
+
+		/**
+         * Bytes a width by height texture in this image's format takes on the
+         * GPU, with its mip chain if it has one or GL generates one.
+         */
+		public long bytes(int width, int height)
+		{
+			boolean chain = levels > 1 || (mipmaps && !isCompressed() && generateMipmaps);
+			return MipChain.bytes(format, width, height, chain ? MipChain.levels(width, height) : 1);
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public ByteBuffer getData() {
+			return data;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public int getFormat() {
+			return format;
+		}
+
+		/**
+         * Levels of the mip chain in data, 1 for the image alone.
+         */
+		public int getLevels() {
+			return levels;
+		}
+	}
+
+	private static volatile boolean compress;
+	private static volatile boolean mipmaps;
+	private static volatile boolean generateMipmaps;
+	private static float anisotropy = 1;
+
+
+	/**
+     * Choose how images are loaded and sampled from GameConfig and what the
+     * context supports. Call on the thread that owns the context, before
+     * loading anything.
+     *
+     * With compression, images are compressed through the DDS cache, or
+     * otherwise kept as RGBA8. With mipmaps, textures are sampled
+     * trilinearly from a mip chain: GL generates it for RGBA8 images where
+     * it can, and otherwise it is built on the workers (and for compressed
+     * images kept in the DDS cache), or nearest otherwise.
+     */
+	public static void init()
+	{
+		ContextCapabilities caps = GLContext.getCapabilities();
+		compress = GameConfig.compressTextures && caps.GL_EXT_texture_compression_s3tc;
+		mipmaps = GameConfig.mipmaps;
+		generateMipmaps = caps.OpenGL30 || caps.GL_ARB_framebuffer_object || caps.GL_EXT_framebuffer_object;
+		anisotropy = 1;
+		if(mipmaps && GameConfig.anisotropy > 1 && caps.GL_EXT_texture_filter_anisotropic)
+		{
+			anisotropy = Math.min(GameConfig.anisotropy, glGetFloat(EXTTextureFilterAnisotropic.GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT));
+		}
+		if(caps.OpenGL32 || caps.GL_ARB_seamless_cube_map)
+		{
+			// Filter across cube map edges, so the sky's seams don't show.
+			glEnable(GL32.GL_TEXTURE_CUBE_MAP_SEAMLESS);
+		}
+	}
+
+
+	/**
+     * Start decoding the image at path on the worker pool, unless it is
+     * already being decoded. Any thread may call this.
+     */
+	public static Future<Pixels> decode(final String path)
+	{
+		Future<Pixels> future = pending.get(path);
+		if(future == null)
+		{
+			FutureTask<Pixels> task = new FutureTask<Pixels>(new Callable<Pixels>() {
+				public Pixels call() throws IOException
+				{
+					return read(new File(path));
+				}
+			});
+			future = pending.putIfAbsent(path, task);
+			if(future == null)
+			{
+				pool.execute(task);
+				future = task;
+			}
+		}
+		return future;
+	}
+
+
+	/**
+     * The decoded image at path, waiting for it if it is still being decoded,
+     * and decoding it now if it was never started.
+     */
+	public static Pixels get(String path) throws IOException
+	{
+		Future<Pixels> future = decode(path);
+		try
+		{
+			return future.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading " + path);
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not load " + path, e.getCause());
+		}
+		finally
+		{
+			pending.remove(path, future);
+		}
+	}
+
+
+	/**
+     * Stop waiting for a decode that is no longer needed, e.g. because the
+     * texture turned out to be resident already.
+     */
+	public static void discard(String path)
+	{
+		Future<Pixels> future = pending.remove(path);
+		if(future != null)
+		{
+			future.cancel(false);
+		}
+	}
+
+
+	/**
+     * Decode an image file and convert it to RGBA, or compress it if
+     * compression is on.
+     */
+	public static Pixels read(File file) throws IOException
+	{
+		return read(file, compress);
+	}
+
+
+	/**
+     * Decode an image file and convert it to RGBA, or with compressed, load
+     * it from the DDS cache, compressing it and writing the cache first if
+     * the cache is missing or stale.
+     */
+	public static Pixels read(File file, boolean compressed) throws IOException
+	{
+		if(compressed)
+		{
+			Pixels cached = DdsCache.load(file, mipmaps);
+			if(cached != null)
+			{
+				return cached;
+			}
+		}
+
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		BufferedImage img = ImageIO.read(new ByteArrayInputStream(bytes));
+		if(img == null)
+		{
+			throw new IOException("Unsupported image format: " + file);
+		}
+		int width = img.getWidth(), height = img.getHeight();
+		String key = contentKey(bytes.length, crc.getValue());
+		ByteBuffer rgba = toRgba(img);
+		if(!mipmaps || (!compressed && generateMipmaps))
+		{
+			return compressed ? compress(file, new Pixels(width, height, rgba, key)) : new Pixels(width, height, rgba, key);
+		}
+		int levels = MipChain.levels(width, height);
+		Pixels chain = new Pixels(width, height, MipChain.build(rgba, width, height), key, GL_RGBA8, levels);
+		return compressed ? compress(file, chain) : chain;
+	}
+
+
+	/**
+     * Compress an RGBA image and its mip chain, if it has one, and write the
+     * DDS cache.
+     */
+	private static Pixels compress(File file, Pixels rgba)
+	{
+		int format = TextureCompressor.chooseFormat(rgba.getData());
+		Pixels pixels = new Pixels(rgba.getWidth(), rgba.getHeight(),
+				TextureCompressor.compress(rgba.getData(), rgba.getWidth(), rgba.getHeight(), rgba.getLevels(), format),
+				rgba.getKey(), format, rgba.getLevels());
+		try
+		{
+			DdsCache.write(file, pixels);
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not write texture cache for " + file + ": " + e.getMessage());
+		}
+		return pixels;
+	}
+
+
+	/**
+     * The key of a file with the given length and CRC32.
+     */
+	public static String contentKey(long length, long crc)
+	{
+		return Long.toHexString(length) + "-" + Long.toHexString(crc);
+	}
+
+
+	/**
+     * Convert a whole image to RGBA bytes, ready to upload.
+     */
+	public static ByteBuffer toRgba(BufferedImage img)
+	{
+		int width = img.getWidth();
+		int height = img.getHeight();
+		ByteBuffer buffer = BufferUtils.createByteBuffer(width * height * 4);
+		// Little-endian, an int 0xAABBGGRR lands in memory as R, G, B, A.
+		IntBuffer pixels = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		int[] row = new int[width];
+		Raster raster = img.getRaster();
+		boolean direct = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+
+		if(direct && raster.getDataBuffer() instanceof DataBufferByte && raster.getSampleModel() instanceof ComponentSampleModel
+				&& (img.getType() == BufferedImage.TYPE_3BYTE_BGR || img.getType() == BufferedImage.TYPE_4BYTE_ABGR))
+		{
+			ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+			byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+			int[] bands = model.getBandOffsets();
+			int stride = model.getPixelStride();
+			int red = bands[0], green = bands[1], blue = bands[2];
+			boolean alpha = bands.length > 3;
+			for(int y = 0; y < height; y++)
+			{
+				int at = raster.getDataBuffer().getOffset() + y * model.getScanlineStride();
+				for(int x = 0; x < width; x++, at += stride)
+				{
+					int a = alpha ? data[at + bands[3]] & 0xFF : 0xFF;
+					row[x] = a << 24 | (data[at + blue] & 0xFF) << 16 | (data[at + green] & 0xFF) << 8 | (data[at + red] & 0xFF);
+				}
+				pixels.put(row, 0, width);
+			}
+		}
+		else if(direct && raster.getDataBuffer() instanceof DataBufferInt && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& (img.getType() == BufferedImage.TYPE_INT_ARGB || img.getType() == BufferedImage.TYPE_INT_RGB))
+		{
+			SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+			int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+			int opaque = img.getType() == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+			for(int y = 0; y < height; y++)
+			{
+				int at = raster.getDataBuffer().getOffset() + y * model.getScanlineStride();
+				for(int x = 0; x < width; x++)
+				{
+					row[x] = swapRedBlue(data[at + x] | opaque);
+				}
+				pixels.put(row, 0, width);
+			}
+		}
+		else
+		{
+			int[] argb = img.getRGB(0, 0, width, height, null, 0, width);
+			for(int i = 0; i < argb.length; i++)
+			{
+				argb[i] = swapRedBlue(argb[i]);
+			}
+			pixels.put(argb);
+		}
+		return buffer;
+	}
+
+	private static int swapRedBlue(int argb)
+	{
+		return (argb & 0xFF00FF00) | (argb >> 16 & 0xFF) | (argb & 0xFF) << 16;
+	}
+
+
+	/**
+     * Upload an image as a new texture, clamped and filtered as init chose,
+     * and return its name. Call on the thread that owns the context.
+     */
+	public static int upload(Pixels pixels)
+	{
+		return upload(pixels, 0, 0, pixels.getWidth(), pixels.getHeight());
+	}
+
+
+	/**
+     * Upload the width by height block of an image whose top left pixel is
+     * at x, y as a new texture, and return its name. In a compressed image,
+     * x and y must be multiples of 4. Of the image's mip chain, the levels
+     * the block covers whole pixels (and whole blocks) of are uploaded.
+     */
+	public static int upload(Pixels pixels, int x, int y, int width, int height)
+	{
+		int texture = glGenTextures();
+
+		glTexEnvi(GL_TEXTURE_ENV, GL_TEXTURE_ENV_MODE, GL_REPLACE);
+		glBindTexture(GL_TEXTURE_2D, texture);
+
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+
+		int levels = uploadLevels(GL_TEXTURE_2D, pixels, x, y, width, height);
+		setFilters(GL_TEXTURE_2D, pixels, levels, width, height);
+		return texture;
+	}
+
+
+	/**
+     * Upload six cells of an image split into columns by rows as the faces
+     * of a new cube map, in GL's order +X, -X, +Y, -Y, +Z, -Z, and return its
+     * name. Cells are numbered as in TextureCache and must be square. Every
+     * face gets the levels of the mip chain that all six cover whole.
+     */
+	public static int uploadCubeMap(Pixels pixels, int columns, int rows, int[] faces)
+	{
+		int size = pixels.getWidth() / columns;
+		if(faces.length != 6 || pixels.getHeight() / rows != size)
+		{
+			throw new IllegalArgumentException("A cube map needs six square faces");
+		}
+		int texture = glGenTextures();
+		glBindTexture(GL_TEXTURE_CUBE_MAP, texture);
+
+		glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_CUBE_MAP, GL12.GL_TEXTURE_WRAP_R, GL12.GL_CLAMP_TO_EDGE);
+
+		int levels = pixels.getLevels();
+		for(int i = 0; i < faces.length; i++)
+		{
+			int x = (faces[i] % columns) * size, y = (faces[i] / columns) * size;
+			levels = Math.min(levels, uploadLevels(GL_TEXTURE_CUBE_MAP_POSITIVE_X + i, pixels, x, y, size, size));
+		}
+		setFilters(GL_TEXTURE_CUBE_MAP, pixels, levels, size, size);
+		glBindTexture(GL_TEXTURE_CUBE_MAP, 0);
+		return texture;
+	}
+
+
+	/**
+     * Upload the levels of a block that fits (see fits) to target, the
+     * bound 2D texture or a face of the bound cube map, and return how many.
+     */
+	private static int uploadLevels(int target, Pixels pixels, int x, int y, int width, int height)
+	{
+		boolean whole = x == 0 && y == 0 && width == pixels.getWidth() && height == pixels.getHeight();
+		int levels = 0;
+		while(levels < pixels.getLevels() && (whole || fits(pixels, x, y, width, height, levels)))
+		{
+			uploadLevel(target, pixels, levels, x >> levels, y >> levels, MipChain.size(width, levels), MipChain.size(height, levels));
+			levels++;
+		}
+		return levels;
+	}
+
+
+	/**
+     * Sample the texture bound to target trilinearly from its levels, having
+     * GL generate the chain if only the image was uploaded and it can, or
+     * nearest from the image alone.
+     */
+	private static void setFilters(int target, Pixels pixels, int levels, int width, int height)
+	{
+		if(mipmaps && levels == 1 && !pixels.isCompressed() && generateMipmaps)
+		{
+			generateMipmap(target);
+			levels = MipChain.levels(width, height);
+		}
+		if(levels > 1)
+		{
+			glTexParameteri(target, GL12.GL_TEXTURE_MAX_LEVEL, levels - 1);
+			glTexParameteri(target, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+			glTexParameteri(target, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+			if(anisotropy > 1)
+			{
+				glTexParameterf(target, EXTTextureFilterAnisotropic.GL_TEXTURE_MAX_ANISOTROPY_EXT, anisotropy);
+			}
+		}
+		else
+		{
+			glTexParameteri(target, GL12.GL_TEXTURE_MAX_LEVEL, 0);
+			glTexParameteri(target, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+			glTexParameteri(target, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		}
+	}
+
+
+	/**
+     * Whether level of a block of an image is made of whole pixels of the
+     * image's level, and for a compressed image starts on a block.
+     */
+	private static boolean fits(Pixels pixels, int x, int y, int width, int height, int level)
+	{
+		int mask = (1 << level) - 1;
+		if(((x | y | width | height) & mask) != 0)
+		{
+			return false;
+		}
+		return !pixels.isCompressed() || ((x >> level) % 4 == 0 && (y >> level) % 4 == 0);
+	}
+
+	private static void uploadLevel(int target, Pixels pixels, int level, int x, int y, int width, int height)
+	{
+		int imageWidth = MipChain.size(pixels.getWidth(), level), imageHeight = MipChain.size(pixels.getHeight(), level);
+		ByteBuffer data = pixels.getData().duplicate();
+		data.limit(MipChain.offset(pixels.getFormat(), pixels.getWidth(), pixels.getHeight(), level + 1));
+		data.position(MipChain.offset(pixels.getFormat(), pixels.getWidth(), pixels.getHeight(), level));
+
+		if(pixels.isCompressed())
+		{
+			if(x != 0 || y != 0 || width != imageWidth || height != imageHeight)
+			{
+				data = TextureCompressor.region(data, pixels.getFormat(), imageWidth, x, y, width, height);
+			}
+			glCompressedTexImage2D(target, level, pixels.getFormat(), width, height, 0, data);
+			return;
+		}
+
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+		glPixelStorei(GL_UNPACK_ROW_LENGTH, imageWidth);
+		glPixelStorei(GL_UNPACK_SKIP_PIXELS, x);
+		glPixelStorei(GL_UNPACK_SKIP_ROWS, y);
+		glTexImage2D(target, level, GL_RGBA8, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, data);
+		glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+		glPixelStorei(GL_UNPACK_SKIP_PIXELS, 0);
+		glPixelStorei(GL_UNPACK_SKIP_ROWS, 0);
+	}
+
+	private static void generateMipmap(int target)
+	{
+		ContextCapabilities caps = GLContext.getCapabilities();
+		if(caps.OpenGL30)
+		{
+			GL30.glGenerateMipmap(target);
+		}
+		else if(caps.GL_ARB_framebuffer_object)
+		{
+			ARBFramebufferObject.glGenerateMipmap(target);
+		}
+		else
+		{
+			EXTFramebufferObject.glGenerateMipmapEXT(target);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the triple buffer class. One thread writes into its back slot
+ * and publishes it, another reads the latest published slot, and neither
+ * ever waits for the other: publishing swaps the back slot with the middle
+ * one, and reading swaps the front slot with the middle one if something
+ * new was published. A reader that is slower than the writer skips the
+ * slots it missed.
+ *
+ */
+
+package src;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TripleBuffer<T> {
+
+	/**
+     * Set in the middle index when the middle slot holds a slot the reader has not seen.
+     */
+	private static final int FRESH = 4;
+
+	private final Object[] slots;
+	private int back = 0, front = 1;
+	private final AtomicInteger middle = new AtomicInteger(2);
+
+
+	/**
+     * A buffer over three slots. The reader starts out with the second one.
+     */
+	public TripleBuffer(T first, T second, T third)
+	{
+		slots = new Object[] {first, second, third};
+	}
+
+
+	/**
+     * The slot the writer fills. Only the writing thread may use it.
+     */
+	@SuppressWarnings("unchecked")
+	public T getBack()
+	{
+		return (T) slots[back];
+	}
+
+
+	/**
+     * Hand the back slot to the reader, and take a free slot as the new back.
+     */
+	public void publish()
+	{
+		back = middle.getAndSet(back | FRESH) & ~FRESH;
+	}
+
+
+	/**
+     * The latest published slot, or the one returned last time if nothing
+     * new was published. Only the reading thread may use it, until the next
+     * call.
+     */
+	@SuppressWarnings("unchecked")
+	public T read()
+	{
+		if((middle.get() & FRESH) != 0)
+		{
+			front = middle.getAndSet(front) & ~FRESH;
+		}
+		return (T) slots[front];
+	}
+}
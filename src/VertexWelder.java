@@ -0,0 +1,110 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the vertex welder class. It maps each (position, texture, normal)
+ * index triple of an .obj face corner to one unique vertex number, using an
+ * open-addressing hash table over primitive int arrays.
+ *
+ */
+
+package src;
+
+import java.util.Arrays;
+
+public class VertexWelder {
+
+	private static final int EMPTY = -1;
+
+	private int[] keys;
+	private int[] values;
+	private int mask;
+	private int size;
+
+
+	/**
+     * Create a welder for up to the given number of corners.
+     */
+	public VertexWelder(int expected)
+	{
+		int capacity = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+		keys = new int[capacity * 3];
+		values = new int[capacity];
+		Arrays.fill(values, EMPTY);
+		mask = capacity - 1;
+	}
+
+
+	/**
+     * Return the vertex number of the triple, or -(number + 1) if it is new,
+     * in which case the caller must append the vertex.
+     */
+	public int weld(int v, int t, int n)
+	{
+		int slot = hash(v, t, n) & mask;
+		while(true)
+		{
+			int value = values[slot];
+			if(value == EMPTY)
+			{
+				if(size * 2 >= values.length)
+				{
+					grow();
+					return weld(v, t, n);
+				}
+				keys[slot * 3] = v;
+				keys[slot * 3 + 1] = t;
+				keys[slot * 3 + 2] = n;
+				values[slot] = size;
+				return -(++size);
+			}
+			if(keys[slot * 3] == v && keys[slot * 3 + 1] == t && keys[slot * 3 + 2] == n)
+			{
+				return value;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	private void grow()
+	{
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		int capacity = oldValues.length * 2;
+		keys = new int[capacity * 3];
+		values = new int[capacity];
+		Arrays.fill(values, EMPTY);
+		mask = capacity - 1;
+
+		for(int i = 0; i < oldValues.length; i++)
+		{
+			if(oldValues[i] != EMPTY)
+			{
+				int v = oldKeys[i * 3], t = oldKeys[i * 3 + 1], n = oldKeys[i * 3 + 2];
+				int slot = hash(v, t, n) & mask;
+				while(values[slot] != EMPTY)
+				{
+					slot = (slot + 1) & mask;
+				}
+				keys[slot * 3] = v;
+				keys[slot * 3 + 1] = t;
+				keys[slot * 3 + 2] = n;
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private static int hash(int v, int t, int n)
+	{
+		int h = v * 0x9E3779B1;
+		h = (h ^ (h >>> 15) ^ t) * 0x85EBCA77;
+		h = (h ^ (h >>> 13) ^ n) * 0xC2B2AE3D;
+		return h ^ (h >>> 16);
+	}
+}
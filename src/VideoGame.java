@@ -27,8 +27,6 @@ package src;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.List;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -68,12 +66,28 @@ public class VideoGame {
     String windowTitle = "Journey of a Dragon";
     private boolean fullscreen = false;
     private boolean closeRequested = false;
-    private long lastFrameTime;
-    private float daytime = 900;
     private int default_width = 960, default_height = 540;
 	private DisplayMode window, lastWindow;
-	private float width, height, skyHeight;
-	private float[][] altitude;
+	private float skyHeight;
+	
+	/** 
+     * The game advances in ticks of fixed length, however fast it is drawn 
+     * (see GameSimulation). Each frame is drawn from the latest snapshot 
+     * the simulation published. The keyboard and mouse are captured here, 
+     * on the thread that owns the window, and handed to the simulation.
+     */
+	private GameSimulation simulation;
+	private Input input = new Input();
+	private FrameSnapshot frame;
+	private long lastFrameNanos;
+	
+	/** 
+     * Frame times for the rates shown in the window title, counted each 
+     * second, and over the whole of a scripted flight (GameConfig.flightTest).
+     */
+	private FrameHistogram secondTimes = new FrameHistogram();
+	private long rateStart, rateTicks;
+	private FrameHistogram frameTimes = new FrameHistogram();
 	
 	/** 
      * There is a game interface, a camera, background music, a sky box, terrain, and a set of models.
@@ -82,14 +96,16 @@ public class VideoGame {
     private Camera camera = new Camera();
     private Interface gamePanel = new Interface();
     private Music gameMusic;
-    private Background[] skybox = {new Background(), new Background(), new Background()};
+    private Background skybox = new Background();
     private Map terrain = new Map();
     
-    private List<Model> models = new ArrayList<Model>();
+    private ModelRegistry modelRegistry = new ModelRegistry();
+    private ModelInstance player;
+    private Model npcModel;
+    private NpcSimulation npcs;
     private UnicodeFont font;
     private DecimalFormat formatter = new DecimalFormat("#.##");
-    private FloatBuffer perspectiveMatrix = BufferUtils.createFloatBuffer(16);
-    private FloatBuffer orthographicMatrix = BufferUtils.createFloatBuffer(16);
+    private ViewMatrices matrices = new ViewMatrices();
     
     /** 
      * Run the main body of the game.
@@ -97,17 +113,42 @@ public class VideoGame {
     public void run() throws LWJGLException, FileNotFoundException, IOException, InterruptedException, SlickException {
 
         createWindow();
-        getDelta();
         initGame();
         
+        if(GameConfig.simulationThread)
+        {
+        	simulation.start();
+        }
+        lastFrameNanos = rateStart = System.nanoTime();
         while (!closeRequested) {
-        	gameControl();
+        	long now = System.nanoTime();
+        	float frameSeconds = (now - lastFrameNanos) / 1e9f;
+        	secondTimes.record(frameSeconds * 1000.0f);
+            if(GameConfig.flightTest > 0)
+            {
+            	frameTimes.record(frameSeconds * 1000.0f);
+            }
+            lastFrameNanos = now;
+            
+            input.capture();
+        	gameControl(frameSeconds);
             renderGL();
 
             Display.update();
-            Display.sync(60);
+            if(!GameConfig.uncappedFps)
+            {
+            	Display.sync(60);
+            }
+            countFrame();
         }
+        simulation.stop();
         
+        if(GameConfig.flightTest > 0)
+        {
+        	System.out.println("Scripted flight, " + GameConfig.flightTest + " s at " + GameSimulation.getFlightSpeed() + " units/s, "
+        			+ terrain.getEvictedTiles() + " tiles evicted:");
+        	System.out.print(frameTimes.report());
+        }
         cleanup();
     }
     
@@ -124,7 +165,7 @@ public class VideoGame {
             
             Display.setDisplayMode(window);
             Display.setTitle(windowTitle);
-            Display.setVSyncEnabled(true);
+            Display.setVSyncEnabled(!GameConfig.uncappedFps);
             Display.create();
             Mouse.setGrabbed(true);
             
@@ -136,20 +177,6 @@ public class VideoGame {
     }
     
 
-    /** 
-     * Calculate how many milliseconds have passed 
-     * since last frame.
-     * 
-     * @return milliseconds passed since last frame 
-     */
-    public int getDelta() 
-    {
-        long time = (Sys.getTime() * 1000) / Sys.getTimerResolution();
-        int delta = (int) (time - lastFrameTime);
-        lastFrameTime = time;
-        return delta;
-    }
-    
     /** 
      * Initialize all the objects of the game.
      */
@@ -158,40 +185,39 @@ public class VideoGame {
     	gameMusic = new Music("res/autumn.ogg");
     	gameMusic.loop(1.0f, 0.1f);
     	initGL();
+    	// Decode the menu and the sky boxes together on the loader's threads.
+    	Interface.prefetch("mainMenu");
+    	Background.prefetch("day");
+    	Background.prefetch("dust");
+    	Background.prefetch("night");
     	gamePanel.loadInterface("mainMenu");
-    	skybox[0].loadBackground("day");
-    	skybox[1].loadBackground("dust");
-    	skybox[2].loadBackground("night");
+    	skybox.loadBackground("day", "dust", "night");
+    	terrain.setHeightOffset(-400.0f);
     	terrain.loadTerrain("heightMap");
-    	Model model = new Model();
-    	model.loadModel("dragon");
-    	models.add(model);
-    	for(int i = 0; i < 5; i++)
-    	{
-	    	model = new Model();
-	    	model.loadModel("dragon");
-	    	models.add(model);
-    	}
-    	width = terrain.getWidth();
-    	height = terrain.getHeight();
-    	skyHeight = skybox[0].getSkyHeight();
-    	altitude = terrain.getAltitude();
+    	player = modelRegistry.createInstance("dragon");
+    	player.setPosition(0.0f, 0.0f, -20.0f);
+    	npcModel = modelRegistry.getModel("dragon");
+    	npcs = new NpcSimulation(GameConfig.npcCount, System.nanoTime());
+    	skyHeight = skybox.getSkyHeight();
+    	
+    	npcs.setTerrain(terrain);
     	
-    	for(int i = 0; i < altitude.length; i++)
+        camera.create(terrain, skyHeight);   
+        if(GameConfig.flightTest > 0)
         {
-    		for(int j = 0; j < altitude[0].length; j++)
-         	{
-         		altitude[i][j] -= 400.0f;
-         	}
+        	state = State.GAME;
+        	camera.setRotationY(90);
+        	camera.beginStep();
         }
-    	
-        camera.create(width, height, altitude, skyHeight);   
+        simulation = new GameSimulation(camera, npcs, input);
+        frame = simulation.read();
         
         Font awtFont = new Font("Calibri", Font.BOLD,18);
         font = new UnicodeFont(awtFont);
         font.getEffects().add(new ColorEffect(Color.white));
         font.addAsciiGlyphs();
         font.loadGlyphs();
+        System.out.print(TextureCache.report());
     }
    
    
@@ -203,6 +229,7 @@ public class VideoGame {
     {
     	
     	reinitGL();
+    	TextureLoader.init();
         
         gluLookAt(0.0f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 1.0f, 0.0f);
         
@@ -255,7 +282,8 @@ public class VideoGame {
     
     
     /** 
-     * Re-initialize GL parameters.
+     * Re-initialize GL parameters. Called when the window is created, resized 
+     * or switched to or from fullscreen; the projections are only rebuilt then.
      * @throws LWJGLException 
      */
     public void reinitGL() throws LWJGLException
@@ -265,16 +293,9 @@ public class VideoGame {
         
         glViewport(0, 0, width, height);
         
+        matrices.resize(width, height, 45.0f * height / default_height, 0.1f, 100000000.0f);
         glMatrixMode(GL_PROJECTION);
-        glLoadIdentity();
-        gluPerspective(45.0f * height / default_height, ((float) width / (float) height), 0.1f, 100000000.0f);
-            
-        glGetFloat(GL_PROJECTION_MATRIX, perspectiveMatrix);
-        glMatrixMode(GL_PROJECTION);
-        glLoadIdentity();
-        glOrtho(0, width, height, 0, 1, -1);
-        glGetFloat(GL_PROJECTION_MATRIX, orthographicMatrix);
-        glLoadMatrix(perspectiveMatrix);
+        glLoadMatrix(matrices.getPerspective());
         
         glMatrixMode(GL_TEXTURE);
         glLoadIdentity();
@@ -286,10 +307,12 @@ public class VideoGame {
     
     /**
      * Control the game by key and mouse event under different game state. 
+     * In the game, frameSeconds of real time are spent on whole ticks, here
+     * or on the simulation thread.
      * Also check if the window is resized or inactive.
      * @throws LWJGLException, InterruptedException 
      */
-    public void gameControl() throws LWJGLException, InterruptedException 
+    public void gameControl(float frameSeconds) throws LWJGLException, InterruptedException 
     {
     	switch(state)
     	{
@@ -333,7 +356,20 @@ public class VideoGame {
 	        }
     		break;
     	case GAME:
-    		camera.acceptInput(getDelta());
+    		if(GameConfig.simulationThread)
+    		{
+    			simulation.setRunning(true);
+    		}
+    		else
+    		{
+    			simulation.advance(frameSeconds);
+    		}
+    		if(simulation.isFinished())
+    		{
+    			closeRequested = true;
+    		}
+    		frame = simulation.read();
+    		terrain.update(frame.getX(), frame.getZ());
     		while (Keyboard.next()) 
 	        {
 	            if (Keyboard.getEventKeyState()) 
@@ -341,6 +377,7 @@ public class VideoGame {
 	                if (Keyboard.getEventKey() == Keyboard.KEY_ESCAPE)
 	                {
 	                	state = State.MAIN_MENU;
+	                	simulation.setRunning(false);
 	                	break;
 	                }
 	                else if (Keyboard.getEventKey() == Keyboard.KEY_P)
@@ -391,8 +428,30 @@ public class VideoGame {
     
 
     /**
-     * Render all the objects in the game. 
-     * It also changes the sky box background image due to the daytime.
+     * Once a second, show the frame rate, the frame times and the tick rate 
+     * in the window title.
+     */
+    private void countFrame()
+    {
+    	long now = System.nanoTime();
+    	if(now - rateStart >= 1000000000L)
+    	{
+    		float seconds = (now - rateStart) / 1e9f;
+    		long ticks = frame.getTicks();
+    		Display.setTitle(windowTitle + " - " + Math.round(secondTimes.getFrames() / seconds) + " fps, mean " 
+    				+ formatter.format(secondTimes.getAverage()) + " ms, p99 " + formatter.format(secondTimes.percentile(0.99f)) 
+    				+ " ms, " + Math.round((ticks - rateTicks) / seconds) + " ticks/s");
+    		secondTimes = new FrameHistogram();
+    		rateTicks = ticks;
+    		rateStart = now;
+    	}
+    }
+    
+
+    /**
+     * Render all the objects in the game from the latest frame snapshot, 
+     * blended between its two ticks by how long ago the last one was due.
+     * The sky box blends its day, dusk and night skies by the daytime.
      * @throws FileNotFoundException, IOException, LWJGLException
      */
     private void renderGL() throws FileNotFoundException, IOException, LWJGLException 
@@ -406,18 +465,12 @@ public class VideoGame {
     		gamePanel.mainMenu(camera);
     		break;
     	case GAME:
-    		reinitGL();
-    		if(daytime < 1000)
-    			gamePanel.gameBody(camera, skybox[0], terrain, models, font, formatter, perspectiveMatrix, orthographicMatrix);
-    		else if(daytime < 1500)
-    			gamePanel.gameBody(camera, skybox[1], terrain, models, font, formatter, perspectiveMatrix, orthographicMatrix);
-    		else
-    		{
-    			gamePanel.gameBody(camera, skybox[2], terrain, models, font, formatter, perspectiveMatrix, orthographicMatrix);
-    			if(daytime > 2500)
-    				daytime = 0;
-    		}
-    		daytime++;
+    		// The main menu draws with its own projection.
+    		glMatrixMode(GL_PROJECTION);
+    		glLoadMatrix(matrices.getPerspective());
+    		glMatrixMode(GL_MODELVIEW);
+    		gamePanel.gameBody(frame, frame.alpha(System.nanoTime()), matrices, skybox, terrain, player, npcModel, 
+    				font, formatter);
     		break;
 		default:
 			break;
@@ -466,10 +519,11 @@ public class VideoGame {
     private void cleanup() 
     {
     	terrain.getMapShader().deleteShader();
-    	for(int i = 0; i < models.size(); i++)
-    	{
-    		models.get(i).getModelShader().deleteShader();
-    	}
+    	terrain.cleanup();
+    	modelRegistry.cleanup();
+    	gamePanel.cleanup();
+    	skybox.cleanup();
+    	TextureCache.cleanup();
         Display.destroy();
         System.exit(1);
     }
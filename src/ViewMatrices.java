@@ -0,0 +1,127 @@
+/**
+ * 3D Video Game: Journey of a Dragon.
+ *
+ * Author: Jihan Li
+ *
+ * This is the view matrices class. It computes the perspective and
+ * orthographic projections and the camera's view matrix on the CPU, the
+ * same matrices gluPerspective, glOrtho and glRotatef/glTranslatef build,
+ * so they can be loaded into GL and handed to the frustum culling without
+ * reading them back from GL. The projections are only rebuilt when the
+ * window changes size.
+ *
+ * Matrices are column-major, as GL takes them.
+ *
+ */
+
+package src;
+
+import java.nio.FloatBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.util.vector.Matrix4f;
+import org.lwjgl.util.vector.Vector3f;
+
+public class ViewMatrices {
+
+	private static final Vector3f X_AXIS = new Vector3f(1, 0, 0);
+	private static final Vector3f Y_AXIS = new Vector3f(0, 1, 0);
+	private static final Vector3f Z_AXIS = new Vector3f(0, 0, 1);
+
+	private Matrix4f view = new Matrix4f();
+	private Matrix4f offsetView = new Matrix4f();
+	private Vector3f offset = new Vector3f();
+
+	private FloatBuffer perspective = BufferUtils.createFloatBuffer(16);
+	private FloatBuffer orthographic = BufferUtils.createFloatBuffer(16);
+	private FloatBuffer viewBuffer = BufferUtils.createFloatBuffer(16);
+
+
+	/**
+     * Rebuild the projections for a viewport of width by height pixels: a
+     * perspective of fovy degrees from near to far, and an orthographic
+     * projection with the origin at the top left and one unit per pixel.
+     */
+	public void resize(int width, int height, float fovy, float near, float far)
+	{
+		store(perspective(fovy, (float) width / (float) height, near, far), perspective);
+		store(orthographic(0, width, height, 0, 1, -1), orthographic);
+	}
+
+
+	/**
+     * Build the camera's view matrix from a frame snapshot, alpha of the way
+     * from before its last tick to after it.
+     */
+	public void setView(FrameSnapshot frame, float alpha)
+	{
+		view.setIdentity();
+		view.rotate((float) Math.toRadians(frame.getRotationX(alpha)), X_AXIS);
+		view.rotate((float) Math.toRadians(frame.getRotationY(alpha)), Y_AXIS);
+		view.rotate((float) Math.toRadians(frame.getRotationZ(alpha)), Z_AXIS);
+		offset.set(-frame.getX(alpha), -frame.getY(alpha), -frame.getZ(alpha));
+		view.translate(offset);
+	}
+
+
+	/**
+     * The view matrix followed by a translation, as glTranslatef(x, y, z)
+     * after it would leave the modelview. The buffer is reused by the next call.
+     */
+	public FloatBuffer getView(float x, float y, float z)
+	{
+		offset.set(x, y, z);
+		offsetView.load(view);
+		offsetView.translate(offset);
+		return store(offsetView, viewBuffer);
+	}
+
+
+	/**
+     * The matrix gluPerspective builds.
+     */
+	public static Matrix4f perspective(float fovy, float aspect, float near, float far)
+	{
+		float f = 1.0f / (float) Math.tan(Math.toRadians(fovy) / 2);
+		Matrix4f matrix = new Matrix4f();
+		matrix.m00 = f / aspect;
+		matrix.m11 = f;
+		matrix.m22 = (far + near) / (near - far);
+		matrix.m23 = -1;
+		matrix.m32 = 2 * far * near / (near - far);
+		matrix.m33 = 0;
+		return matrix;
+	}
+
+
+	/**
+     * The matrix glOrtho builds.
+     */
+	public static Matrix4f orthographic(float left, float right, float bottom, float top, float near, float far)
+	{
+		Matrix4f matrix = new Matrix4f();
+		matrix.m00 = 2 / (right - left);
+		matrix.m11 = 2 / (top - bottom);
+		matrix.m22 = -2 / (far - near);
+		matrix.m30 = -(right + left) / (right - left);
+		matrix.m31 = -(top + bottom) / (top - bottom);
+		matrix.m32 = -(far + near) / (far - near);
+		return matrix;
+	}
+
+	private static FloatBuffer store(Matrix4f matrix, FloatBuffer buffer)
+	{
+		buffer.clear();
+		matrix.store(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	public FloatBuffer getPerspective() {
+		return perspective;
+	}
+
+	public FloatBuffer getOrthographic() {
+		return orthographic;
+	}
+}